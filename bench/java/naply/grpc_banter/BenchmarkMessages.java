@@ -0,0 +1,117 @@
+package naply.grpc_banter;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Messages and Clojure functions shared by the benchmarks.
+ */
+final class BenchmarkMessages {
+
+    /**
+     * Configuration used for conversion, the defaults of a client.
+     */
+    static final Object CONFIG = Clojure.read(
+            "{:enums-as-keywords true :response-fields-as-keywords true :include-raw-types false}");
+
+    private BenchmarkMessages() {
+    }
+
+    /**
+     * Require the namespace and return the var of the function.
+     */
+    static IFn fn(String namespace, String name) {
+        Clojure.var("clojure.core", "require").invoke(Clojure.read(namespace));
+        return Clojure.var(namespace, name);
+    }
+
+    /**
+     * A message by benchmark parameter name: allFieldTypes, allFieldTypesLarge or nested.
+     * The message is parsed as a DynamicMessage, as responses are.
+     */
+    static DynamicMessage message(String name) {
+        switch (name) {
+            case "allFieldTypes":
+                return dynamic(allFieldTypes(3));
+            case "allFieldTypesLarge":
+                return dynamic(allFieldTypes(10_000));
+            case "nested":
+                return dynamic(nested());
+            default:
+                throw new IllegalArgumentException(String.format("Unknown message=[%s]", name));
+        }
+    }
+
+    /**
+     * The clojure map of the message, as accepted by the converters.
+     */
+    static Object clj(DynamicMessage message) {
+        return fn("naply.grpc-banter.converter", "Message->clj")
+                .invoke(CONFIG, message, message.getDescriptorForType());
+    }
+
+    private static DynamicMessage dynamic(Message message) {
+        Descriptors.Descriptor type = message.getDescriptorForType();
+        try {
+            return DynamicMessage.parseFrom(type, message.toByteString());
+        } catch (InvalidProtocolBufferException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Every field type set, with the given number of values in each repeated field.
+     */
+    private static SampleMessageProtos.AllFieldTypesMessage allFieldTypes(int repeatedCount) {
+        SampleMessageProtos.TestMessage testMessage = SampleMessageProtos.TestMessage.newBuilder()
+                .setString("foo")
+                .build();
+        ByteString bytes = ByteString.copyFrom(new byte[]{0x43, 0x21});
+        SampleMessageProtos.AllFieldTypesMessage.Builder builder = SampleMessageProtos.AllFieldTypesMessage.newBuilder()
+                .setString("string value")
+                .setInteger(Integer.MAX_VALUE)
+                .setLong(Long.MAX_VALUE)
+                .setDouble(Double.MAX_VALUE)
+                .setFloat(Float.MAX_VALUE)
+                .setBoolean(true)
+                .setBytes(bytes)
+                .setEnum(SampleMessageProtos.TestEnum.FIRST)
+                .setMessage(testMessage)
+                .setOptionalString("string value")
+                .setOptionalInteger(Integer.MAX_VALUE)
+                .setOptionalLong(Long.MAX_VALUE)
+                .setOptionalDouble(Double.MAX_VALUE)
+                .setOptionalFloat(Float.MAX_VALUE)
+                .setOptionalBoolean(true)
+                .setOptionalBytes(bytes)
+                .setOptionalEnum(SampleMessageProtos.TestEnum.LAST)
+                .setOptionalMessage(testMessage);
+        for (int i = 0; i < repeatedCount; i++) {
+            builder.addRepeatedString("value " + i)
+                    .addRepeatedInteger(i)
+                    .addRepeatedLong(i * 31L)
+                    .addRepeatedDouble(i / 3.0)
+                    .addRepeatedFloat(i / 3.0f)
+                    .addRepeatedBoolean(i % 2 == 0)
+                    .addRepeatedBytes(bytes)
+                    .addRepeatedEnum(SampleMessageProtos.TestEnum.SECOND)
+                    .addRepeatedMessage(testMessage);
+        }
+        return builder.build();
+    }
+
+    private static SampleMessageProtos.NestedMessage nested() {
+        return SampleMessageProtos.NestedMessage.newBuilder()
+                .setOuterString("required")
+                .setInner(SampleMessageProtos.NestedMessage.InnerMessage.newBuilder()
+                        .setInnerString("also required")
+                        .setInner(SampleMessageProtos.NestedMessage.InnerMessage.DoubleInnerMessage.newBuilder()
+                                .setDoubleInnerString("still required")))
+                .build();
+    }
+}
@@ -0,0 +1,57 @@
+package naply.grpc_banter;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unary calls through {@code banter/call} to a local {@link TestGrpcServer}, including
+ * validation, conversion, marshalling and the transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CallBenchmark {
+
+    @Param({"dynamic-message", "wire"})
+    public String codec;
+
+    @Param({"allFieldTypes", "allFieldTypesLarge"})
+    public String message;
+
+    private TestGrpcServer server;
+    private Object client;
+    private IFn call;
+    private Object request;
+    private Object cljMessage;
+
+    @Setup
+    public void setup() throws IOException {
+        server = TestGrpcServer.create(0);
+        client = BenchmarkMessages.fn("naply.grpc-banter", "client").invoke(Clojure.read(String.format(
+                "{:target \"localhost:%d\" :file-descriptor-set \"target/test-file-descriptor-set.dsc\"}",
+                server.getPort())));
+        call = BenchmarkMessages.fn("naply.grpc-banter", "call");
+        request = Clojure.read(String.format(
+                "{:method \"naply.grpc_banter.EchoService/AllFieldTypesTest\" :codec :%s}", codec));
+        cljMessage = BenchmarkMessages.clj(BenchmarkMessages.message(message));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ((Closeable) ((clojure.lang.ILookup) client).valAt(Clojure.read(":java-client"))).close();
+        server.close();
+    }
+
+    @Benchmark
+    public Object call() {
+        return call.invoke(client, request, cljMessage);
+    }
+}
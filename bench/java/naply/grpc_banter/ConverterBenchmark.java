@@ -0,0 +1,66 @@
+package naply.grpc_banter;
+
+import clojure.lang.IFn;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion between clojure maps and protobuf messages, both by the interpreting converters
+ * and by the compiled converters used for calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+
+    @Param({"allFieldTypes", "allFieldTypesLarge", "nested"})
+    public String message;
+
+    private IFn cljToMessage;
+    private IFn messageToClj;
+    private IFn encoder;
+    private IFn decoder;
+    private Descriptors.Descriptor type;
+    private DynamicMessage protoMessage;
+    private Object cljMessage;
+
+    @Setup
+    public void setup() {
+        cljToMessage = BenchmarkMessages.fn("naply.grpc-banter.converter", "clj->Message");
+        messageToClj = BenchmarkMessages.fn("naply.grpc-banter.converter", "Message->clj");
+        Object cache = BenchmarkMessages.fn("naply.grpc-banter.converter", "converter-cache").invoke();
+        protoMessage = BenchmarkMessages.message(message);
+        type = protoMessage.getDescriptorForType();
+        cljMessage = BenchmarkMessages.clj(protoMessage);
+        encoder = (IFn) BenchmarkMessages.fn("naply.grpc-banter.converter", "message-encoder")
+                .invoke(cache, BenchmarkMessages.CONFIG, type);
+        decoder = (IFn) BenchmarkMessages.fn("naply.grpc-banter.converter", "message-decoder")
+                .invoke(cache, BenchmarkMessages.CONFIG, type);
+    }
+
+    @Benchmark
+    public Object cljToMessage() {
+        return cljToMessage.invoke(BenchmarkMessages.CONFIG, cljMessage, type);
+    }
+
+    @Benchmark
+    public Object messageToClj() {
+        return messageToClj.invoke(BenchmarkMessages.CONFIG, protoMessage, type);
+    }
+
+    @Benchmark
+    public Object compiledEncoder() {
+        return encoder.invoke(cljMessage);
+    }
+
+    @Benchmark
+    public Object compiledDecoder() {
+        return decoder.invoke(protoMessage);
+    }
+}
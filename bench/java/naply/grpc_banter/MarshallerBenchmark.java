@@ -0,0 +1,65 @@
+package naply.grpc_banter;
+
+import com.google.protobuf.DynamicMessage;
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import io.grpc.internal.ReadableBuffers;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and parsing response messages with the marshaller of the dynamic message codec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarshallerBenchmark {
+
+    @Param({"allFieldTypes", "allFieldTypesLarge", "nested"})
+    public String message;
+
+    private MethodDescriptor.Marshaller<Object> marshaller;
+    private DynamicMessage protoMessage;
+    private byte[] serialized;
+    private final CountingOutputStream sink = new CountingOutputStream();
+
+    @Setup
+    public void setup() {
+        protoMessage = BenchmarkMessages.message(message);
+        marshaller = Client.buildDynamicMarshaller(protoMessage.getDescriptorForType(), null);
+        serialized = protoMessage.toByteArray();
+    }
+
+    @Benchmark
+    public long serialize() throws IOException {
+        return ((Drainable) marshaller.stream(protoMessage)).drainTo(sink);
+    }
+
+    /**
+     * Parse from a stream over a transport buffer, as messages are read from the network.
+     */
+    @Benchmark
+    public Object parse() {
+        return marshaller.parse(ReadableBuffers.openStream(ReadableBuffers.wrap(serialized), true));
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package naply.grpc_banter;
+
+import com.google.protobuf.DescriptorProtos;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading synthetic file descriptor sets, and resolving a message type of a file with a chain
+ * of dependencies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryBenchmark {
+
+    private static final int MESSAGES_PER_FILE = 20;
+
+    @Param({"100", "1000"})
+    public int fileCount;
+
+    private File file;
+    private String lastMessageType;
+
+    @Setup
+    public void setup() throws IOException {
+        DescriptorProtos.FileDescriptorSet.Builder fds = DescriptorProtos.FileDescriptorSet.newBuilder();
+        for (int i = 0; i < fileCount; i++) {
+            fds.addFile(syntheticFile(i));
+        }
+        file = File.createTempFile("registry-benchmark", ".dsc");
+        try (OutputStream output = new FileOutputStream(file)) {
+            fds.build().writeTo(output);
+        }
+        lastMessageType = String.format("bench.file%d.Message%d", fileCount - 1, MESSAGES_PER_FILE - 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * A file of messages referring to a message of the file it depends on. Each file depends on
+     * the file at half its index, so dependency chains grow with the log of the file count.
+     */
+    private static DescriptorProtos.FileDescriptorProto syntheticFile(int index) {
+        String packageName = "bench.file" + index;
+        DescriptorProtos.FileDescriptorProto.Builder fdp = DescriptorProtos.FileDescriptorProto.newBuilder()
+                .setName(packageName.replace('.', '/') + ".proto")
+                .setPackage(packageName)
+                .setSyntax("proto3");
+        int parent = (index - 1) / 2;
+        if (index > 0) {
+            fdp.addDependency("bench/file" + parent + ".proto");
+        }
+        for (int m = 0; m < MESSAGES_PER_FILE; m++) {
+            DescriptorProtos.DescriptorProto.Builder message = DescriptorProtos.DescriptorProto.newBuilder()
+                    .setName("Message" + m)
+                    .addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+                            .setName("name")
+                            .setNumber(1)
+                            .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_STRING));
+            if (index > 0) {
+                message.addField(DescriptorProtos.FieldDescriptorProto.newBuilder()
+                        .setName("parent")
+                        .setNumber(2)
+                        .setType(DescriptorProtos.FieldDescriptorProto.Type.TYPE_MESSAGE)
+                        .setTypeName(".bench.file" + parent + ".Message" + m));
+            }
+            fdp.addMessageType(message);
+        }
+        return fdp.build();
+    }
+
+    @Benchmark
+    public Object load() {
+        return FileDescriptorRegistry.fromFileDescriptorSet(file.getPath());
+    }
+
+    @Benchmark
+    public Object loadAndResolve() {
+        return FileDescriptorRegistry.fromFileDescriptorSet(file.getPath())
+                .findMessageTypeByFullName(lastMessageType);
+    }
+}
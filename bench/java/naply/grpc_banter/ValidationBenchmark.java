@@ -0,0 +1,43 @@
+package naply.grpc_banter;
+
+import clojure.lang.IFn;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of request maps against the schema of their message type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @Param({"allFieldTypes", "allFieldTypesLarge", "nested"})
+    public String message;
+
+    private IFn validate;
+    private Descriptors.Descriptor type;
+    private Object cljMessage;
+
+    @Setup
+    public void setup() {
+        validate = BenchmarkMessages.fn("naply.grpc-banter.schema", "validate");
+        DynamicMessage protoMessage = BenchmarkMessages.message(message);
+        type = protoMessage.getDescriptorForType();
+        cljMessage = BenchmarkMessages.clj(protoMessage);
+        if (validate.invoke(type, BenchmarkMessages.CONFIG, cljMessage) != null) {
+            throw new IllegalStateException(String.format("Benchmark message=[%s] is not valid", message));
+        }
+    }
+
+    @Benchmark
+    public Object validate() {
+        return validate.invoke(type, BenchmarkMessages.CONFIG, cljMessage);
+    }
+}
@@ -12,6 +12,7 @@
    [io.grpc/grpc-core ~grpc-version :exclusions [io.grpc/grpc-api]]
    [io.grpc/grpc-netty-shaded ~grpc-version :exclusions [io.grpc/grpc-core]]
    [io.grpc/grpc-stub ~grpc-version]
+   [io.grpc/grpc-services ~grpc-version :exclusions [io.grpc/grpc-core]]
    [org.slf4j/slf4j-api "1.7.32"]
    [javax.annotation/javax.annotation-api "1.3.2"]
    [metosin/malli "0.8.4"]]
@@ -33,7 +34,17 @@
 
    :dev
    {:dependencies [[ch.qos.logback/logback-classic "1.2.6"]
-                   [nrepl/nrepl "0.9.0"]]}}
+                   [nrepl/nrepl "0.9.0"]]}
+
+   ;; JMH benchmarks, run with `lein bench`. Requires the test file descriptor set and
+   ;; generated test protos, see Development in the README.
+   :bench
+   {:dependencies [[org.openjdk.jmh/jmh-core "1.35"]
+                   [org.openjdk.jmh/jmh-generator-annprocess "1.35"]]
+    :java-source-paths ^:replace ["src/java" "test/java" "target/test-gen" "bench/java"]
+    :resource-paths ["test/resources"]}}
+
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main"]}
 
   :lein-protodeps {:output-path   "target/test-gen"
                    :proto-version "3.19.2"
@@ -1,9 +1,22 @@
 (ns naply.grpc-banter
-  (:refer-clojure :exclude [methods])
+  (:refer-clojure :exclude [methods load])
   (:require [naply.grpc-banter.schema :as s]
             [naply.grpc-banter.converter :as c])
-  (:import (naply.grpc_banter Client FileDescriptorRegistry)
-           (io.grpc StatusRuntimeException)))
+  (:import (naply.grpc_banter Client ClientConfig ClientConfig$Builder ClientConfig$ChannelSelection FileDescriptorRegistry
+                               ReflectionDescriptorSource CallSettings CallSettings$Codec)
+           (naply.grpc_banter.internal StreamingCall CallMetrics MethodMetrics MethodMetrics$Phase
+                                        Histogram Histogram$Snapshot ResponseCache ResponseCache$Stats
+                                        LoadGenerator LoadGenerator$Report CallRecorder
+                                        CallReplayer CallReplayer$Report CallReplayer$Difference)
+           (io.grpc Status Status$Code StatusRuntimeException)
+           (clojure.lang ExceptionInfo LazySeq RT)
+           (java.io Closeable Writer)
+           (com.google.protobuf ByteString Descriptors$Descriptor)
+           (java.util.concurrent CompletableFuture CompletionException ExecutionException Semaphore TimeUnit
+                                 TimeoutException)
+           (java.nio.file Paths)
+           (java.util Iterator)
+           (java.util.function BiConsumer BiFunction Function Supplier)))
 
 (defn- get-service-and-method
   "Validate and provide the inputted service and method"
@@ -37,53 +50,622 @@
          _request (s/decode-request _request (:config client))
          method-descriptor (get-method-descriptor client _request)
          request-message-type (.getInputType method-descriptor)]
-     (s/validate request-message-type _request message))))
+     (s/validate (:validators client) request-message-type _request message))))
+
+(defn- method-metrics
+  "Return the metrics of the method, or nil when the client does not record metrics."
+  ^MethodMetrics [client method-descriptor]
+  (.getMethodMetrics ^Client (:java-client client) method-descriptor))
+
+(defmacro ^:private timed
+  "Evaluate the body, recording its duration as the phase of the method metrics when present."
+  [method-metrics phase & body]
+  `(if-let [^MethodMetrics metrics# ~method-metrics]
+     (let [start# (System/nanoTime)]
+       (try
+         ~@body
+         (finally
+           (.recordPhase metrics# ~phase (- (System/nanoTime) start#)))))
+     (do ~@body)))
+
+(defn- timed-fn
+  "Return f, recording the duration of each call as the phase when there are method metrics."
+  [method-metrics phase f]
+  (if method-metrics
+    (fn [x] (timed method-metrics phase (f x)))
+    f))
+
+(defn- validate-message!
+  [client request ^Descriptors$Descriptor message-type message method-metrics]
+  (when-let [errors (timed method-metrics MethodMetrics$Phase/VALIDATION
+                      (s/validate (:validators client) message-type request message))]
+    (throw (ex-info "Request message failed validation"
+                    {:request request
+                     :message message
+                     :errors  errors}))))
+
+(defn- call-settings
+  "Return the java client settings for the request."
+  ^CallSettings [request]
+  (-> (CallSettings/builder)
+      (.headers (c/clj->Metadata (:headers request)))
+      (.deadlineMillis (:deadline-millis request))
+      (.codec (if (= :wire (:codec request))
+                CallSettings$Codec/WIRE
+                CallSettings$Codec/DYNAMIC_MESSAGE))
+      (.streamBufferSize (:stream-buffer-size request))
+      (.cacheResponse (:cache request))
+      (.coalesce (:coalesce request))
+      (.compression (when-not (= :identity (:compression request))
+                      (name (:compression request))))
+      (.compressionMinBytes (:compression-min-bytes request))
+      (.build)))
+
+(defn- request-encoder
+  "Return the function converting request messages to the form sent by the java client.
+  The wire codec sends the map as-is, it is written directly to the wire."
+  [client request request-message-type method-metrics]
+  (if (= :wire (:codec request))
+    identity
+    (timed-fn method-metrics MethodMetrics$Phase/REQUEST_CONVERSION
+              (c/message-encoder (:converters client) request request-message-type))))
+
+(defn- response-decoder
+  [client request response-message-type method-metrics]
+  (timed-fn method-metrics MethodMetrics$Phase/RESPONSE_CONVERSION
+            (if (= :wire (:codec request))
+              (c/wire-decoder (.getWireCodec ^Client (:java-client client)) request response-message-type)
+              (c/message-decoder (:converters client) request response-message-type))))
+
+(defn- prepare-call
+  "Decode the request configuration, resolve the method and validate the message.
+  Throws when the request or message is invalid."
+  [client request message]
+  (let [request (if (string? request) {:method request} request)
+        request (s/decode-request request (:config client))
+        method-descriptor (get-method-descriptor client request)
+        request-message-type (.getInputType method-descriptor)
+        method-metrics (method-metrics client method-descriptor)]
+    (validate-message! client request request-message-type message method-metrics)
+    {:request               request
+     :method-descriptor     method-descriptor
+     :method-metrics        method-metrics
+     :request-message       ((request-encoder client request request-message-type method-metrics) message)
+     :response-message-type (.getOutputType method-descriptor)}))
+
+(defn- ->exception-info
+  "Convert a failed call to the exception that is thrown to the caller."
+  [request ^Throwable e]
+  (let [e (if (instance? CompletionException e) (.getCause e) e)]
+    (if (instance? StatusRuntimeException e)
+      (c/StatusRuntimeException->exception-info request e)
+      e)))
 
 (defn call
   "Execute a synchronous call the gRPC service, returning the response message
   as a map of fields and values. Headers, trailers, and status are included
   as metadata. Errors are returned as runtime exceptions."
   ([client request message]
-   (let [request (if (string? request) {:method request} request)
-         request (s/decode-request request (:config client))
-         method-descriptor (get-method-descriptor client request)
-         request-message-type (.getInputType method-descriptor)
-         response-message-type (.getOutputType method-descriptor)]
-     (when-let [errors (s/validate request-message-type request message)]
-       (throw (ex-info "Request message failed validation"
-                       {:request request
-                        :message message
-                        :errors  errors})))
+   (let [{:keys [request method-descriptor method-metrics request-message response-message-type]}
+         (prepare-call client request message)]
      (try
        (c/RpcResponse->clj
          request
-         (.callMethod (:java-client client)
+         (.callMethod ^Client (:java-client client)
                       method-descriptor
-                      (c/clj->Message request message request-message-type)
-                      (c/clj->Metadata (:headers request))
-                      (:deadline-millis request))
-         response-message-type)
+                      request-message
+                      (call-settings request))
+         response-message-type
+         (response-decoder client request response-message-type method-metrics))
        (catch StatusRuntimeException e
-         (throw (c/StatusRuntimeException->exception-info request e)))))))
+         (throw (->exception-info request e)))))))
+
+(defn- start-call-async
+  "Start an asynchronous call of an already prepared request message. Returns a
+  CompletableFuture of the response map. Cancelling it cancels the call."
+  ^CompletableFuture
+  [client request method-descriptor method-metrics request-message response-message-type]
+  (let [^CompletableFuture response-future
+        (.callMethodAsync ^Client (:java-client client)
+                          method-descriptor
+                          request-message
+                          (call-settings request))
+        decode (response-decoder client request response-message-type method-metrics)
+        result (.handle response-future
+                        (reify BiFunction
+                          (apply [_ response error]
+                            (if error
+                              (throw (CompletionException. ^Throwable (->exception-info request error)))
+                              (c/RpcResponse->clj request response response-message-type decode)))))]
+    ;; Cancelling the returned future must cancel the underlying call
+    (.whenComplete result
+                   (reify BiConsumer
+                     (accept [_ _ _]
+                       (when (.isCancelled result)
+                         (.cancel response-future true)))))
+    result))
+
+(defn call-async
+  "Execute an asynchronous call to the gRPC service without blocking the calling thread.
+  Returns a CompletableFuture that completes with the same response map as `call`, or
+  fails with the same exception info. Deref'ing a failed future throws an
+  ExecutionException wrapping the exception info, use `ex-cause` or `await-response` to
+  get it. Cancelling the future cancels the call.
+
+  Invalid requests or messages throw immediately, as with `call`.
+
+  When `on-success` and `on-error` callbacks are supplied, they are called with the
+  response map or the exception once the call completes."
+  ([client request message]
+   (let [{:keys [request method-descriptor method-metrics request-message response-message-type]}
+         (prepare-call client request message)]
+     (start-call-async client request method-descriptor method-metrics request-message response-message-type)))
+  ([client request message on-success on-error]
+   (let [^CompletableFuture result (call-async client request message)]
+     (.whenComplete result
+                    (reify BiConsumer
+                      (accept [_ response error]
+                        (if error
+                          (on-error (if (instance? CompletionException error) (.getCause ^Throwable error) error))
+                          (on-success response)))))
+     result)))
+
+(defn await-response
+  "Wait for the future returned by `call-async` to complete, returning the response map.
+  Unlike deref, a failed call throws its exception info rather than an ExecutionException
+  wrapping it. Returns timeout-val if the call does not complete within timeout-millis."
+  ([^CompletableFuture result]
+   (try
+     (.get result)
+     (catch ExecutionException e
+       (throw (.getCause e)))))
+  ([^CompletableFuture result timeout-millis timeout-val]
+   (try
+     (.get result timeout-millis TimeUnit/MILLISECONDS)
+     (catch ExecutionException e
+       (throw (.getCause e)))
+     (catch TimeoutException _
+       timeout-val))))
+
+(defn call-many
+  "Execute a call to a unary method for each of the messages, returning a vector of
+  results in the order of the messages.
+
+  The method and request configuration are resolved once for the whole batch. Calls are
+  made asynchronously, with at most :max-in-flight calls outstanding at a time. Each
+  result is either the response map, as returned by `call`, or the exception for that
+  message, so an invalid message or failed call does not abort the rest of the batch."
+  ([client request messages]
+   (let [request (if (string? request) {:method request} request)
+         request (s/decode-request request (:config client))
+         method-descriptor (get-method-descriptor client request)
+         request-message-type (.getInputType method-descriptor)
+         response-message-type (.getOutputType method-descriptor)
+         method-metrics (method-metrics client method-descriptor)
+         encode (request-encoder client request request-message-type method-metrics)
+         in-flight (Semaphore. (:max-in-flight request))
+         release (reify BiConsumer
+                   (accept [_ _ _] (.release in-flight)))
+         results (mapv (fn [message]
+                         (try
+                           (validate-message! client request request-message-type message method-metrics)
+                           (let [request-message (encode message)]
+                             (.acquire in-flight)
+                             (try
+                               (doto (start-call-async client request method-descriptor method-metrics
+                                                       request-message response-message-type)
+                                 (.whenComplete release))
+                               (catch Throwable e
+                                 (.release in-flight)
+                                 (throw e))))
+                           (catch InterruptedException e
+                             (throw e))
+                           (catch Exception e
+                             (CompletableFuture/completedFuture (->exception-info request e)))))
+                       messages)]
+     (mapv (fn [^CompletableFuture result]
+             (try
+               (.get result)
+               (catch ExecutionException e
+                 (.getCause e))))
+           results))))
+
+(defn- stream-exception
+  "Convert a failed streaming call to the exception thrown to the caller. A call cancelled
+  because a request message was invalid rethrows the validation error."
+  [request ^StatusRuntimeException e]
+  (let [cause (.getCause e)]
+    (if (instance? ExceptionInfo cause)
+      cause
+      (c/StatusRuntimeException->exception-info request e))))
+
+(defn- response-seq
+  "Return a lazy sequence of the responses of the call. Every unrealized part of the
+  sequence holds the owner token of the call, so the call is cancelled once the sequence
+  is abandoned."
+  [request ^StreamingCall streaming-call owner message->clj]
+  (lazy-seq
+    (when (try
+            (.hasNext streaming-call)
+            (catch StatusRuntimeException e
+              (throw (stream-exception request e))))
+      (cons (message->clj (.next streaming-call))
+            (response-seq request streaming-call owner message->clj)))))
+
+(deftype ResponseStream [^LazySeq responses ^StreamingCall streaming-call request]
+  clojure.lang.Seqable
+  (seq [_] (.seq responses))
+
+  clojure.lang.Sequential
+
+  clojure.lang.IPersistentCollection
+  (count [_] (.count responses))
+  (cons [_ o] (.cons responses o))
+  (empty [_] ())
+  (equiv [_ o] (.equiv responses o))
+
+  clojure.lang.IHashEq
+  (hasheq [_] (.hasheq responses))
+
+  Iterable
+  (iterator [_] (.iterator responses))
+
+  clojure.lang.IDeref
+  (deref [_]
+    (dorun responses)
+    (c/RpcResponse->metadata request (.getResponse streaming-call)))
+
+  Closeable
+  (close [_] (.close streaming-call))
+
+  Object
+  (hashCode [_] (.hashCode responses))
+  (equals [_ o] (.equals responses o)))
+
+(defmethod print-method ResponseStream [stream ^Writer writer]
+  (print-method (or (seq stream) ()) writer))
+
+(defn call-stream
+  "Execute a call to a method of any type, including server, client and bidirectional
+  streaming methods. Returns a lazily realized, sequential collection of response maps.
+
+  For client and bidirectional streaming methods, `messages` is a seqable or reducible
+  source of request messages, each validated as it is sent. Requests are only realized
+  as the transport is ready to send them, on the calling thread and the thread consuming
+  the responses. For other methods `messages` is a single message.
+
+  Responses are requested from the server as the sequence is consumed, with at most
+  :stream-buffer-size responses buffered. The :deadline-millis applies to the whole call.
+  An error status is thrown as exception info when the sequence reaches it.
+
+  Deref'ing the result consumes the remaining responses and returns the status, headers
+  and trailers of the call, as attached to the response of `call`. Closing it, such as
+  with `with-open`, cancels the call if it has not completed, as does abandoning the
+  sequence before it is fully consumed."
+  ([client request messages]
+   (let [request (if (string? request) {:method request} request)
+         request (s/decode-request request (:config client))
+         method-descriptor (get-method-descriptor client request)
+         request-message-type (.getInputType method-descriptor)
+         method-metrics (method-metrics client method-descriptor)
+         encode (request-encoder client request request-message-type method-metrics)
+         ->request-message (fn [message]
+                             (validate-message! client request request-message-type message method-metrics)
+                             (encode message))
+         requests (if (.isClientStreaming method-descriptor)
+                    (eduction (map ->request-message) messages)
+                    [(->request-message messages)])]
+     (let [streaming-call (.callStreamingMethod ^Client (:java-client client)
+                                                method-descriptor
+                                                (RT/iter requests)
+                                                (call-settings request))]
+       (->ResponseStream
+         (response-seq request
+                       streaming-call
+                       (.cancelWhenUnreachable streaming-call)
+                       (response-decoder client request (.getOutputType method-descriptor) method-metrics))
+         streaming-call
+         request)))))
+
+(defn- response-cache-config
+  ^ClientConfig$Builder [^ClientConfig$Builder builder response-cache]
+  (-> builder
+      (.responseCacheMaxEntries (:max-entries response-cache))
+      (.responseCacheMaxBytes (some-> (:max-bytes response-cache) long))
+      (.responseCacheTtlMillis (:ttl-millis response-cache))
+      (.responseCacheKeyHeaders (mapv name (:key-headers response-cache)))
+      (.responseCacheMethods (set (:methods response-cache)))))
+
+(defn- duration
+  "Format milliseconds as a service config duration."
+  [millis]
+  (format "%.3fs" (/ millis 1000.0)))
+
+(defn- service-config
+  "Return the gRPC service config, in its parsed JSON form, of the method configs."
+  [method-configs]
+  {"methodConfig"
+   (mapv (fn [{:keys [methods retry hedging]}]
+           (cond-> {"name" (mapv (fn [full-name]
+                                   (let [[service method] (clojure.string/split full-name #"/")]
+                                     (cond-> {"service" service}
+                                       method (assoc "method" method))))
+                                 methods)}
+             retry (assoc "retryPolicy"
+                          {"maxAttempts"          (double (:max-attempts retry))
+                           "initialBackoff"       (duration (:initial-backoff-millis retry))
+                           "maxBackoff"           (duration (:max-backoff-millis retry))
+                           "backoffMultiplier"    (double (:backoff-multiplier retry))
+                           "retryableStatusCodes" (mapv name (:retryable-status-codes retry))})
+             hedging (assoc "hedgingPolicy"
+                            {"maxAttempts"         (double (:max-attempts hedging))
+                             "hedgingDelay"        (duration (:hedging-delay-millis hedging))
+                             "nonFatalStatusCodes" (mapv name (:non-fatal-status-codes hedging))})))
+         method-configs)})
+
+(defn- client-config
+  "Return the java client connection settings for the client config."
+  ^ClientConfig [config]
+  (-> (ClientConfig/builder)
+      (.target (:target config))
+      (.channelCount (:channel-count config))
+      (.channelSelection (if (= :least-in-flight (:channel-selection config))
+                           ClientConfig$ChannelSelection/LEAST_IN_FLIGHT
+                           ClientConfig$ChannelSelection/ROUND_ROBIN))
+      (.directExecutor (:direct-executor config))
+      (.executorThreads (:executor-threads config))
+      (.eventLoopThreads (:event-loop-threads config))
+      (.keepAliveTimeMillis (some-> (:keep-alive-time-millis config) long))
+      (.keepAliveTimeoutMillis (some-> (:keep-alive-timeout-millis config) long))
+      (.keepAliveWithoutCalls (:keep-alive-without-calls config))
+      (.flowControlWindow (some-> (:flow-control-window config) int))
+      (.maxInboundMessageSize (some-> (:max-inbound-message-size config) int))
+      (.tls (:tls config))
+      (.trustCertCollection (:trust-cert-collection config))
+      (.clientCertChain (:client-cert-chain config))
+      (.clientKey (:client-key config))
+      (.metrics (:metrics config))
+      (cond-> (:response-cache config) (response-cache-config (:response-cache config)))
+      (cond-> (seq (:method-config config)) (.serviceConfig (service-config (:method-config config))))
+      (.recordFile (:record-file config))
+      (.recordQueueSize (:record-queue-size config))
+      (.build)))
 
 (defn client
   "Creates and returns a grpc-banter client."
   [config]
-  (let [config (s/decode-client-config config)]
-    {:java-client (Client/create (:target config))
-     :registry    (FileDescriptorRegistry/fromFileDescriptorSet
-                    ^String (:file-descriptor-set config))
+  (let [config (s/decode-client-config config)
+        ^Client java-client (Client/create (client-config config))]
+    {:java-client java-client
+     :registry    (if (:reflection config)
+                    (FileDescriptorRegistry/fromDescriptorSource
+                      (ReflectionDescriptorSource. (.getChannel java-client) (:deadline-millis config))
+                      ^String (:descriptor-cache config))
+                    (FileDescriptorRegistry/fromFileDescriptorSet
+                      ^String (:file-descriptor-set config)))
+     :converters  (c/converter-cache)
+     :validators  (s/validator-cache)
      :config      config}))
 
+(defn- snapshot->clj [^Histogram$Snapshot snapshot]
+  {:count (.getCount snapshot)
+   :min   (.getMin snapshot)
+   :max   (.getMax snapshot)
+   :mean  (.getMean snapshot)
+   :p50   (.getValueAtPercentile snapshot 50.0)
+   :p90   (.getValueAtPercentile snapshot 90.0)
+   :p99   (.getValueAtPercentile snapshot 99.0)
+   :p999  (.getValueAtPercentile snapshot 99.9)})
+
+(defn- histogram->clj [^Histogram histogram]
+  (snapshot->clj (.snapshot histogram)))
+
+(defn- status-counts
+  "Return a map of status code keyword to count, for the codes with a non-zero count."
+  [count-of]
+  (into {}
+        (keep (fn [^Status$Code code]
+                (let [n (count-of code)]
+                  (when (pos? n)
+                    [(keyword (.name code)) n]))))
+        (Status$Code/values)))
+
+(defn- method-metrics->clj [^MethodMetrics metrics]
+  {:calls          (status-counts #(.getCalls metrics %))
+   :latency-nanos  (histogram->clj (.getLatency metrics))
+   :request-bytes  (histogram->clj (.getRequestBytes metrics))
+   :response-bytes (histogram->clj (.getResponseBytes metrics))
+   :phase-nanos    (into {}
+                         (map (fn [^MethodMetrics$Phase phase]
+                                [(keyword (.toLowerCase (.replace (.name phase) \_ \-)))
+                                 (histogram->clj (.getPhase metrics phase))]))
+                         (MethodMetrics$Phase/values))})
+
+(defn metrics
+  "Return a snapshot of the metrics recorded by a client created with :metrics, as a map
+  of full method name to the call counts by status, latency, message sizes and the time
+  spent in each phase of its calls. Returns nil when the client does not record metrics."
+  [client]
+  (when-let [^CallMetrics call-metrics (.getMetrics ^Client (:java-client client))]
+    (into {}
+          (map (fn [[method method-metrics]]
+                 [method (method-metrics->clj method-metrics)]))
+          (.getMethods call-metrics))))
+
+(defn response-cache-stats
+  "Return the hits, misses, evictions, expirations, entries and bytes of the client's
+  response cache, or nil when the client has no response cache."
+  [client]
+  (when-let [^ResponseCache cache (.getResponseCache ^Client (:java-client client))]
+    (let [^ResponseCache$Stats stats (.stats cache)]
+      {:hits        (.getHits stats)
+       :misses      (.getMisses stats)
+       :evictions   (.getEvictions stats)
+       :expirations (.getExpirations stats)
+       :entries     (.getEntries stats)
+       :bytes       (.getBytes stats)})))
+
+(defn clear-response-cache
+  "Remove all responses from the client's response cache."
+  [client]
+  (some-> ^ResponseCache (.getResponseCache ^Client (:java-client client)) .clear))
+
+(defn recording-stats
+  "Return the number of calls recorded and dropped by a client created with :record-file,
+  or nil when the client does not record calls."
+  [client]
+  (when-let [^CallRecorder recorder (.getRecorder ^Client (:java-client client))]
+    {:recorded (.getRecorded recorder)
+     :dropped  (.getDropped recorder)}))
+
+(defn- difference->clj [codec config ^CallReplayer$Difference difference]
+  (let [decode (fn [^ByteString bytes]
+                 (when-let [response-type (when-not (.isEmpty bytes) (.getResponseType difference))]
+                   ((c/wire-decoder codec config response-type) bytes)))]
+    {:index             (.getIndex difference)
+     :method            (.getFullMethodName difference)
+     :recorded-status   (.name (.getRecordedStatus difference))
+     :replayed-status   (.name (.getReplayedStatus difference))
+     :recorded-response (decode (.getRecordedResponse difference))
+     :replayed-response (decode (.getReplayedResponse difference))}))
+
+(defn replay
+  "Replay the unary calls recorded by a client created with :record-file, returning a report
+  of the replayed calls and of the calls whose status or response differs from the recording.
+
+  The recording is memory mapped and read as it is replayed. Requests are sent as the recorded
+  bytes with the recorded headers, so they are not validated or converted again.
+  Options are:
+    :speed           Default 1.0, a multiple of the recorded pace, or 0 to replay as fast as
+                     :max-in-flight allows. Paced latency is measured from when each call was
+                     due to start.
+    :max-in-flight   Default 64, the maximum number of calls outstanding at a time.
+    :max-differences Default 10, the number of differing calls included in the report.
+    :deadline-millis The deadline of each call, the client's by default.
+    :headers         Headers added to the recorded headers of each call.
+
+  Example report:
+  {:calls 1000 :elapsed-millis 9998 :throughput 100.0
+   :status {:OK 998 :UNAVAILABLE 2}
+   :latency-nanos {...} :recorded-latency-nanos {...}
+   :status-differences 2 :response-differences 0
+   :differences [{:index 17 :method \"grpc_banter.EchoService/Echo\"
+                  :recorded-status \"OK\" :replayed-status \"UNAVAILABLE\"
+                  :recorded-response {:echo \"Hello\"} :replayed-response nil}]}"
+  [client file options]
+  (let [{:keys [speed max-in-flight max-differences deadline-millis headers]} (s/decode-replay-options options)
+        config (:config client)
+        settings (call-settings (assoc config
+                                  :headers headers
+                                  :deadline-millis (or deadline-millis (:deadline-millis config))))
+        ^CallReplayer$Report report (CallReplayer/replay
+                                      ^Client (:java-client client)
+                                      (Paths/get file (make-array String 0))
+                                      (reify Function
+                                        (apply [_ full-method-name]
+                                          (get-method-descriptor client {:method full-method-name})))
+                                      settings
+                                      (double speed)
+                                      (int max-in-flight)
+                                      (int max-differences))]
+    {:calls                  (.getCalls report)
+     :elapsed-millis         (quot (.getElapsedNanos report) 1000000)
+     :throughput             (.getThroughput report)
+     :status                 (status-counts #(.getCalls report %))
+     :latency-nanos          (snapshot->clj (.getLatency report))
+     :recorded-latency-nanos (snapshot->clj (.getRecordedLatency report))
+     :status-differences     (.getStatusDifferences report)
+     :response-differences   (.getResponseDifferences report)
+     :differences            (mapv #(difference->clj (.getWireCodec ^Client (:java-client client)) config %) (.getDifferences report))}))
+
+(defn- message-source
+  "Return a function returning the next request message, or nil when there are no more.
+  A sequence is shared by all the calls of a run, so it is consumed under a lock."
+  [messages]
+  (if (fn? messages)
+    messages
+    (let [^Iterator messages (RT/iter messages)]
+      (fn []
+        (locking messages
+          (when (.hasNext messages)
+            (.next messages)))))))
+
+(defn load
+  "Generate load on a unary method for a duration, returning a report of the calls made.
+
+  `messages` is a function of no arguments returning each request message, or a
+  sequence of request messages. The run ends early when a sequence is exhausted.
+  Options are:
+    :mode            :closed-loop, each of :concurrency workers (default 16) starts its
+                     next call as soon as its previous call completes.
+                     :open-loop, calls start at a fixed :rate per second however many
+                     are outstanding. Latency is measured from when each call was due to
+                     start, so a client falling behind a slow server is not hidden.
+    :duration-millis Time calls are started for. Calls in flight are then waited for.
+
+  Calls are made through the non-blocking path. Responses are not converted to maps.
+  Invalid request messages are counted as INVALID_ARGUMENT calls.
+
+  Example report:
+  {:calls 29310 :elapsed-millis 10002 :throughput 2930.4
+   :status {:OK 29305 :UNAVAILABLE 5}
+   :latency-nanos {:count 29310 :min 270336 :max 9437183 :mean 540192.1 ...}
+   :request-bytes 351720 :response-bytes 351660}"
+  [client request messages options]
+  (let [{:keys [mode concurrency rate duration-millis]} (s/decode-load-options options)
+        request (if (string? request) {:method request} request)
+        request (s/decode-request request (:config client))
+        method-descriptor (get-method-descriptor client request)
+        _ (when (or (.isClientStreaming method-descriptor) (.isServerStreaming method-descriptor))
+            (throw (IllegalArgumentException.
+                     (str "Load can only be generated for unary methods, not " (.getFullName method-descriptor)))))
+        request-message-type (.getInputType method-descriptor)
+        method-metrics (method-metrics client method-descriptor)
+        encode (request-encoder client request request-message-type method-metrics)
+        settings (call-settings request)
+        next-message (message-source messages)
+        calls (reify Supplier
+                (get [_]
+                  (when-some [message (next-message)]
+                    (try
+                      (validate-message! client request request-message-type message method-metrics)
+                      (catch ExceptionInfo e
+                        (throw (-> Status/INVALID_ARGUMENT
+                                   (.withDescription (str (ex-message e) " " (:errors (ex-data e))))
+                                   (.withCause e)
+                                   (.asRuntimeException)))))
+                    (.callMethodAsync ^Client (:java-client client)
+                                      method-descriptor
+                                      (encode message)
+                                      settings))))
+        ^LoadGenerator$Report report (if (= :open-loop mode)
+                                       (LoadGenerator/openLoop (double rate) duration-millis calls)
+                                       (LoadGenerator/closedLoop (int concurrency) duration-millis calls))]
+    {:calls          (.getCalls report)
+     :elapsed-millis (quot (.getElapsedNanos report) 1000000)
+     :throughput     (.getThroughput report)
+     :status         (status-counts #(.getCalls report %))
+     :latency-nanos  (snapshot->clj (.getLatency report))
+     :request-bytes  (.getRequestBytes report)
+     :response-bytes (.getResponseBytes report)}))
+
 (comment
 
   (def test-client
     (client {:target "localhost:8006"
              :file-descriptor-set "target/test-file-descriptor-set.dsc"}))
 
+  (def reflection-client
+    (client {:target "localhost:8006"
+             :reflection true
+             :descriptor-cache "target/descriptor-cache.dsc"}))
+
   (methods test-client)
 
   (call test-client "naply.grpc_banter.EchoService/Echo" {:say "HelloWorld"})
 
+  (load test-client "naply.grpc_banter.EchoService/Echo" (constantly {:say "HelloWorld"})
+        {:mode :open-loop :rate 1000 :duration-millis 5000})
+
   )
 
@@ -5,11 +5,14 @@
                                 ByteString
                                 Internal$EnumLite
                                 MessageLite
-                                Descriptors$EnumValueDescriptor)
-           (java.util Map)
+                                Descriptors$EnumValueDescriptor
+                                DynamicMessage$Builder)
+           (java.util Map Map$Entry)
+           (java.util.concurrent ConcurrentHashMap)
            (io.grpc StatusRuntimeException Status)
-           (naply.grpc_banter MessageConverter)
-           (naply.grpc_banter.internal RpcResponse)))
+           (naply.grpc_banter MessageConverter WireCodec LazyMap$Shape)
+           (naply.grpc_banter.internal RpcResponse RpcResponse$MessageSizes RpcResponse$Attempts)
+           (clojure.lang IFn)))
 
 (declare Message->clj)
 (declare clj->Message)
@@ -22,6 +25,20 @@
   {:status {:code (-> status .getCode .name)
             :description (.getDescription status)}})
 
+(defn MessageSizes->clj
+  "Total bytes of the messages of a call, serialized and on the wire after compression."
+  [^RpcResponse$MessageSizes sizes]
+  {:request       (.getRequestBytes sizes)
+   :request-wire  (.getRequestWireBytes sizes)
+   :response      (.getResponseBytes sizes)
+   :response-wire (.getResponseWireBytes sizes)})
+
+(defn Attempts->clj
+  "The number of attempts of a call, and the 1-based attempt its response came from."
+  [^RpcResponse$Attempts attempts]
+  {:count   (.getCount attempts)
+   :winning (.getWinningAttempt attempts)})
+
 (defn field-mapper [config ^Descriptors$FieldDescriptor field-desc]
   (case (.name (.getJavaType field-desc))
     ;; Directly convert primitive types
@@ -40,6 +57,34 @@
 
     (throw (RuntimeException. (str "Unsupported field type" (.getJavaType field-desc))))))
 
+(defn primitive-array-class
+  "Return the primitive array class a repeated numeric or boolean field can be represented
+  as with :repeated-scalars-as-arrays, or nil for other field types."
+  [^Descriptors$FieldDescriptor f-desc]
+  (WireCodec/primitiveArrayClass f-desc))
+
+(defn- primitive-array-fn
+  "Return the function converting the values of a repeated numeric or boolean field to a
+  primitive array, or nil for other field types."
+  [^Descriptors$FieldDescriptor f-desc]
+  (case (.name (.getJavaType f-desc))
+    "INT" int-array
+    "LONG" long-array
+    "FLOAT" float-array
+    "DOUBLE" double-array
+    "BOOLEAN" boolean-array
+    nil))
+
+(defn- repeated-values-fn
+  "Return the function converting the values of a repeated field, each converted with f,
+  to their clojure form."
+  [config ^Descriptors$FieldDescriptor f-desc f]
+  (or (when (:repeated-scalars-as-arrays config)
+        (primitive-array-fn f-desc))
+      (if (identical? f identity)
+        vec
+        #(mapv f %))))
+
 (defn field-name [config f-desc]
   (if (:response-fields-as-keywords config)
     (keyword (.getName f-desc))
@@ -56,7 +101,7 @@
       (.isOptional f-desc) (when (.hasField message f-desc)
                              (f (.getField message f-desc)))
       (.isRequired f-desc) (f (.getField message f-desc))
-      (.isRepeated f-desc) (mapv f (.getField message f-desc))
+      (.isRepeated f-desc) ((repeated-values-fn config f-desc f) (.getField message f-desc))
       :else (throw (RuntimeException.
                      (format "Found field=[%s] label=[%s] that is neither optional,required,repeated"
                              (.getFullName f-desc)
@@ -77,6 +122,51 @@
       (transient {})
       (.getFields message-type))))
 
+(defn- raw-message->Message
+  [raw-message ^Descriptors$Descriptor message-type]
+  (if (instance? ByteString raw-message)
+    ;; Only parsed when requested for responses read with the wire codec
+    (DynamicMessage/parseFrom message-type ^ByteString raw-message)
+    raw-message))
+
+(def ^:private lazy-response-meta-shape
+  "The shape of response metadata converted on access, with or without the raw types.
+  The source of the map is a vector of the RpcResponse and the response message type."
+  (memoize
+    (fn [include-raw-types]
+      (let [response (fn [f] (fn [[^RpcResponse response _]] (f response)))
+            fields (cond-> [[:status (response #(:status (Status->clj (.getStatus ^RpcResponse %))))]
+                            [:headers (response #(MessageConverter/metadataToClj (.getHeaders ^RpcResponse %)))]
+                            [:trailers (response #(MessageConverter/metadataToClj (.getTrailers ^RpcResponse %)))]
+                            [:message-bytes (response #(MessageSizes->clj (.getMessageSizes ^RpcResponse %)))]
+                            [:attempts (response #(Attempts->clj (.getAttempts ^RpcResponse %)))]]
+                     include-raw-types
+                     (conj [:raw-message (fn [[^RpcResponse response message-type]]
+                                           (raw-message->Message (.getMessage response) message-type))]
+                           [:raw-headers (response #(.getHeaders ^RpcResponse %))]
+                           [:raw-trailers (response #(.getTrailers ^RpcResponse %))]
+                           [:raw-status (response #(.getStatus ^RpcResponse %))]))]
+        (LazyMap$Shape. (object-array (map first fields))
+                        (make-array IFn (count fields))
+                        (into-array IFn (map second fields)))))))
+
+(defn RpcResponse->metadata
+  "Return the metadata about the gRPC server response of a call, as attached to its
+  response map by `RpcResponse->clj`, without the raw message."
+  [config ^RpcResponse response]
+  (let [raw-headers (.getHeaders response)
+        raw-trailers (.getTrailers response)
+        raw-status (.getStatus response)]
+    (merge (Status->clj raw-status)
+           {:headers (MessageConverter/metadataToClj raw-headers)
+            :trailers (MessageConverter/metadataToClj raw-trailers)
+            :message-bytes (MessageSizes->clj (.getMessageSizes response))
+            :attempts (Attempts->clj (.getAttempts response))}
+           (when (:include-raw-types config)
+             {:raw-headers raw-headers
+              :raw-trailers raw-trailers
+              :raw-status raw-status}))))
+
 (defn RpcResponse->clj
   "Convert a RpcResponse containing the response from a gRPC server to a response map
   that is the protobuf response message with metadata about the gRPC server response.
@@ -84,28 +174,31 @@
   Example:
   ^{:status {:code \"OK\" :description nil}
     :headers {}
-    :trailers {}}
+    :trailers {}
+    :message-bytes {:request 12 :request-wire 12 :response 12 :response-wire 12}
+    :attempts {:count 1 :winning 1}}
   {:field1 \"value1\"
    :field2 123}
   "
-  [config
-   ^RpcResponse response
-   ^Descriptors$Descriptor message-type]
-  (let [raw-message (.getMessage response)
-        message (Message->clj config raw-message message-type)
-        raw-headers (.getHeaders response)
-        raw-trailers (.getTrailers response)
-        raw-status (.getStatus response)]
-    (with-meta
-      message
-      (merge (Status->clj raw-status)
-             {:headers (MessageConverter/metadataToClj raw-headers)
-              :trailers (MessageConverter/metadataToClj raw-trailers)}
-             (when (:include-raw-types config)
-               {:raw-message raw-message
-                :raw-headers raw-headers
-                :raw-trailers raw-trailers
-                :raw-status raw-status})))))
+  ([config
+    ^RpcResponse response
+    ^Descriptors$Descriptor message-type]
+   (RpcResponse->clj config response message-type #(Message->clj config % message-type)))
+  ([config
+    ^RpcResponse response
+    ^Descriptors$Descriptor message-type
+    message->clj]
+   (let [raw-message (.getMessage response)
+         message (message->clj raw-message)]
+     (with-meta
+       message
+       (if (:lazy-responses config)
+         (.create ^LazyMap$Shape (lazy-response-meta-shape (boolean (:include-raw-types config)))
+                  [response message-type]
+                  nil)
+         (cond-> (RpcResponse->metadata config response)
+           (:include-raw-types config)
+           (assoc :raw-message (raw-message->Message raw-message message-type))))))))
 
 (defn get-field-value
   "Return the value of a field if it exists on the map, else returns nil.
@@ -122,6 +215,14 @@
     (contains? message-map (.getIndex field-desc))
     (get message-map (.getIndex field-desc))))
 
+(defn- coercion-error [field-value java-type]
+  (RuntimeException.
+    (format "%s %s Cannot coerce field value of type [%s] to field type [%s]"
+            (instance? Boolean field-value)
+            field-value
+            (type field-value)
+            java-type)))
+
 (defn clj->field-value
   "Convert a clojure protobuf value to a type appropriate for the protobuf java implementation."
   [config
@@ -183,12 +284,7 @@
             (throw (RuntimeException.
                      (format "Unsupported field type [%s]" java-type))))]
       (when-not (some? value)
-        (throw (RuntimeException.
-                 (format "%s %s Cannot coerce field value of type [%s] to field type [%s]"
-                         (instance? Boolean field-value)
-                         field-value
-                         (type field-value)
-                         java-type))))
+        (throw (coercion-error field-value java-type)))
       value)))
 
 
@@ -197,12 +293,16 @@
                   ^Descriptors$FieldDescriptor f-desc]
   (cond
     (.isRepeated f-desc)
-    (mapv #(clj->field-value config % f-desc) (get-field-value message-map f-desc))
+    (let [values (get-field-value message-map f-desc)]
+      (if (some-> (primitive-array-class f-desc) (instance? values))
+        ;; Elements of a primitive array already have the field's java type
+        (vec values)
+        (mapv #(clj->field-value config % f-desc) values)))
     (.isOptional f-desc)
-    (when-let [field-value (get-field-value message-map f-desc)]
+    (when-some [field-value (get-field-value message-map f-desc)]
       (clj->field-value config field-value f-desc))
     :else
-    (if-let [field-value (get-field-value message-map f-desc)]
+    (if-some [field-value (get-field-value message-map f-desc)]
       (clj->field-value config field-value f-desc)
       (throw (RuntimeException.
                (format "Field [%s] is required but no value was supplied" f-desc))))))
@@ -218,6 +318,257 @@
       (.setField message-builder f-desc field-value))
     (.build message-builder)))
 
+;; Compiled converters
+;;
+;; The functions above interpret the message descriptor for every field of every message.
+;; The compilers below resolve the per-field logic once per message type and configuration,
+;; returning specialized functions that are cached in a converter cache held by the client.
+;; Fields that cannot be compiled fall back to the interpreter.
+
+(defn converter-cache
+  "Create an empty cache of compiled converters."
+  []
+  (ConcurrentHashMap.))
+
+(defn- cached [^ConcurrentHashMap cache k compile-fn]
+  (or (.get cache k)
+      (let [compiled (compile-fn)]
+        (or (.putIfAbsent cache k compiled) compiled))))
+
+(declare message-decoder)
+(declare message-encoder)
+
+(defn- compile-value-decoder
+  "Return a function converting a protobuf field value to its clojure form, or nil if
+  the field type cannot be compiled."
+  [cache config ^Descriptors$FieldDescriptor f-desc]
+  (case (.name (.getJavaType f-desc))
+    ("INT" "LONG" "FLOAT" "DOUBLE" "STRING" "BOOLEAN" "BYTE_STRING")
+    identity
+
+    "ENUM"
+    (let [->clj (if (:enums-as-keywords config)
+                  (fn [^Descriptors$EnumValueDescriptor enum] (keyword (.getName enum)))
+                  (fn [^Descriptors$EnumValueDescriptor enum] (.getName enum)))
+          known (into {} (map (juxt identity ->clj)) (.getValues (.getEnumType f-desc)))]
+      (fn [enum] (or (get known enum) (->clj enum))))
+
+    "MESSAGE"
+    (let [message-type (.getMessageType f-desc)
+          ;; Resolved on first use, message types may be recursive
+          decoder (delay (message-decoder cache config message-type))]
+      (fn [msg] (@decoder msg)))
+
+    nil))
+
+(defn- compile-field-decoder
+  "Return a function that adds the clojure value of the field on a message to a transient map.
+  As with `Message->clj`, fields set to false are left out."
+  [cache config ^Descriptors$FieldDescriptor f-desc]
+  (let [k (field-name config f-desc)
+        f (compile-value-decoder cache config f-desc)]
+    (cond
+      (nil? f)
+      (fn [^Message message m]
+        (if-let [value (field->clj config message f-desc)]
+          (assoc! m k value)
+          m))
+
+      (.isRepeated f-desc)
+      (let [->values (repeated-values-fn config f-desc f)]
+        (fn [^Message message m] (assoc! m k (->values (.getField message f-desc)))))
+
+      (.isOptional f-desc)
+      (fn [^Message message m]
+        (if-let [value (when (.hasField message f-desc)
+                         (f (.getField message f-desc)))]
+          (assoc! m k value)
+          m))
+
+      :else
+      (fn [^Message message m]
+        (if-let [value (f (.getField message f-desc))]
+          (assoc! m k value)
+          m)))))
+
+(defn- compile-lazy-field
+  "Return the key, present function, and value function of the field in a lazy map
+  over a message. A nil present function means the key is always present. As with
+  `Message->clj`, boolean fields set to false are not present."
+  [cache config ^Descriptors$FieldDescriptor f-desc]
+  (let [k (field-name config f-desc)
+        f (compile-value-decoder cache config f-desc)
+        boolean? (= "BOOLEAN" (.name (.getJavaType f-desc)))]
+    (cond
+      (nil? f)
+      [k
+       (fn [^Message message] (boolean (field->clj config message f-desc)))
+       (fn [^Message message] (field->clj config message f-desc))]
+
+      (.isRepeated f-desc)
+      (let [->values (repeated-values-fn config f-desc f)]
+        [k nil (fn [^Message message] (->values (.getField message f-desc)))])
+
+      (.isOptional f-desc)
+      [k
+       (if boolean?
+         (fn [^Message message] (and (.hasField message f-desc) (.getField message f-desc)))
+         (fn [^Message message] (.hasField message f-desc)))
+       (fn [^Message message] (f (.getField message f-desc)))]
+
+      :else
+      [k
+       (when boolean?
+         (fn [^Message message] (.getField message f-desc)))
+       (fn [^Message message] (f (.getField message f-desc)))])))
+
+(defn message-decoder
+  "Return a compiled function converting a protobuf message of the message type to a
+  clojure map, equivalent to `Message->clj`.
+
+  With :lazy-responses the map converts each field, including nested messages, on first
+  access rather than all at once."
+  [^ConcurrentHashMap cache config ^Descriptors$Descriptor message-type]
+  (let [config (select-keys config [:enums-as-keywords :response-fields-as-keywords :lazy-responses
+                                    :repeated-scalars-as-arrays])]
+    (cached cache [::decoder message-type config]
+            (fn []
+              (if (:lazy-responses config)
+                (let [fields (mapv #(compile-lazy-field cache config %) (.getFields message-type))
+                      shape (LazyMap$Shape. (object-array (map first fields))
+                                            (into-array IFn (map second fields))
+                                            (into-array IFn (map #(nth % 2) fields)))]
+                  (fn [^Message message]
+                    (.create shape message nil)))
+                (let [field-decoders (mapv #(compile-field-decoder cache config %)
+                                           (.getFields message-type))]
+                  (fn [^Message message]
+                    (persistent!
+                      (reduce (fn [m field-decoder] (field-decoder message m))
+                              (transient {})
+                              field-decoders)))))))))
+
+(defn- compile-value-encoder
+  "Return a function coercing a clojure value to the protobuf java type of the field,
+  or nil if the field type cannot be compiled."
+  [cache config ^Descriptors$FieldDescriptor f-desc]
+  (let [java-type (.name (.getJavaType f-desc))
+        coerce (case java-type
+                 "INT"
+                 (fn [v] (cond
+                           (instance? Long v) (.intValue ^Long v)
+                           (instance? Integer v) v))
+
+                 "LONG"
+                 (fn [v] (cond
+                           (instance? Long v) v
+                           (instance? Integer v) (.longValue ^Integer v)))
+
+                 "FLOAT"
+                 (fn [v] (when (instance? Number v) (.floatValue ^Number v)))
+
+                 "DOUBLE"
+                 (fn [v] (when (instance? Number v) (.doubleValue ^Number v)))
+
+                 "STRING"
+                 (fn [v] (when (instance? String v) v))
+
+                 "BOOLEAN"
+                 (fn [v] (when (instance? Boolean v) v))
+
+                 "BYTE_STRING"
+                 (fn [v] (when (or (bytes? v) (instance? ByteString v)) v))
+
+                 "ENUM"
+                 (let [enum-type (.getEnumType f-desc)
+                       by-name (into {}
+                                     (mapcat (fn [^Descriptors$EnumValueDescriptor v]
+                                               [[(.getName v) v] [(keyword (.getName v)) v]]))
+                                     (.getValues enum-type))]
+                   (fn [v] (cond
+                             (instance? Integer v) (.findValueByNumber enum-type (int v))
+                             (instance? Long v) (.findValueByNumber enum-type (.intValue ^Long v))
+                             (or (keyword? v) (string? v)) (get by-name v)
+                             (instance? Internal$EnumLite v) v)))
+
+                 "MESSAGE"
+                 (let [message-type (.getMessageType f-desc)
+                       encoder (delay (message-encoder cache config message-type))]
+                   (fn [v] (cond
+                             (instance? Map v) (@encoder v)
+                             (instance? MessageLite v) v)))
+
+                 nil)]
+    (when coerce
+      (fn [field-value]
+        (let [value (coerce field-value)]
+          (when-not (some? value)
+            (throw (coercion-error field-value java-type)))
+          value)))))
+
+(defn- compile-field-encoder
+  "Return a function that sets a clojure value for the field on a message builder."
+  [cache config ^Descriptors$FieldDescriptor f-desc]
+  (let [f (or (compile-value-encoder cache config f-desc)
+              #(clj->field-value config % f-desc))]
+    (if (.isRepeated f-desc)
+      (if-let [^Class array-class (primitive-array-class f-desc)]
+        (fn [^DynamicMessage$Builder builder value]
+          (.setField builder f-desc (if (.isInstance array-class value) (vec value) (mapv f value))))
+        (fn [^DynamicMessage$Builder builder value]
+          (.setField builder f-desc (mapv f value))))
+      (fn [^DynamicMessage$Builder builder value]
+        (.setField builder f-desc (f value))))))
+
+(def ^:private encoder-config-keys
+  "Configuration keys that change how messages are encoded. Encoders are compiled with, and
+  cached by, only these keys, so an encoder never reads configuration missing from its key."
+  [])
+
+(defn message-encoder
+  "Return a compiled function converting a clojure map to a protobuf message of the
+  message type, equivalent to `clj->Message`.
+
+  Rather than looking up every field of the message type in the map, each entry of the
+  map is resolved to its field by string name, keyword name, or field index."
+  [^ConcurrentHashMap cache config ^Descriptors$Descriptor message-type]
+  (let [config (select-keys config encoder-config-keys)]
+    (cached cache [::encoder message-type config]
+            (fn []
+              (let [fields (.getFields message-type)
+                    field-encoders (into {}
+                                         (mapcat (fn [^Descriptors$FieldDescriptor f-desc]
+                                                   (let [encoder (compile-field-encoder cache config f-desc)]
+                                                     [[(.getName f-desc) encoder]
+                                                      [(keyword (.getName f-desc)) encoder]
+                                                      [(.getIndex f-desc) encoder]])))
+                                         fields)
+                    required-fields (filterv #(.isRequired ^Descriptors$FieldDescriptor %) fields)]
+                (fn [message-map]
+                  (let [builder (DynamicMessage/newBuilder message-type)]
+                    (reduce (fn [_ ^Map$Entry entry]
+                              (let [v (.getValue entry)]
+                                (when (some? v)
+                                  (when-let [encoder (get field-encoders (.getKey entry))]
+                                    (encoder builder v)))))
+                            nil
+                            message-map)
+                    (doseq [^Descriptors$FieldDescriptor f-desc required-fields]
+                      (when-not (.hasField builder f-desc)
+                        (throw (RuntimeException.
+                                 (format "Field [%s] is required but no value was supplied" f-desc)))))
+                    (.build builder))))))))
+
+(defn wire-decoder
+  "Return a function converting a serialized message of the message type straight to a
+  clojure map, equivalent to `Message->clj` without building a protobuf message."
+  [^WireCodec codec config ^Descriptors$Descriptor message-type]
+  (let [enums-as-keywords (boolean (:enums-as-keywords config))
+        fields-as-keywords (boolean (:response-fields-as-keywords config))
+        repeated-scalars-as-arrays (boolean (:repeated-scalars-as-arrays config))]
+    (fn [^ByteString bytes]
+      (.decode codec bytes message-type enums-as-keywords fields-as-keywords repeated-scalars-as-arrays))))
+
 (defn StatusRuntimeException->exception-info
   [config ^StatusRuntimeException err]
   (let [raw-status (.getStatus err)
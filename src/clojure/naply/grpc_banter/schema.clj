@@ -2,9 +2,12 @@
   (:require [malli.core :as m]
             [malli.transform :as mt]
             [malli.util :as mu]
-            [malli.error :as me])
+            [malli.error :as me]
+            [naply.grpc-banter.converter :as c])
   (:import (com.google.protobuf Descriptors$Descriptor
-                                Descriptors$FieldDescriptor ByteString)))
+                                Descriptors$FieldDescriptor ByteString)
+           (io.grpc Status$Code)
+           (java.util.concurrent ConcurrentHashMap)))
 
 (def RequestConfigSchema
   [:map {:closed true}
@@ -12,14 +15,80 @@
    [:enums-as-keywords [:boolean {:default true}]]
    [:response-fields-as-keywords [:boolean {:default true}]]
    [:include-raw-types [:boolean {:default false}]]
-   [:optional-fields-required [:boolean {:default false}]]])
+   [:lazy-responses [:boolean {:default false}]]
+   [:repeated-scalars-as-arrays [:boolean {:default false}]]
+   [:optional-fields-required [:boolean {:default false}]]
+   [:stream-buffer-size [:int {:min 1 :default 16}]]
+   [:max-in-flight [:int {:min 1 :default 64}]]
+   [:cache {:optional true} :boolean]
+   [:coalesce [:boolean {:default false}]]
+   [:compression [:enum {:default :identity} :identity :gzip]]
+   [:compression-min-bytes [:int {:min 0 :default 1024}]]
+   [:codec [:enum {:default :dynamic-message} :dynamic-message :wire]]])
+
+(def StatusCodeSchema
+  (into [:enum] (map #(keyword (.name ^Status$Code %))) (Status$Code/values)))
+
+(def MethodConfigSchema
+  [:and
+   [:map {:closed true}
+    ;; Full method names, or service names for all methods of a service
+    [:methods [:sequential {:min 1} :string]]
+    [:retry {:optional true}
+     [:map {:closed true}
+      [:max-attempts [:int {:min 2 :default 3}]]
+      [:initial-backoff-millis [:int {:min 1 :default 100}]]
+      [:max-backoff-millis [:int {:min 1 :default 1000}]]
+      [:backoff-multiplier [:and {:default 2.0} number? [:> 0]]]
+      [:retryable-status-codes {:default [:UNAVAILABLE]} [:sequential {:min 1} StatusCodeSchema]]]]
+    [:hedging {:optional true}
+     [:map {:closed true}
+      [:max-attempts [:int {:min 2 :default 3}]]
+      [:hedging-delay-millis [:int {:min 0 :default 0}]]
+      [:non-fatal-status-codes {:default []} [:sequential StatusCodeSchema]]]]]
+   [:fn {:error/message "Only one of :retry or :hedging can be set"}
+    #(not (and (:retry %) (:hedging %)))]])
 
 (def ClientConfigSchema
-  (mu/merge
-    RequestConfigSchema
-    [:map {:closed true}
-     [:target :string]
-     [:file-descriptor-set :string]]))
+  (let [common (mu/merge
+                 RequestConfigSchema
+                 [:map {:closed true}
+                  ;; host:port or a name resolver URI over TCP, inprocess:<name> or unix:///<path>
+                  [:target :string]
+                  [:channel-count [:int {:min 1 :default 1}]]
+                  [:channel-selection [:enum {:default :round-robin} :round-robin :least-in-flight]]
+                  [:direct-executor [:boolean {:default false}]]
+                  [:executor-threads [:int {:min 0 :default 0}]]
+                  [:event-loop-threads [:int {:min 0 :default 0}]]
+                  [:keep-alive-time-millis {:optional true} [:int {:min 1}]]
+                  [:keep-alive-timeout-millis {:optional true} [:int {:min 1}]]
+                  [:keep-alive-without-calls [:boolean {:default false}]]
+                  [:flow-control-window {:optional true} [:int {:min 1 :max Integer/MAX_VALUE}]]
+                  [:max-inbound-message-size {:optional true} [:int {:min 1 :max Integer/MAX_VALUE}]]
+                  [:tls [:boolean {:default false}]]
+                  [:trust-cert-collection {:optional true} :string]
+                  [:client-cert-chain {:optional true} :string]
+                  [:client-key {:optional true} :string]
+                  [:metrics [:boolean {:default false}]]
+                  [:response-cache {:optional true}
+                   [:map {:closed true}
+                    [:max-entries [:int {:min 1 :default 1000}]]
+                    [:max-bytes {:optional true} [:int {:min 1}]]
+                    [:ttl-millis [:int {:min 1 :default 60000}]]
+                    [:key-headers {:default []} [:sequential [:or :keyword :string]]]
+                    [:methods {:default []} [:sequential :string]]]]
+                  [:method-config {:default []} [:sequential MethodConfigSchema]]
+                  [:record-file {:optional true} :string]
+                  [:record-queue-size [:int {:min 1 :default 8192}]]])]
+    [:multi {:dispatch #(true? (:reflection %))}
+     [false (mu/merge common
+              [:map {:closed true}
+               [:file-descriptor-set :string]
+               [:reflection {:optional true} [:= false]]])]
+     [true (mu/merge common
+             [:map {:closed true}
+              [:reflection [:= true]]
+              [:descriptor-cache {:optional true} :string]])]]))
 
 (def RequestSchema
   (let [common (mu/merge
@@ -37,6 +106,28 @@
                [:method :string]
                [:service :string]])]]))
 
+(def LoadOptionsSchema
+  (let [common [:map {:closed true}
+                [:duration-millis [:int {:min 1}]]]]
+    [:multi {:dispatch :mode}
+     [:closed-loop (mu/merge common
+                     [:map {:closed true}
+                      [:mode [:= :closed-loop]]
+                      [:concurrency [:int {:min 1 :default 16}]]])]
+     [:open-loop (mu/merge common
+                   [:map {:closed true}
+                    [:mode [:= :open-loop]]
+                    [:rate [:and number? [:> 0]]]])]]))
+
+(def ReplayOptionsSchema
+  [:map {:closed true}
+   [:speed [:and {:default 1.0} number? [:>= 0]]]
+   [:max-in-flight [:int {:min 1 :default 64}]]
+   [:max-differences [:int {:min 0 :default 10}]]
+   [:deadline-millis {:optional true} [:int {:min 1}]]
+   [:headers {:default {}} [:map-of
+                            [:or :keyword :string]
+                            [:or :string [:* :string] bytes? [:* bytes?]]]]])
 
 (defn- decode-config
   "Return the configuration with defaults applied. Throw if the config does not conform."
@@ -48,6 +139,8 @@
     config))
 
 (def decode-client-config (partial decode-config ClientConfigSchema))
+(def decode-load-options (partial decode-config LoadOptionsSchema))
+(def decode-replay-options (partial decode-config ReplayOptionsSchema))
 (defn decode-request [request client-config]
   ;; Ignoring output with defaults, we only want to validate
   (decode-config RequestSchema request)
@@ -92,7 +185,16 @@
   [config ^Descriptors$FieldDescriptor f-desc]
   (cond
     (.isRepeated f-desc)
-    [(.getName f-desc) [:sequential (create-type-schema config f-desc)]]
+    [(.getName f-desc)
+     (let [values-schema [:sequential (create-type-schema config f-desc)]
+           ^Class array-class (when (:repeated-scalars-as-arrays config)
+                                (c/primitive-array-class f-desc))]
+       (if array-class
+         ;; Arrays are checked by type only, their elements are never boxed to be validated
+         [:or values-schema [:fn
+                             {:error/message (str "Should be a sequence or " (.getSimpleName array-class) " array")}
+                             #(.isInstance array-class %)]]
+         values-schema))]
 
     (and (.isOptional f-desc)
          (not (:optional-fields-required config)))
@@ -107,14 +209,48 @@
         (map #(create-field-schema config %)
              (.getFields descriptor))))
 
-(defn validate [^Descriptors$Descriptor descriptor config proto]
-  (let [Schema (create-message-schema config descriptor)]
-    (me/humanize
-      (m/explain Schema
-                 (m/decode Schema proto
-                           ;; Turn all :keyword keys to strings
-                           (mt/key-transformer {:decode name})))
-      {:errors custom-errors})))
+(def ^:private validator-config-keys
+  "Configuration keys that change the generated message schema."
+  [:optional-fields-required :repeated-scalars-as-arrays])
+
+(defn- compile-message-validator
+  "Return the compiled decoder, validator and explainer for a message type."
+  [^Descriptors$Descriptor descriptor validator-config]
+  (let [Schema (m/schema (create-message-schema validator-config descriptor))]
+    {:decode  (m/decoder Schema
+                         ;; Turn all :keyword keys to strings
+                         (mt/key-transformer {:decode name}))
+     :valid?  (m/validator Schema)
+     :explain (m/explainer Schema)}))
+
+(defn validator-cache
+  "Create an empty cache of compiled validators. Compiling a schema walks the whole
+  descriptor tree, so validators are cached per descriptor and relevant configuration.
+  The cache is owned by a client, so it is released with the client and its descriptors."
+  []
+  (ConcurrentHashMap.))
+
+(defn- cached-message-validator
+  [^ConcurrentHashMap cache descriptor validator-config]
+  (let [k [descriptor validator-config]]
+    (or (.get cache k)
+        (let [compiled (compile-message-validator descriptor validator-config)]
+          (or (.putIfAbsent cache k compiled) compiled)))))
+
+(defn validate
+  "Validate the proto map against the schema of the message type. Returns nil when valid,
+  the humanized errors otherwise. Validators are compiled for each call unless a cache
+  from `validator-cache` is given."
+  ([^Descriptors$Descriptor descriptor config proto]
+   (validate nil descriptor config proto))
+  ([cache ^Descriptors$Descriptor descriptor config proto]
+   (let [validator-config (select-keys config validator-config-keys)
+         {:keys [decode valid? explain]} (if cache
+                                           (cached-message-validator cache descriptor validator-config)
+                                           (compile-message-validator descriptor validator-config))
+         decoded (decode proto)]
+     (when-not (valid? decoded)
+       (me/humanize (explain decoded) {:errors custom-errors})))))
 
 (comment
   (do
@@ -0,0 +1,179 @@
+package naply.grpc_banter;
+
+import io.grpc.Metadata;
+
+import javax.annotation.Nullable;
+
+/**
+ * Per-call settings for calls made through a {@link Client}.
+ */
+public final class CallSettings {
+
+    /**
+     * How messages are converted to and from the wire format.
+     */
+    public enum Codec {
+        /** Requests and responses are {@link com.google.protobuf.DynamicMessage}s. */
+        DYNAMIC_MESSAGE,
+        /**
+         * Requests may also be clojure maps, written directly to the wire by {@link WireCodec}.
+         * Responses are the serialized {@link com.google.protobuf.ByteString}, to be decoded
+         * by the caller.
+         */
+        WIRE
+    }
+
+    private final Metadata headers;
+    private final long deadlineMillis;
+    private final Codec codec;
+    private final int streamBufferSize;
+    private final Boolean cacheResponse;
+    private final boolean coalesce;
+    private final String compression;
+    private final int compressionMinBytes;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private CallSettings(
+            Metadata headers,
+            long deadlineMillis,
+            Codec codec,
+            int streamBufferSize,
+            Boolean cacheResponse,
+            boolean coalesce,
+            String compression,
+            int compressionMinBytes) {
+        this.headers = headers;
+        this.deadlineMillis = deadlineMillis;
+        this.codec = codec;
+        this.streamBufferSize = streamBufferSize;
+        this.cacheResponse = cacheResponse;
+        this.coalesce = coalesce;
+        this.compression = compression;
+        this.compressionMinBytes = compressionMinBytes;
+    }
+
+    public Metadata getHeaders() {
+        return headers;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public int getStreamBufferSize() {
+        return streamBufferSize;
+    }
+
+    /**
+     * Whether the response of a unary call is served from and stored in the client's response
+     * cache, or null to cache only the methods the cache is configured for.
+     */
+    @Nullable
+    public Boolean getCacheResponse() {
+        return cacheResponse;
+    }
+
+    /**
+     * Whether a unary call shares the call in flight of an identical call, with the same method,
+     * codec, serialized request and headers, instead of starting its own.
+     */
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * Name of the compressor requests are sent with, such as "gzip", or null to send requests
+     * uncompressed.
+     */
+    @Nullable
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * Requests smaller than this many bytes are sent uncompressed, as compressing them costs
+     * more than it saves.
+     */
+    public int getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    /**
+     * A builder starting from these settings.
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .headers(headers)
+                .deadlineMillis(deadlineMillis)
+                .codec(codec)
+                .streamBufferSize(streamBufferSize)
+                .cacheResponse(cacheResponse)
+                .coalesce(coalesce)
+                .compression(compression)
+                .compressionMinBytes(compressionMinBytes);
+    }
+
+    public static class Builder {
+        private Metadata headers = new Metadata();
+        private long deadlineMillis = 30000;
+        private Codec codec = Codec.DYNAMIC_MESSAGE;
+        private int streamBufferSize = 16;
+        private Boolean cacheResponse;
+        private boolean coalesce = false;
+        private String compression;
+        private int compressionMinBytes = 0;
+
+        public Builder headers(Metadata headers) {
+            this.headers = headers;
+            return this;
+        }
+
+        public Builder deadlineMillis(long deadlineMillis) {
+            this.deadlineMillis = deadlineMillis;
+            return this;
+        }
+
+        public Builder codec(Codec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        public Builder streamBufferSize(int streamBufferSize) {
+            this.streamBufferSize = streamBufferSize;
+            return this;
+        }
+
+        public Builder cacheResponse(Boolean cacheResponse) {
+            this.cacheResponse = cacheResponse;
+            return this;
+        }
+
+        public Builder coalesce(boolean coalesce) {
+            this.coalesce = coalesce;
+            return this;
+        }
+
+        public Builder compression(String compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        public Builder compressionMinBytes(int compressionMinBytes) {
+            this.compressionMinBytes = compressionMinBytes;
+            return this;
+        }
+
+        public CallSettings build() {
+            return new CallSettings(
+                    headers, deadlineMillis, codec, streamBufferSize, cacheResponse, coalesce,
+                    compression, compressionMinBytes);
+        }
+    }
+}
@@ -1,91 +1,816 @@
 package naply.grpc_banter;
 
-import com.google.protobuf.Descriptors;
-import com.google.protobuf.DynamicMessage;
-import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.protobuf.Parser;
+import com.google.protobuf.*;
 import io.grpc.*;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.unix.DomainSocketAddress;
 import io.grpc.stub.ClientCalls;
+import naply.grpc_banter.internal.CallCoalescer;
+import naply.grpc_banter.internal.CallMetrics;
+import naply.grpc_banter.internal.CallRecorder;
+import naply.grpc_banter.internal.ChannelPool;
+import naply.grpc_banter.internal.MarshallerStreams;
+import naply.grpc_banter.internal.MethodMetrics;
+import naply.grpc_banter.internal.RequestKey;
+import naply.grpc_banter.internal.ResponseCache;
 import naply.grpc_banter.internal.RpcResponse;
 import naply.grpc_banter.internal.ServerMetadataInterceptor;
+import naply.grpc_banter.internal.StreamingCall;
+import naply.grpc_banter.internal.UnaryCallFuture;
 
 import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class Client implements Closeable {
 
-    private final ManagedChannel channel;
+    private static final String IN_PROCESS_SCHEME = "inprocess:";
+    private static final String UNIX_SCHEME = "unix:";
+
+    private final ChannelPool channels;
+    private final Channel interceptedChannel;
+    // Resources owned by the client, shut down after the channels when it is closed
+    private final List<Runnable> resourceShutdowns;
+    private final CallMetrics metrics;
+    private final ResponseCache responseCache;
+    private final Set<String> responseCacheMethods;
+    private final CallCoalescer coalescer = new CallCoalescer();
+    private final CallRecorder recorder;
+    private final WireCodec wireCodec;
+    private final ConcurrentMap<Descriptors.MethodDescriptor, CallPlan> callPlans = new ConcurrentHashMap<>();
 
     public static Client create(String target) {
-        ManagedChannel channel = ManagedChannelBuilder.forTarget(target)
-                .usePlaintext()
-                .build();
-        return new Client(channel);
+        return create(ClientConfig.builder().target(target).build());
+    }
+
+    /**
+     * Create a client with a pool of {@link ClientConfig#getChannelCount()} channels to the
+     * target, sharing one executor and event loop.
+     * <p>
+     * The transport is selected by the target. {@code inprocess:<name>} targets a server in the
+     * same JVM through the in-process transport, and {@code unix:<path>} or
+     * {@code unix:///<path>} a Unix domain socket through the epoll transport. Other targets
+     * connect over TCP.
+     */
+    public static Client create(ClientConfig config) {
+        List<Runnable> resourceShutdowns = new ArrayList<>();
+        EventLoopGroup eventLoopGroup = null;
+        if (config.getTarget().startsWith(UNIX_SCHEME)) {
+            // Domain sockets need an epoll event loop, where TCP channels use the default one
+            if (!Epoll.isAvailable()) {
+                throw new RuntimeException("Unix domain socket targets require epoll", Epoll.unavailabilityCause());
+            }
+            EventLoopGroup group = new EpollEventLoopGroup(config.getEventLoopThreads());
+            resourceShutdowns.add(() -> group.shutdownGracefully(0, 1, TimeUnit.SECONDS));
+            eventLoopGroup = group;
+        } else if (config.getEventLoopThreads() > 0) {
+            EventLoopGroup group = new NioEventLoopGroup(config.getEventLoopThreads());
+            resourceShutdowns.add(() -> group.shutdownGracefully(0, 1, TimeUnit.SECONDS));
+            eventLoopGroup = group;
+        }
+        ExecutorService executor = null;
+        if (!config.isDirectExecutor() && config.getExecutorThreads() > 0) {
+            ExecutorService service = Executors.newFixedThreadPool(config.getExecutorThreads());
+            resourceShutdowns.add(service::shutdown);
+            executor = service;
+        }
+        ChannelCredentials credentials = channelCredentials(config);
+        List<ManagedChannel> channels = new ArrayList<>(config.getChannelCount());
+        for (int i = 0; i < config.getChannelCount(); i++) {
+            channels.add(buildChannel(config, credentials, eventLoopGroup, executor));
+        }
+        WireCodec wireCodec = new WireCodec();
+        return new Client(
+                new ChannelPool(channels, config.getChannelSelection() == ClientConfig.ChannelSelection.LEAST_IN_FLIGHT),
+                resourceShutdowns,
+                config.isMetrics() ? new CallMetrics() : null,
+                responseCache(config),
+                config.getResponseCacheMethods(),
+                recorder(config, wireCodec),
+                wireCodec);
+    }
+
+    private static ManagedChannel buildChannel(
+            ClientConfig config,
+            ChannelCredentials credentials,
+            EventLoopGroup eventLoopGroup,
+            ExecutorService executor) {
+        String target = config.getTarget();
+        ManagedChannelBuilder<?> builder = target.startsWith(IN_PROCESS_SCHEME)
+                ? InProcessChannelBuilder.forName(target.substring(IN_PROCESS_SCHEME.length()))
+                : nettyChannelBuilder(config, credentials, eventLoopGroup);
+        if (config.isDirectExecutor()) {
+            builder.directExecutor();
+        } else if (executor != null) {
+            builder.executor(executor);
+        }
+        if (config.getServiceConfig() != null) {
+            builder.defaultServiceConfig(config.getServiceConfig())
+                    .enableRetry()
+                    .maxRetryAttempts(Integer.MAX_VALUE)
+                    .maxHedgedAttempts(Integer.MAX_VALUE);
+        }
+        if (config.getMaxInboundMessageSize() != null) {
+            builder.maxInboundMessageSize(config.getMaxInboundMessageSize());
+        }
+        return builder.build();
+    }
+
+    /**
+     * A builder of a channel over TCP or a Unix domain socket, with the options of the
+     * connection that do not apply to in-process channels.
+     */
+    private static NettyChannelBuilder nettyChannelBuilder(
+            ClientConfig config,
+            ChannelCredentials credentials,
+            EventLoopGroup eventLoopGroup) {
+        String target = config.getTarget();
+        NettyChannelBuilder builder;
+        if (target.startsWith(UNIX_SCHEME)) {
+            builder = NettyChannelBuilder.forAddress(domainSocketAddress(target), credentials)
+                    .eventLoopGroup(eventLoopGroup)
+                    .channelType(EpollDomainSocketChannel.class);
+        } else {
+            builder = NettyChannelBuilder.forTarget(target, credentials);
+            if (eventLoopGroup != null) {
+                builder.eventLoopGroup(eventLoopGroup).channelType(NioSocketChannel.class);
+            }
+        }
+        if (config.getKeepAliveTimeMillis() != null) {
+            builder.keepAliveTime(config.getKeepAliveTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (config.getKeepAliveTimeoutMillis() != null) {
+            builder.keepAliveTimeout(config.getKeepAliveTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        builder.keepAliveWithoutCalls(config.isKeepAliveWithoutCalls());
+        if (config.getFlowControlWindow() != null) {
+            builder.flowControlWindow(config.getFlowControlWindow());
+        }
+        return builder;
+    }
+
+    /**
+     * The socket of a {@code unix:<path>} or {@code unix:///<path>} target.
+     */
+    private static DomainSocketAddress domainSocketAddress(String target) {
+        String path = target.substring(UNIX_SCHEME.length());
+        if (path.startsWith("//")) {
+            path = path.substring(2);
+        }
+        return new DomainSocketAddress(path);
+    }
+
+    private static ChannelCredentials channelCredentials(ClientConfig config) {
+        if (!config.isTls()) {
+            return InsecureChannelCredentials.create();
+        }
+        TlsChannelCredentials.Builder tls = TlsChannelCredentials.newBuilder();
+        try {
+            if (config.getTrustCertCollection() != null) {
+                tls.trustManager(new File(config.getTrustCertCollection()));
+            }
+            if (config.getClientCertChain() != null) {
+                tls.keyManager(new File(config.getClientCertChain()), new File(config.getClientKey()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read TLS certificates", e);
+        }
+        return tls.build();
+    }
+
+    private static ResponseCache responseCache(ClientConfig config) {
+        if (config.getResponseCacheMaxEntries() == 0) {
+            return null;
+        }
+        return new ResponseCache(
+                config.getResponseCacheMaxEntries(),
+                config.getResponseCacheMaxBytes() == null ? Long.MAX_VALUE : config.getResponseCacheMaxBytes(),
+                config.getResponseCacheTtlMillis(),
+                config.getResponseCacheKeyHeaders());
+    }
+
+    private static CallRecorder recorder(ClientConfig config, WireCodec wireCodec) {
+        if (config.getRecordFile() == null) {
+            return null;
+        }
+        try {
+            return new CallRecorder(Paths.get(config.getRecordFile()), config.getRecordQueueSize(), wireCodec);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open record file", e);
+        }
     }
 
     public Client(ManagedChannel managedChannel) {
-        this.channel = managedChannel;
+        this(new ChannelPool(Collections.singletonList(managedChannel), false), Collections.emptyList(),
+                null, null, Collections.emptySet(), null, new WireCodec());
+    }
+
+    private Client(
+            ChannelPool channels,
+            List<Runnable> resourceShutdowns,
+            CallMetrics metrics,
+            ResponseCache responseCache,
+            Set<String> responseCacheMethods,
+            CallRecorder recorder,
+            WireCodec wireCodec) {
+        this.channels = channels;
+        this.interceptedChannel = ClientInterceptors.intercept(channels, new ServerMetadataInterceptor());
+        this.resourceShutdowns = resourceShutdowns;
+        this.metrics = metrics;
+        this.responseCache = responseCache;
+        this.responseCacheMethods = responseCacheMethods;
+        this.recorder = recorder;
+        this.wireCodec = wireCodec;
+    }
+
+    /**
+     * The channel calls of this client are made on, for services used alongside the client
+     * such as server reflection.
+     */
+    public Channel getChannel() {
+        return channels;
+    }
+
+    /**
+     * Metrics of every method called, or null if the client does not record metrics.
+     */
+    public CallMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Metrics of the method, for recording the phases of calls outside of the client, or null
+     * if the client does not record metrics.
+     */
+    public MethodMetrics getMethodMetrics(Descriptors.MethodDescriptor methodDescriptor) {
+        return callPlan(methodDescriptor).metrics;
+    }
+
+    /**
+     * The cache of unary responses, or null if the client has no response cache.
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * The codec clojure map messages of this client's calls are converted with.
+     */
+    public WireCodec getWireCodec() {
+        return wireCodec;
+    }
+
+    /**
+     * The recorder of unary calls, or null if the client does not record calls.
+     */
+    public CallRecorder getRecorder() {
+        return recorder;
+    }
+
+    public RpcResponse callMethod(
+            Descriptors.MethodDescriptor methodDescriptor,
+            Object message,
+            CallSettings settings)
+            throws StatusRuntimeException {
+        if (settings.isCoalesce()) {
+            return awaitResponse(callMethodAsync(methodDescriptor, message, settings));
+        }
+        CallPlan plan = unaryCallPlan(methodDescriptor);
+        MarshallerStreams.SerializedRequest cachedRequest = cachedRequest(plan, message, settings);
+        RequestKey cacheKey = cachedRequest == null ? null : cacheKey(plan, cachedRequest, settings);
+        if (cacheKey != null) {
+            RpcResponse cached = responseCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+            message = cachedRequest;
+        }
+        message = sizedRequest(plan, message, settings);
+        RpcResponse.Builder responseBuilder = RpcResponse.builder();
+        long startNanos = recorder == null ? 0 : System.nanoTime();
+        Object responseMessage;
+        try {
+            responseMessage = ClientCalls.blockingUnaryCall(
+                    plan.channel,
+                    plan.grpcMethodDescriptor(settings.getCodec()),
+                    callOptions(plan, responseBuilder, settings),
+                    message);
+        } catch (StatusRuntimeException e) {
+            if (recorder != null) {
+                record(plan, message, settings, startNanos, null, e);
+            }
+            throw e;
+        }
+        RpcResponse response = responseBuilder.message(responseMessage).build();
+        if (recorder != null) {
+            record(plan, message, settings, startNanos, response, null);
+        }
+        if (cacheKey != null) {
+            cacheResponse(cacheKey, response);
+        }
+        return response;
     }
 
+    /**
+     * @deprecated use {@link #callMethod(Descriptors.MethodDescriptor, Object, CallSettings)}
+     */
+    @Deprecated
     public RpcResponse callMethod(
             Descriptors.MethodDescriptor methodDescriptor,
             DynamicMessage message,
             Metadata headers,
             long deadlineMilliseconds)
             throws StatusRuntimeException {
-        MethodDescriptor<DynamicMessage, DynamicMessage> grpcMethodDescriptor = grpcMethodDescriptor(methodDescriptor);
-        if (MethodDescriptor.MethodType.UNARY.equals(grpcMethodDescriptor.getType())) {
-            RpcResponse.Builder responseBuilder = RpcResponse.builder();
-            Channel finalChannel = ClientInterceptors.intercept(
-                    channel,
-                    new ServerMetadataInterceptor(responseBuilder, headers));
-            CallOptions callOptions = CallOptions.DEFAULT
-                    .withDeadlineAfter(deadlineMilliseconds, TimeUnit.MILLISECONDS);
-            DynamicMessage responseMessage = ClientCalls.blockingUnaryCall(
-                    finalChannel,
-                    grpcMethodDescriptor,
-                    callOptions,
-                    message);
-            return responseBuilder.message(responseMessage).build();
+        return callMethod(methodDescriptor, message, settings(headers, deadlineMilliseconds).build());
+    }
+
+    /**
+     * Call a unary method without blocking the calling thread. The returned future completes
+     * with the response, or exceptionally with a {@link StatusRuntimeException} when the server
+     * responds with an error. Cancelling the future cancels the call.
+     */
+    public CompletableFuture<RpcResponse> callMethodAsync(
+            Descriptors.MethodDescriptor methodDescriptor,
+            Object message,
+            CallSettings settings) {
+        CallPlan plan = unaryCallPlan(methodDescriptor);
+        MarshallerStreams.SerializedRequest cachedRequest = cachedRequest(plan, message, settings);
+        RequestKey cacheKey = cachedRequest == null ? null : cacheKey(plan, cachedRequest, settings);
+        if (cacheKey != null) {
+            RpcResponse cached = responseCache.get(cacheKey);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+            message = cachedRequest;
+        }
+        CompletableFuture<RpcResponse> future;
+        if (settings.isCoalesce()) {
+            Object request = cachedRequest != null ? cachedRequest : serializedRequest(plan, message);
+            RequestKey key = RequestKey.ofAllHeaders(
+                    plan.fullMethodName, settings.getCodec(), MarshallerStreams.serialize(request, null, wireCodec),
+                    settings.getHeaders());
+            future = coalescer.call(key, settings.getDeadlineMillis(), () -> startUnaryCall(plan, request, settings));
         } else {
-            throw new RuntimeException(String.format("Method type=[%s] is not supported", grpcMethodDescriptor.getType()));
+            future = startUnaryCall(plan, sizedRequest(plan, message, settings), settings);
+        }
+        if (cacheKey != null) {
+            future.thenAccept(response -> cacheResponse(cacheKey, response));
         }
+        return future;
     }
 
-    private static MethodDescriptor<DynamicMessage, DynamicMessage> grpcMethodDescriptor(Descriptors.MethodDescriptor methodDescriptor) {
-        return MethodDescriptor.<DynamicMessage, DynamicMessage>newBuilder()
-                // TODO, infer type from method descriptor? Should streaming be supported?
-                .setType(MethodDescriptor.MethodType.UNARY)
-                .setFullMethodName(methodDescriptor.getService().getFullName() + "/" + methodDescriptor.getName())
-                .setRequestMarshaller(buildDynamicMarshaller(methodDescriptor.getInputType()))
-                .setResponseMarshaller(buildDynamicMarshaller(methodDescriptor.getOutputType()))
+    /**
+     * @deprecated use {@link #callMethodAsync(Descriptors.MethodDescriptor, Object, CallSettings)}
+     */
+    @Deprecated
+    public CompletableFuture<RpcResponse> callMethodAsync(
+            Descriptors.MethodDescriptor methodDescriptor,
+            DynamicMessage message,
+            Metadata headers,
+            long deadlineMilliseconds) {
+        return callMethodAsync(methodDescriptor, message, settings(headers, deadlineMilliseconds).build());
+    }
+
+    /**
+     * Settings of the calls made through the deprecated methods, which always use the
+     * {@link CallSettings.Codec#DYNAMIC_MESSAGE} codec.
+     */
+    private static CallSettings.Builder settings(Metadata headers, long deadlineMilliseconds) {
+        return CallSettings.builder()
+                .headers(headers)
+                .deadlineMillis(deadlineMilliseconds);
+    }
+
+    private UnaryCallFuture<Object, Object> startUnaryCall(CallPlan plan, Object message, CallSettings settings) {
+        RpcResponse.Builder responseBuilder = RpcResponse.builder();
+        ClientCall<Object, Object> call = plan.channel.newCall(
+                plan.grpcMethodDescriptor(settings.getCodec()),
+                callOptions(plan, responseBuilder, settings));
+        UnaryCallFuture<Object, Object> future = new UnaryCallFuture<>(call, responseBuilder);
+        if (recorder != null) {
+            long startNanos = System.nanoTime();
+            future.whenComplete((response, error) -> record(plan, message, settings, startNanos, response, error));
+        }
+        return future.start(message);
+    }
+
+    private void record(
+            CallPlan plan,
+            Object message,
+            CallSettings settings,
+            long startNanos,
+            RpcResponse response,
+            Throwable error) {
+        Status status = error != null
+                ? Status.fromThrowable(error)
+                : response.getStatus() != null ? response.getStatus() : Status.OK;
+        recorder.record(
+                plan.fullMethodName, plan.inputType, message, settings.getHeaders(), startNanos,
+                response == null ? null : response.getMessage(), status);
+    }
+
+    /**
+     * Serialize a clojure map request when messages smaller than a threshold are sent
+     * uncompressed, as its size is only known once serialized. The time spent serializing is
+     * recorded when the marshaller writes the serialized request.
+     */
+    private Object sizedRequest(CallPlan plan, Object message, CallSettings settings) {
+        if (settings.getCompression() == null
+                || settings.getCompressionMinBytes() <= 0
+                || message instanceof MessageLite
+                || message instanceof ByteString
+                || message instanceof MarshallerStreams.SerializedRequest) {
+            return message;
+        }
+        return serializedRequest(plan, message);
+    }
+
+    /**
+     * Serialize the request, keeping the time spent to be recorded when the marshaller writes it.
+     */
+    private MarshallerStreams.SerializedRequest serializedRequest(CallPlan plan, Object message) {
+        long start = plan.metrics == null ? 0 : System.nanoTime();
+        ByteString bytes = MarshallerStreams.serialize(message, plan.inputType, wireCodec);
+        return new MarshallerStreams.SerializedRequest(bytes, plan.metrics == null ? 0 : System.nanoTime() - start);
+    }
+
+    /**
+     * Block for the response, throwing the {@link StatusRuntimeException} of a failed call as
+     * a blocking call does.
+     */
+    private static RpcResponse awaitResponse(CompletableFuture<RpcResponse> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withDescription("Thread interrupted").withCause(e).asRuntimeException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw Status.UNKNOWN.withCause(cause).asRuntimeException();
+        }
+    }
+
+    /**
+     * The request serialized for its response cache key, or null if its response is not cached.
+     * On a cache miss the serialized request is sent, so the time spent serializing it is still
+     * recorded as its serialization.
+     */
+    private MarshallerStreams.SerializedRequest cachedRequest(CallPlan plan, Object message, CallSettings settings) {
+        if (responseCache == null) {
+            return null;
+        }
+        boolean cached = settings.getCacheResponse() != null ? settings.getCacheResponse() : plan.cacheByDefault;
+        return cached ? serializedRequest(plan, message) : null;
+    }
+
+    private RequestKey cacheKey(CallPlan plan, MarshallerStreams.SerializedRequest request, CallSettings settings) {
+        return responseCache.key(plan.fullMethodName, settings.getCodec(), request.getBytes(), settings.getHeaders());
+    }
+
+    private void cacheResponse(RequestKey cacheKey, RpcResponse response) {
+        Object message = response.getMessage();
+        long size = message instanceof MessageLite
+                ? ((MessageLite) message).getSerializedSize()
+                : ((ByteString) message).size();
+        responseCache.put(cacheKey, response, size);
+    }
+
+    /**
+     * Call a method of any type, sending requests as the transport becomes ready and receiving
+     * responses as they are consumed from the returned {@link StreamingCall}. At most
+     * {@link CallSettings#getStreamBufferSize()} responses are buffered by the client. The
+     * deadline applies to the whole stream.
+     */
+    public StreamingCall<Object, Object> callStreamingMethod(
+            Descriptors.MethodDescriptor methodDescriptor,
+            Iterator<?> requests,
+            CallSettings settings) {
+        CallPlan plan = callPlan(methodDescriptor);
+        RpcResponse.Builder responseBuilder = RpcResponse.builder();
+        MethodDescriptor<Object, Object> grpcMethodDescriptor = plan.grpcMethodDescriptor(settings.getCodec());
+        ClientCall<Object, Object> call = plan.channel.newCall(
+                grpcMethodDescriptor,
+                callOptions(plan, responseBuilder, settings));
+        boolean clientStreaming = !grpcMethodDescriptor.getType().clientSendsOneMessage();
+        if (settings.getCompression() != null && settings.getCompressionMinBytes() > 0) {
+            Iterator<?> messages = requests;
+            requests = new Iterator<Object>() {
+                @Override
+                public boolean hasNext() {
+                    return messages.hasNext();
+                }
+
+                @Override
+                public Object next() {
+                    return sizedRequest(plan, messages.next(), settings);
+                }
+            };
+        }
+        return new StreamingCall<>(call, requests, responseBuilder, settings.getStreamBufferSize(), clientStreaming).start();
+    }
+
+    /**
+     * @deprecated use {@link #callStreamingMethod(Descriptors.MethodDescriptor, Iterator, CallSettings)}
+     */
+    @Deprecated
+    @SuppressWarnings("unchecked")
+    public StreamingCall<DynamicMessage, DynamicMessage> callStreamingMethod(
+            Descriptors.MethodDescriptor methodDescriptor,
+            Iterator<DynamicMessage> requests,
+            Metadata headers,
+            long deadlineMilliseconds,
+            int bufferSize) {
+        // Responses of the dynamic message codec are always DynamicMessages
+        return (StreamingCall<DynamicMessage, DynamicMessage>) (StreamingCall<?, ?>) callStreamingMethod(
+                methodDescriptor,
+                requests,
+                settings(headers, deadlineMilliseconds).streamBufferSize(bufferSize).build());
+    }
+
+    private static CallOptions callOptions(CallPlan plan, RpcResponse.Builder responseBuilder, CallSettings settings) {
+        CallOptions callOptions = CallOptions.DEFAULT
+                .withOption(ServerMetadataInterceptor.RESPONSE_BUILDER, responseBuilder)
+                .withOption(ServerMetadataInterceptor.REQUEST_HEADERS, settings.getHeaders())
+                .withDeadlineAfter(settings.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+        if (plan.metrics != null) {
+            callOptions = callOptions.withOption(ServerMetadataInterceptor.METHOD_METRICS, plan.metrics);
+        }
+        if (settings.getCompression() != null) {
+            callOptions = callOptions.withCompression(settings.getCompression());
+            if (settings.getCompressionMinBytes() > 0) {
+                callOptions = callOptions.withOption(
+                        ServerMetadataInterceptor.COMPRESSION_MIN_BYTES, settings.getCompressionMinBytes());
+            }
+        }
+        return callOptions;
+    }
+
+    private CallPlan unaryCallPlan(Descriptors.MethodDescriptor methodDescriptor) {
+        CallPlan plan = callPlan(methodDescriptor);
+        MethodDescriptor.MethodType type = plan.dynamicMessageMethod.getType();
+        if (!MethodDescriptor.MethodType.UNARY.equals(type)) {
+            throw new RuntimeException(String.format(
+                    "Method type=[%s] is not supported for unary calls, use a streaming call", type));
+        }
+        return plan;
+    }
+
+    /**
+     * Return the cached call plan for the method, building it on first use.
+     */
+    private CallPlan callPlan(Descriptors.MethodDescriptor methodDescriptor) {
+        CallPlan plan = callPlans.get(methodDescriptor);
+        if (plan == null) {
+            plan = callPlans.computeIfAbsent(methodDescriptor, md -> {
+                MethodMetrics methodMetrics = metrics == null ? null : metrics.forMethod(fullMethodName(md));
+                return new CallPlan(
+                        grpcMethodDescriptor(md, buildDynamicMarshaller(md.getOutputType(), methodMetrics), methodMetrics),
+                        grpcMethodDescriptor(md, buildWireMarshaller(methodMetrics), methodMetrics),
+                        interceptedChannel,
+                        methodMetrics,
+                        md.getInputType(),
+                        responseCacheMethods.contains(fullMethodName(md)));
+            });
+        }
+        return plan;
+    }
+
+    private static String fullMethodName(Descriptors.MethodDescriptor methodDescriptor) {
+        return methodDescriptor.getService().getFullName() + "/" + methodDescriptor.getName();
+    }
+
+    private MethodDescriptor<Object, Object> grpcMethodDescriptor(
+            Descriptors.MethodDescriptor methodDescriptor,
+            MethodDescriptor.Marshaller<Object> responseMarshaller,
+            MethodMetrics metrics) {
+        return MethodDescriptor.newBuilder()
+                .setType(methodType(methodDescriptor))
+                .setFullMethodName(fullMethodName(methodDescriptor))
+                .setRequestMarshaller(buildRequestMarshaller(methodDescriptor.getInputType(), wireCodec, metrics))
+                .setResponseMarshaller(responseMarshaller)
                 .build();
     }
 
-    private static MethodDescriptor.Marshaller<DynamicMessage> buildDynamicMarshaller(Descriptors.Descriptor type) {
-        Parser<DynamicMessage> parser = DynamicMessage.newBuilder(type).buildPartial().getParserForType();
-        return new MethodDescriptor.Marshaller<DynamicMessage>() {
+    private static MethodDescriptor.MethodType methodType(Descriptors.MethodDescriptor methodDescriptor) {
+        if (methodDescriptor.isClientStreaming()) {
+            return methodDescriptor.isServerStreaming()
+                    ? MethodDescriptor.MethodType.BIDI_STREAMING
+                    : MethodDescriptor.MethodType.CLIENT_STREAMING;
+        }
+        return methodDescriptor.isServerStreaming()
+                ? MethodDescriptor.MethodType.SERVER_STREAMING
+                : MethodDescriptor.MethodType.UNARY;
+    }
+
+    /**
+     * Serialize a protobuf message, an already serialized ByteString, or a clojure map that is
+     * written directly with the {@link WireCodec}. Messages are written straight into the
+     * transport's buffers, without an intermediate serialized copy.
+     */
+    private static MethodDescriptor.Marshaller<Object> buildRequestMarshaller(
+            Descriptors.Descriptor type,
+            WireCodec wireCodec,
+            MethodMetrics metrics) {
+        Parser<DynamicMessage> parser = DynamicMessage.getDefaultInstance(type).getParserForType();
+        return new MethodDescriptor.Marshaller<Object>() {
             @Override
-            public InputStream stream(DynamicMessage dynamicMessage) {
-                return dynamicMessage.toByteString().newInput();
+            public InputStream stream(Object message) {
+                if (message instanceof MessageLite) {
+                    return messageStream((MessageLite) message, metrics);
+                } else if (message instanceof ByteString) {
+                    return bytesStream((ByteString) message, metrics);
+                } else if (message instanceof MarshallerStreams.SerializedRequest) {
+                    MarshallerStreams.SerializedRequest request = (MarshallerStreams.SerializedRequest) message;
+                    ByteString bytes = request.getBytes();
+                    return MarshallerStreams.drainable(
+                            bytes.size(),
+                            timedWriter(metrics, request.getSerializeNanos(), output -> output.writeRawBytes(bytes)));
+                } else {
+                    long start = metrics == null ? 0 : System.nanoTime();
+                    WireCodec.Encoding encoding = wireCodec.encode(message, type);
+                    long encodeNanos = metrics == null ? 0 : System.nanoTime() - start;
+                    return MarshallerStreams.drainable(
+                            encoding.getSerializedSize(),
+                            timedWriter(metrics, encodeNanos, encoding::writeTo));
+                }
             }
 
             @Override
-            public DynamicMessage parse(InputStream inputStream) {
+            public Object parse(InputStream inputStream) {
+                return parseDynamicMessage(parser, inputStream, metrics);
+            }
+        };
+    }
+
+    /**
+     * @param metrics records the time spent serializing and parsing, may be null
+     */
+    static MethodDescriptor.Marshaller<Object> buildDynamicMarshaller(
+            Descriptors.Descriptor type,
+            MethodMetrics metrics) {
+        Parser<DynamicMessage> parser = DynamicMessage.getDefaultInstance(type).getParserForType();
+        return new MethodDescriptor.Marshaller<Object>() {
+            @Override
+            public InputStream stream(Object dynamicMessage) {
+                return messageStream((MessageLite) dynamicMessage, metrics);
+            }
+
+            @Override
+            public Object parse(InputStream inputStream) {
+                return parseDynamicMessage(parser, inputStream, metrics);
+            }
+        };
+    }
+
+    private static InputStream messageStream(MessageLite message, MethodMetrics metrics) {
+        return MarshallerStreams.drainable(message.getSerializedSize(), timedWriter(metrics, 0, message::writeTo));
+    }
+
+    private static InputStream bytesStream(ByteString bytes, MethodMetrics metrics) {
+        return MarshallerStreams.drainable(bytes.size(), timedWriter(metrics, 0, output -> output.writeRawBytes(bytes)));
+    }
+
+    /**
+     * Record the time spent writing the message, plus any time already spent encoding it, as
+     * its serialization time. Messages are written lazily by the transport, so the time can
+     * only be measured around the write itself.
+     */
+    private static MarshallerStreams.MessageWriter timedWriter(
+            MethodMetrics metrics,
+            long elapsedNanos,
+            MarshallerStreams.MessageWriter writer) {
+        if (metrics == null) {
+            return writer;
+        }
+        return output -> {
+            long start = System.nanoTime();
+            writer.writeTo(output);
+            metrics.recordPhase(MethodMetrics.Phase.SERIALIZATION, elapsedNanos + System.nanoTime() - start);
+        };
+    }
+
+    private static DynamicMessage parseDynamicMessage(
+            Parser<DynamicMessage> parser,
+            InputStream inputStream,
+            MethodMetrics metrics) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            return MarshallerStreams.parse(parser, inputStream);
+        } catch (IOException e) {
+            // TODO, more details on exception
+            throw new RuntimeException("Could not parse", e);
+        } finally {
+            if (metrics != null) {
+                metrics.recordPhase(MethodMetrics.Phase.DESERIALIZATION, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Responses are read as their serialized bytes, to be decoded by the caller.
+     */
+    private static MethodDescriptor.Marshaller<Object> buildWireMarshaller(MethodMetrics metrics) {
+        return new MethodDescriptor.Marshaller<Object>() {
+            @Override
+            public InputStream stream(Object bytes) {
+                return bytesStream((ByteString) bytes, metrics);
+            }
+
+            @Override
+            public Object parse(InputStream inputStream) {
+                long start = metrics == null ? 0 : System.nanoTime();
                 try {
-                    return parser.parseFrom(inputStream);
-                } catch (InvalidProtocolBufferException e) {
-                    // TODO, more details on exception
-                    throw new RuntimeException("Could not parse", e);
+                    return MarshallerStreams.readBytes(inputStream);
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read", e);
+                } finally {
+                    if (metrics != null) {
+                        metrics.recordPhase(MethodMetrics.Phase.DESERIALIZATION, System.nanoTime() - start);
+                    }
                 }
-
             }
         };
     }
 
     @Override
     public void close() {
-        this.channel.shutdownNow();
+        this.channels.shutdownNow();
+        coalescer.shutdown();
+        if (!resourceShutdowns.isEmpty() || recorder != null) {
+            try {
+                channels.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            resourceShutdowns.forEach(Runnable::run);
+        }
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Could not write record file", e);
+            }
+        }
+    }
+
+    /**
+     * Everything needed to call a method that does not change between calls. Built once per
+     * method and shared by all threads using the client.
+     */
+    private static final class CallPlan {
+        private final MethodDescriptor<Object, Object> dynamicMessageMethod;
+        private final MethodDescriptor<Object, Object> wireMethod;
+        private final Channel channel;
+        private final MethodMetrics metrics;
+        private final String fullMethodName;
+        private final Descriptors.Descriptor inputType;
+        private final boolean cacheByDefault;
+
+        private CallPlan(
+                MethodDescriptor<Object, Object> dynamicMessageMethod,
+                MethodDescriptor<Object, Object> wireMethod,
+                Channel channel,
+                MethodMetrics metrics,
+                Descriptors.Descriptor inputType,
+                boolean cacheByDefault) {
+            this.dynamicMessageMethod = dynamicMessageMethod;
+            this.wireMethod = wireMethod;
+            this.channel = channel;
+            this.metrics = metrics;
+            this.fullMethodName = dynamicMessageMethod.getFullMethodName();
+            this.inputType = inputType;
+            this.cacheByDefault = cacheByDefault;
+        }
+
+        private MethodDescriptor<Object, Object> grpcMethodDescriptor(CallSettings.Codec codec) {
+            return codec == CallSettings.Codec.WIRE ? wireMethod : dynamicMessageMethod;
+        }
     }
 }
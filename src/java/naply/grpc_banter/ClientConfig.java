@@ -0,0 +1,408 @@
+package naply.grpc_banter;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Connection settings of a {@link Client}. Unset transport options use the gRPC defaults.
+ */
+public final class ClientConfig {
+
+    /**
+     * How a channel of the pool is chosen for each call.
+     */
+    public enum ChannelSelection {
+        /** Channels are used in turn. */
+        ROUND_ROBIN,
+        /** The channel with the fewest calls in flight is used. */
+        LEAST_IN_FLIGHT
+    }
+
+    private final String target;
+    private final int channelCount;
+    private final ChannelSelection channelSelection;
+    private final boolean directExecutor;
+    private final int executorThreads;
+    private final int eventLoopThreads;
+    private final Long keepAliveTimeMillis;
+    private final Long keepAliveTimeoutMillis;
+    private final boolean keepAliveWithoutCalls;
+    private final Integer flowControlWindow;
+    private final Integer maxInboundMessageSize;
+    private final boolean tls;
+    private final String trustCertCollection;
+    private final String clientCertChain;
+    private final String clientKey;
+    private final boolean metrics;
+    private final int responseCacheMaxEntries;
+    private final Long responseCacheMaxBytes;
+    private final long responseCacheTtlMillis;
+    private final List<String> responseCacheKeyHeaders;
+    private final Set<String> responseCacheMethods;
+    private final Map<String, ?> serviceConfig;
+    private final String recordFile;
+    private final int recordQueueSize;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private ClientConfig(Builder builder) {
+        this.target = builder.target;
+        this.channelCount = builder.channelCount;
+        this.channelSelection = builder.channelSelection;
+        this.directExecutor = builder.directExecutor;
+        this.executorThreads = builder.executorThreads;
+        this.eventLoopThreads = builder.eventLoopThreads;
+        this.keepAliveTimeMillis = builder.keepAliveTimeMillis;
+        this.keepAliveTimeoutMillis = builder.keepAliveTimeoutMillis;
+        this.keepAliveWithoutCalls = builder.keepAliveWithoutCalls;
+        this.flowControlWindow = builder.flowControlWindow;
+        this.maxInboundMessageSize = builder.maxInboundMessageSize;
+        this.tls = builder.tls;
+        this.trustCertCollection = builder.trustCertCollection;
+        this.clientCertChain = builder.clientCertChain;
+        this.clientKey = builder.clientKey;
+        this.metrics = builder.metrics;
+        this.responseCacheMaxEntries = builder.responseCacheMaxEntries;
+        this.responseCacheMaxBytes = builder.responseCacheMaxBytes;
+        this.responseCacheTtlMillis = builder.responseCacheTtlMillis;
+        this.responseCacheKeyHeaders = builder.responseCacheKeyHeaders;
+        this.responseCacheMethods = builder.responseCacheMethods;
+        this.serviceConfig = builder.serviceConfig;
+        this.recordFile = builder.recordFile;
+        this.recordQueueSize = builder.recordQueueSize;
+    }
+
+    /**
+     * A NameResolver-compliant URI, ex: localhost:8080, or a local transport target,
+     * ex: inprocess:echo-server or unix:///tmp/echo-server.sock
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Number of channels, each with its own connection, that calls are spread across.
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public ChannelSelection getChannelSelection() {
+        return channelSelection;
+    }
+
+    /**
+     * Whether call callbacks, including response parsing, run on the transport thread. Only
+     * suitable when conversion is cheap and callers never block in callbacks.
+     */
+    public boolean isDirectExecutor() {
+        return directExecutor;
+    }
+
+    /**
+     * Threads of a fixed executor owned by the client for call callbacks, or 0 to use the
+     * shared gRPC executor. Ignored when the direct executor is used.
+     */
+    public int getExecutorThreads() {
+        return executorThreads;
+    }
+
+    /**
+     * Threads of a network event loop owned by the client, or 0 to use the shared event loop.
+     */
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    @Nullable
+    public Long getKeepAliveTimeMillis() {
+        return keepAliveTimeMillis;
+    }
+
+    @Nullable
+    public Long getKeepAliveTimeoutMillis() {
+        return keepAliveTimeoutMillis;
+    }
+
+    public boolean isKeepAliveWithoutCalls() {
+        return keepAliveWithoutCalls;
+    }
+
+    /**
+     * HTTP/2 flow control window in bytes of each connection.
+     */
+    @Nullable
+    public Integer getFlowControlWindow() {
+        return flowControlWindow;
+    }
+
+    @Nullable
+    public Integer getMaxInboundMessageSize() {
+        return maxInboundMessageSize;
+    }
+
+    public boolean isTls() {
+        return tls;
+    }
+
+    /**
+     * Path to PEM certificates trusted to verify the server, or null for the system defaults.
+     */
+    @Nullable
+    public String getTrustCertCollection() {
+        return trustCertCollection;
+    }
+
+    /**
+     * Path to the PEM certificate chain presented to the server for mutual TLS.
+     */
+    @Nullable
+    public String getClientCertChain() {
+        return clientCertChain;
+    }
+
+    /**
+     * Path to the PEM private key of the client certificate chain.
+     */
+    @Nullable
+    public String getClientKey() {
+        return clientKey;
+    }
+
+    /**
+     * Whether the client records the latency, message sizes and phase timings of calls.
+     */
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Maximum number of responses in the response cache, or 0 for no response cache.
+     */
+    public int getResponseCacheMaxEntries() {
+        return responseCacheMaxEntries;
+    }
+
+    /**
+     * Maximum total size in bytes of the requests and responses in the response cache.
+     */
+    @Nullable
+    public Long getResponseCacheMaxBytes() {
+        return responseCacheMaxBytes;
+    }
+
+    public long getResponseCacheTtlMillis() {
+        return responseCacheTtlMillis;
+    }
+
+    /**
+     * Names of the request headers that are part of the response cache key.
+     */
+    public List<String> getResponseCacheKeyHeaders() {
+        return responseCacheKeyHeaders;
+    }
+
+    /**
+     * Full names of the methods whose responses are cached unless a call says otherwise.
+     */
+    public Set<String> getResponseCacheMethods() {
+        return responseCacheMethods;
+    }
+
+    /**
+     * A gRPC service config, in its parsed JSON form, used unless the name resolver supplies
+     * one. Its method configs set the retry or hedging policy of methods. Attempts are limited
+     * only by the policies' maxAttempts.
+     */
+    @Nullable
+    public Map<String, ?> getServiceConfig() {
+        return serviceConfig;
+    }
+
+    /**
+     * Path of the log unary calls are recorded to, replacing any existing file, or null to not
+     * record calls.
+     */
+    @Nullable
+    public String getRecordFile() {
+        return recordFile;
+    }
+
+    /**
+     * Maximum number of calls waiting to be written to the record file. Calls beyond it are
+     * dropped rather than slowing down the client.
+     */
+    public int getRecordQueueSize() {
+        return recordQueueSize;
+    }
+
+    public static class Builder {
+        private String target;
+        private int channelCount = 1;
+        private ChannelSelection channelSelection = ChannelSelection.ROUND_ROBIN;
+        private boolean directExecutor = false;
+        private int executorThreads = 0;
+        private int eventLoopThreads = 0;
+        private Long keepAliveTimeMillis;
+        private Long keepAliveTimeoutMillis;
+        private boolean keepAliveWithoutCalls = false;
+        private Integer flowControlWindow;
+        private Integer maxInboundMessageSize;
+        private boolean tls = false;
+        private String trustCertCollection;
+        private String clientCertChain;
+        private String clientKey;
+        private boolean metrics = false;
+        private int responseCacheMaxEntries = 0;
+        private Long responseCacheMaxBytes;
+        private long responseCacheTtlMillis = 60000;
+        private List<String> responseCacheKeyHeaders = Collections.emptyList();
+        private Set<String> responseCacheMethods = Collections.emptySet();
+        private Map<String, ?> serviceConfig;
+        private String recordFile;
+        private int recordQueueSize = 8192;
+
+        public Builder target(String target) {
+            this.target = target;
+            return this;
+        }
+
+        public Builder channelCount(int channelCount) {
+            this.channelCount = channelCount;
+            return this;
+        }
+
+        public Builder channelSelection(ChannelSelection channelSelection) {
+            this.channelSelection = channelSelection;
+            return this;
+        }
+
+        public Builder directExecutor(boolean directExecutor) {
+            this.directExecutor = directExecutor;
+            return this;
+        }
+
+        public Builder executorThreads(int executorThreads) {
+            this.executorThreads = executorThreads;
+            return this;
+        }
+
+        public Builder eventLoopThreads(int eventLoopThreads) {
+            this.eventLoopThreads = eventLoopThreads;
+            return this;
+        }
+
+        public Builder keepAliveTimeMillis(Long keepAliveTimeMillis) {
+            this.keepAliveTimeMillis = keepAliveTimeMillis;
+            return this;
+        }
+
+        public Builder keepAliveTimeoutMillis(Long keepAliveTimeoutMillis) {
+            this.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+            return this;
+        }
+
+        public Builder keepAliveWithoutCalls(boolean keepAliveWithoutCalls) {
+            this.keepAliveWithoutCalls = keepAliveWithoutCalls;
+            return this;
+        }
+
+        public Builder flowControlWindow(Integer flowControlWindow) {
+            this.flowControlWindow = flowControlWindow;
+            return this;
+        }
+
+        public Builder maxInboundMessageSize(Integer maxInboundMessageSize) {
+            this.maxInboundMessageSize = maxInboundMessageSize;
+            return this;
+        }
+
+        public Builder tls(boolean tls) {
+            this.tls = tls;
+            return this;
+        }
+
+        public Builder trustCertCollection(String trustCertCollection) {
+            this.trustCertCollection = trustCertCollection;
+            return this;
+        }
+
+        public Builder clientCertChain(String clientCertChain) {
+            this.clientCertChain = clientCertChain;
+            return this;
+        }
+
+        public Builder clientKey(String clientKey) {
+            this.clientKey = clientKey;
+            return this;
+        }
+
+        public Builder metrics(boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder responseCacheMaxEntries(int responseCacheMaxEntries) {
+            this.responseCacheMaxEntries = responseCacheMaxEntries;
+            return this;
+        }
+
+        public Builder responseCacheMaxBytes(Long responseCacheMaxBytes) {
+            this.responseCacheMaxBytes = responseCacheMaxBytes;
+            return this;
+        }
+
+        public Builder responseCacheTtlMillis(long responseCacheTtlMillis) {
+            this.responseCacheTtlMillis = responseCacheTtlMillis;
+            return this;
+        }
+
+        public Builder responseCacheKeyHeaders(List<String> responseCacheKeyHeaders) {
+            this.responseCacheKeyHeaders = responseCacheKeyHeaders;
+            return this;
+        }
+
+        public Builder responseCacheMethods(Set<String> responseCacheMethods) {
+            this.responseCacheMethods = responseCacheMethods;
+            return this;
+        }
+
+        public Builder serviceConfig(Map<String, ?> serviceConfig) {
+            this.serviceConfig = serviceConfig;
+            return this;
+        }
+
+        public Builder recordFile(String recordFile) {
+            this.recordFile = recordFile;
+            return this;
+        }
+
+        public Builder recordQueueSize(int recordQueueSize) {
+            this.recordQueueSize = recordQueueSize;
+            return this;
+        }
+
+        public ClientConfig build() {
+            if (target == null) {
+                throw new IllegalArgumentException("Client target is required");
+            }
+            if (channelCount < 1) {
+                throw new IllegalArgumentException(String.format(
+                        "Channel count must be at least 1 but was=[%d]", channelCount));
+            }
+            if (tls && target.startsWith("inprocess:")) {
+                throw new IllegalArgumentException("TLS is not supported with in-process targets");
+            }
+            if ((clientCertChain == null) != (clientKey == null)) {
+                throw new IllegalArgumentException(
+                        "Client certificate chain and client key must be supplied together");
+            }
+            return new ClientConfig(this);
+        }
+    }
+}
@@ -1,145 +1,375 @@
 package naply.grpc_banter;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.DescriptorProtos;
 import com.google.protobuf.Descriptors;
-import com.google.protobuf.ProtocolStringList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Resolves services and message types from a set of file descriptor protos.
+ * <p>
+ * The protos are only indexed by file name and by the fully qualified names of the services,
+ * messages and enums they define. A {@link Descriptors.FileDescriptor} is built the first time
+ * one of its symbols is looked up, together with any of its transitive dependencies that have not
+ * been built yet, so files that are never used are never built.
+ * <p>
+ * A registry with a {@link DescriptorSource} fetches the files of symbols it does not know from
+ * the source, for example a server's reflection service. Fetched files can be saved to a cache
+ * file, from which the registry is loaded the next time it is created. The services of the source
+ * are listed once per registry, though services added later are still fetched when looked up.
+ * <p>
+ * Files are never invalidated, as descriptors built from them may still be in use. To pick up
+ * changed files, create a new registry, without the cache file or after deleting it.
+ * <p>
+ * Files are fetched from the source without holding the registry's lock, so a slow source only
+ * delays the lookups that need it. A file fetched concurrently by two lookups is indexed once.
+ */
 public class FileDescriptorRegistry {
 
     private static final Logger log = LoggerFactory.getLogger(FileDescriptorRegistry.class);
 
-    private final Map<String, Descriptors.ServiceDescriptor> serviceDescriptorsByFullName;
-    private final Map<String, Descriptors.Descriptor> messageTypesByFullName;
-    private final Map<String, Descriptors.EnumDescriptor> enumTypesByFullName;
+    private final Map<String, DescriptorProtos.FileDescriptorProto> protosByName = new ConcurrentHashMap<>();
+    private final Map<String, String> fileNamesByService = new ConcurrentHashMap<>();
+    private final Map<String, String> fileNamesByMessageType = new ConcurrentHashMap<>();
+    private final Map<String, String> fileNamesByEnumType = new ConcurrentHashMap<>();
+    private final Map<String, Descriptors.FileDescriptor> fileDescriptorsByName = new ConcurrentHashMap<>();
+    private final DescriptorSource source;
+    private final Path cacheFile;
+    private volatile boolean servicesListed;
 
+    /**
+     * Where files that are not in the registry are fetched from.
+     */
+    public interface DescriptorSource {
+        /**
+         * The file defining the fully qualified symbol, along with any of its dependencies,
+         * or an empty list if the symbol is not known to the source.
+         */
+        List<DescriptorProtos.FileDescriptorProto> fileContainingSymbol(String symbol);
+
+        /**
+         * The file of the given name, along with any of its dependencies, or an empty list if
+         * the file is not known to the source.
+         */
+        List<DescriptorProtos.FileDescriptorProto> fileByName(String fileName);
+
+        /**
+         * Fully qualified names of all services known to the source.
+         */
+        List<String> listServices();
+    }
+
+    public FileDescriptorRegistry(Collection<DescriptorProtos.FileDescriptorProto> fileDescriptorProtos) {
+        this(fileDescriptorProtos, null, null);
+    }
+
+    /**
+     * @param source    where unknown symbols are fetched from, or null
+     * @param cacheFile where all files are saved whenever files are fetched, or null
+     */
+    public FileDescriptorRegistry(
+            Collection<DescriptorProtos.FileDescriptorProto> fileDescriptorProtos,
+            DescriptorSource source,
+            Path cacheFile) {
+        this.source = source;
+        this.cacheFile = cacheFile;
+        fileDescriptorProtos.forEach(this::index);
+    }
+
+    /**
+     * Create a registry of descriptors that are already built. The files defining them, and
+     * their dependencies, are added to the registry as they are, so no file is built again.
+     */
     public FileDescriptorRegistry(
             Map<String, Descriptors.ServiceDescriptor> serviceDescriptorsByFullName,
             Map<String, Descriptors.Descriptor> messageTypesByFullName,
             Map<String, Descriptors.EnumDescriptor> enumTypesByFullName) {
-        this.serviceDescriptorsByFullName = serviceDescriptorsByFullName;
-        this.messageTypesByFullName = messageTypesByFullName;
-        this.enumTypesByFullName = enumTypesByFullName;
+        this(Collections.emptyList(), null, null);
+        Stream.of(serviceDescriptorsByFullName.values().stream().map(Descriptors.ServiceDescriptor::getFile),
+                        messageTypesByFullName.values().stream().map(Descriptors.Descriptor::getFile),
+                        enumTypesByFullName.values().stream().map(Descriptors.EnumDescriptor::getFile))
+                .flatMap(files -> files)
+                .forEach(this::addBuiltFileDescriptor);
+    }
+
+    private void addBuiltFileDescriptor(Descriptors.FileDescriptor fd) {
+        if (fileDescriptorsByName.putIfAbsent(fd.getName(), fd) != null) return;
+        index(fd.toProto());
+        fd.getDependencies().forEach(this::addBuiltFileDescriptor);
+    }
+
+    /**
+     * Add files to the registry, saving them to the cache file if any are new. Files already
+     * in the registry are kept as they are.
+     */
+    public synchronized void addFileDescriptorProtos(Collection<DescriptorProtos.FileDescriptorProto> fileDescriptorProtos) {
+        boolean added = false;
+        for (DescriptorProtos.FileDescriptorProto fdp : fileDescriptorProtos) {
+            if (!protosByName.containsKey(fdp.getName())) {
+                index(fdp);
+                added = true;
+            }
+        }
+        if (added && cacheFile != null) {
+            writeCache();
+        }
+    }
+
+    private void index(DescriptorProtos.FileDescriptorProto fdp) {
+        protosByName.put(fdp.getName(), fdp);
+        String prefix = fdp.getPackage().isEmpty() ? "" : fdp.getPackage() + ".";
+        for (DescriptorProtos.ServiceDescriptorProto service : fdp.getServiceList()) {
+            fileNamesByService.put(prefix + service.getName(), fdp.getName());
+        }
+        for (DescriptorProtos.DescriptorProto messageType : fdp.getMessageTypeList()) {
+            indexMessageType(prefix, messageType, fdp.getName());
+        }
+        for (DescriptorProtos.EnumDescriptorProto enumType : fdp.getEnumTypeList()) {
+            fileNamesByEnumType.put(prefix + enumType.getName(), fdp.getName());
+        }
+    }
+
+    /**
+     * Write every file of the registry to the cache file. The file is replaced atomically so a
+     * failed write never leaves a partial cache behind.
+     */
+    private void writeCache() {
+        DescriptorProtos.FileDescriptorSet fds = DescriptorProtos.FileDescriptorSet.newBuilder()
+                .addAllFile(protosByName.values())
+                .build();
+        try {
+            Path directory = cacheFile.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path tempFile = Files.createTempFile(directory, cacheFile.getFileName().toString(), ".tmp");
+            try (OutputStream output = Files.newOutputStream(tempFile)) {
+                fds.writeTo(output);
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not write descriptor cache=[{}]", cacheFile.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * The name of the file defining the symbol, fetching it from the source when it is not
+     * in the registry. Returns null if the symbol is not found.
+     */
+    private String fileNameOf(Map<String, String> fileNamesBySymbol, String symbol) {
+        String fileName = fileNamesBySymbol.get(symbol);
+        if (fileName == null && source != null) {
+            addFileDescriptorProtos(source.fileContainingSymbol(symbol));
+            fileName = fileNamesBySymbol.get(symbol);
+        }
+        return fileName;
+    }
+
+    /**
+     * Fetch any services of the source that are not in the registry, the first time the services
+     * are listed. Services already in the registry are still listed if the source cannot be
+     * reached, and the source is asked again the next time.
+     */
+    private void fetchAllServices() {
+        if (source == null || servicesListed) return;
+        List<String> services;
+        try {
+            services = source.listServices();
+        } catch (RuntimeException e) {
+            log.warn("Could not list services of the descriptor source, using known services", e);
+            return;
+        }
+        for (String service : services) {
+            fileNameOf(fileNamesByService, service);
+        }
+        servicesListed = true;
+    }
+
+    private void indexMessageType(String prefix, DescriptorProtos.DescriptorProto messageType, String fileName) {
+        String fullName = prefix + messageType.getName();
+        fileNamesByMessageType.put(fullName, fileName);
+        for (DescriptorProtos.DescriptorProto nestedType : messageType.getNestedTypeList()) {
+            indexMessageType(fullName + ".", nestedType, fileName);
+        }
+        for (DescriptorProtos.EnumDescriptorProto enumType : messageType.getEnumTypeList()) {
+            fileNamesByEnumType.put(fullName + "." + enumType.getName(), fileName);
+        }
     }
 
     public Descriptors.ServiceDescriptor findServiceByName(String name) {
-        if (serviceDescriptorsByFullName.containsKey(name))
-            return serviceDescriptorsByFullName.get(name);
-        throw new ServiceResolutionError(String.format("Service [%s] not found", name));
+        String fileName = fileNameOf(fileNamesByService, name);
+        if (fileName == null) {
+            throw new ServiceResolutionError(String.format("Service [%s] not found", name));
+        }
+        Descriptors.FileDescriptor fd = fileDescriptor(fileName);
+        return fd.findServiceByName(localName(fd, name));
     }
 
     public Collection<Descriptors.ServiceDescriptor> getAllServices() {
-        return serviceDescriptorsByFullName.values();
+        fetchAllServices();
+        return fileNamesByService.keySet().stream()
+                .map(this::findServiceByName)
+                .collect(Collectors.toList());
     }
 
     public Descriptors.Descriptor findMessageTypeByFullName(String fullName) {
-        return messageTypesByFullName.get(fullName);
+        String fileName = fileNameOf(fileNamesByMessageType, fullName);
+        if (fileName == null) return null;
+        Descriptors.FileDescriptor fd = fileDescriptor(fileName);
+        Descriptors.Descriptor messageType = null;
+        for (String name : localName(fd, fullName).split("\\.")) {
+            messageType = messageType == null
+                    ? fd.findMessageTypeByName(name)
+                    : messageType.findNestedTypeByName(name);
+        }
+        return messageType;
+    }
+
+    public Descriptors.EnumDescriptor findEnumTypeByFullName(String fullName) {
+        String fileName = fileNameOf(fileNamesByEnumType, fullName);
+        if (fileName == null) return null;
+        int lastDot = fullName.lastIndexOf('.');
+        String parent = lastDot == -1 ? "" : fullName.substring(0, lastDot);
+        Descriptors.Descriptor parentType = findMessageTypeByFullName(parent);
+        return parentType != null
+                ? parentType.findEnumTypeByName(fullName.substring(lastDot + 1))
+                : fileDescriptor(fileName).findEnumTypeByName(fullName.substring(lastDot + 1));
     }
 
+    /**
+     * All methods of all services, read from the protos without building any descriptors.
+     */
     public Set<String> getAllServiceMethods() {
-        return getAllServices().stream()
-                .flatMap(s -> s.getMethods().stream()
-                        .map(m -> s.getFullName() + "/" + m.getName()))
-                .collect(Collectors.toSet());
+        fetchAllServices();
+        Set<String> methods = new HashSet<>();
+        for (DescriptorProtos.FileDescriptorProto fdp : protosByName.values()) {
+            String prefix = fdp.getPackage().isEmpty() ? "" : fdp.getPackage() + ".";
+            for (DescriptorProtos.ServiceDescriptorProto service : fdp.getServiceList()) {
+                for (DescriptorProtos.MethodDescriptorProto method : service.getMethodList()) {
+                    methods.add(prefix + service.getName() + "/" + method.getName());
+                }
+            }
+        }
+        return methods;
     }
 
     public static FileDescriptorRegistry fromFileDescriptorSet(String fileName) {
-        File file = new File(fileName);
-        DescriptorProtos.FileDescriptorSet fds;
-        try (FileInputStream stream = new FileInputStream(file)) {
-            fds = DescriptorProtos.FileDescriptorSet.parseFrom(stream);
+        return fromFileDescriptorSet(readFileDescriptorSet(new File(fileName)));
+    }
+
+    /**
+     * Create a registry fetching files from the source as they are needed. When a cache file is
+     * given, the registry starts with the files saved in it, and saves files as they are fetched.
+     */
+    public static FileDescriptorRegistry fromDescriptorSource(DescriptorSource source, String cacheFileName) {
+        if (cacheFileName == null) {
+            return new FileDescriptorRegistry(Collections.emptyList(), source, null);
+        }
+        File cacheFile = new File(cacheFileName);
+        List<DescriptorProtos.FileDescriptorProto> cached = cacheFile.exists()
+                ? readFileDescriptorSet(cacheFile).getFileList()
+                : Collections.emptyList();
+        return new FileDescriptorRegistry(cached, source, Paths.get(cacheFileName));
+    }
+
+    private static DescriptorProtos.FileDescriptorSet readFileDescriptorSet(File file) {
+        // Memory mapped so the file is parsed in place rather than copied through stream buffers
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CodedInputStream input = CodedInputStream.newInstance(buffer);
+            input.setSizeLimit(Integer.MAX_VALUE);
+            return DescriptorProtos.FileDescriptorSet.parseFrom(input);
         } catch (IOException e) {
             throw new RuntimeException(String.format("Could not read=[%s]", file.getAbsoluteFile()), e);
         }
-        return fromFileDescriptorSet(fds);
     }
 
     public static FileDescriptorRegistry fromFileDescriptorSet(DescriptorProtos.FileDescriptorSet fds) {
-        Map<String, Descriptors.FileDescriptor> fileDescriptorsByName = buildFileDescriptors(fds);
-
-        List<Descriptors.ServiceDescriptor> allServices = new ArrayList<>();
-        List<Descriptors.Descriptor> allMessageTypes = new ArrayList<>();
-        List<Descriptors.EnumDescriptor> allEnumTypes = new ArrayList<>();
-        for (Descriptors.FileDescriptor fd : fileDescriptorsByName.values()) {
-            List<Descriptors.Descriptor> messageTypes = fd.getMessageTypes().stream()
-                    .flatMap(FileDescriptorRegistry::getNestedMessageTypes)
-                    .collect(Collectors.toList());
-            if (log.isDebugEnabled()) {
-                log.debug("fileDescriptor=[{}] has services={} messageTypes={} enumTypes={}",
-                        fd.getFullName(),
-                        fd.getServices().stream().map(Descriptors.ServiceDescriptor::getFullName).collect(Collectors.toList()),
-                        messageTypes.stream().map(Descriptors.Descriptor::getFullName).collect(Collectors.toList()),
-                        fd.getEnumTypes().stream().map(Descriptors.EnumDescriptor::getFullName).collect(Collectors.toList()));
-            }
-            allServices.addAll(fd.getServices());
-            allMessageTypes.addAll(messageTypes);
-            allEnumTypes.addAll(fd.getEnumTypes());
-        }
-
-        Map<String, Descriptors.ServiceDescriptor> serviceDescriptorsByFullName = allServices.stream()
-                .collect(Collectors.toMap(Descriptors.ServiceDescriptor::getFullName, v -> v));
-
-        Map<String, Descriptors.Descriptor> messageTypesByFullName = allMessageTypes.stream()
-                .collect(Collectors.toMap(Descriptors.Descriptor::getFullName, v -> v));
-
-        Map<String, Descriptors.EnumDescriptor> enumTypesByFullName = allEnumTypes.stream()
-                .collect(Collectors.toMap(Descriptors.EnumDescriptor::getFullName, v -> v));
-
-        return new FileDescriptorRegistry(
-                serviceDescriptorsByFullName,
-                messageTypesByFullName,
-                enumTypesByFullName);
-    }
-
-    private static Stream<Descriptors.Descriptor> getNestedMessageTypes(Descriptors.Descriptor messageType) {
-        return Stream.concat(
-                Stream.of(messageType),
-                messageType.getNestedTypes().stream()
-                        .flatMap(FileDescriptorRegistry::getNestedMessageTypes)
-        );
-    }
-
-    private static Map<String, Descriptors.FileDescriptor> buildFileDescriptors(DescriptorProtos.FileDescriptorSet fds) {
-        HashMap<String, Descriptors.FileDescriptor> result = new HashMap<>();
-        int lastSize = 0;
-        // Loop over FileDescriptorProtos until all are resolved w/ dependencies
-        // TODO: optimize by building a DAG
-        while (result.size() < fds.getFileList().size()) {
-            for (DescriptorProtos.FileDescriptorProto fdp : fds.getFileList()) {
-                // Skip if already resolved
-                if (result.containsKey(fdp.getName())) continue;
-                // Build dependencies
-                ProtocolStringList dependencyList = fdp.getDependencyList();
-                if (result.keySet().containsAll(dependencyList)) {
-                    Descriptors.FileDescriptor[] dependencies = new Descriptors.FileDescriptor[dependencyList.size()];
-                    for (int i = 0; i < dependencyList.size(); i++) {
-                        dependencies[i] = result.get(dependencyList.get(i));
-                    }
-                    Descriptors.FileDescriptor fileDescriptor;
-                    try {
-                        fileDescriptor = Descriptors.FileDescriptor.buildFrom(fdp, dependencies);
-                    } catch (Descriptors.DescriptorValidationException e) {
-                        // TODO more informative error
-                        throw new RuntimeException("Validation error!", e);
-                    }
-                    log.debug("Resolved FileDescriptor=[{}] with dependencies=[{}]", fdp.getName(), dependencyList);
-                    result.put(fdp.getName(), fileDescriptor);
-                }
+        return new FileDescriptorRegistry(fds.getFileList());
+    }
+
+    private static String localName(Descriptors.FileDescriptor fd, String fullName) {
+        return fd.getPackage().isEmpty() ? fullName : fullName.substring(fd.getPackage().length() + 1);
+    }
+
+    /**
+     * Return the built file descriptor, building it and its dependencies if needed.
+     */
+    private Descriptors.FileDescriptor fileDescriptor(String fileName) {
+        Descriptors.FileDescriptor fd = fileDescriptorsByName.get(fileName);
+        if (fd != null) return fd;
+        if (source != null) {
+            fetchMissingDependencies(fileName, new HashSet<>());
+        }
+        synchronized (this) {
+            return buildFileDescriptor(fileName, new HashSet<>());
+        }
+    }
+
+    /**
+     * Fetch the transitive dependencies of the file that are not in the registry, before the
+     * file is built under the lock.
+     */
+    private void fetchMissingDependencies(String fileName, Set<String> visited) {
+        if (!visited.add(fileName) || fileDescriptorsByName.containsKey(fileName)) return;
+        DescriptorProtos.FileDescriptorProto fdp = protosByName.get(fileName);
+        if (fdp == null) return;
+        for (String dependency : fdp.getDependencyList()) {
+            if (!protosByName.containsKey(dependency)) {
+                addFileDescriptorProtos(source.fileByName(dependency));
             }
-            if (lastSize == result.size()) {
-                throw new RuntimeException("Deadlock detected");
+            fetchMissingDependencies(dependency, visited);
+        }
+    }
+
+    /**
+     * Build the file after its dependencies, depth first, so each file is built exactly once and
+     * only after everything it depends on.
+     */
+    private Descriptors.FileDescriptor buildFileDescriptor(String fileName, Set<String> building) {
+        Descriptors.FileDescriptor built = fileDescriptorsByName.get(fileName);
+        if (built != null) return built;
+        DescriptorProtos.FileDescriptorProto fdp = protosByName.get(fileName);
+        if (fdp == null) {
+            throw new RuntimeException(String.format("File=[%s] not found in the file descriptor set", fileName));
+        }
+        if (!building.add(fileName)) {
+            throw new RuntimeException(String.format("Circular dependency detected on file=[%s]", fileName));
+        }
+        List<String> dependencyList = fdp.getDependencyList();
+        Descriptors.FileDescriptor[] dependencies = new Descriptors.FileDescriptor[dependencyList.size()];
+        for (int i = 0; i < dependencyList.size(); i++) {
+            String dependency = dependencyList.get(i);
+            if (!protosByName.containsKey(dependency)) {
+                throw new RuntimeException(String.format(
+                        "File=[%s] depends on file=[%s] that could not be found", fileName, dependency));
             }
-            lastSize = result.size();
+            dependencies[i] = buildFileDescriptor(dependency, building);
+        }
+        building.remove(fileName);
+        Descriptors.FileDescriptor fileDescriptor;
+        try {
+            fileDescriptor = Descriptors.FileDescriptor.buildFrom(fdp, dependencies);
+        } catch (Descriptors.DescriptorValidationException e) {
+            throw new RuntimeException(String.format("Could not build file=[%s]", fileName), e);
         }
-        return result;
+        log.debug("Resolved FileDescriptor=[{}] with dependencies=[{}]", fileName, dependencyList);
+        fileDescriptorsByName.put(fileName, fileDescriptor);
+        return fileDescriptor;
     }
 
     public static class ServiceResolutionError extends RuntimeException {
@@ -150,11 +380,11 @@ public class FileDescriptorRegistry {
 
     public String toString() {
         return "FileDescriptorSet{services=" +
-                serviceDescriptorsByFullName.keySet() +
+                fileNamesByService.keySet() +
                 " messageTypes=" +
-                messageTypesByFullName.keySet() +
+                fileNamesByMessageType.keySet() +
                 " enumTypes=" +
-                enumTypesByFullName.keySet() +
+                fileNamesByEnumType.keySet() +
                 "}";
     }
 }
@@ -0,0 +1,204 @@
+package naply.grpc_banter;
+
+import clojure.lang.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A persistent map whose values are converted from a source object on first access.
+ * <p>
+ * The keys of the map and the functions converting each value are described once by a
+ * {@link Shape}, shared by every map of that shape. Which keys are present is decided when the
+ * map is created, so counting and key lookups never convert a value. Each value is converted
+ * once and then memoized. Operations that need every value, such as {@code seq}, iteration,
+ * equality, hashing and any modification, realize the whole map.
+ * <p>
+ * Values are memoized without synchronization. Converting a value is expected to be free of
+ * side effects, so two threads racing on the same key at most convert it twice.
+ */
+public final class LazyMap extends APersistentMap implements IObj {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Object ABSENT = new Object();
+    private static final Object UNREALIZED = new Object();
+
+    private final Shape shape;
+    private final Object source;
+    private final Object[] values;
+    private final int count;
+    private final IPersistentMap meta;
+    private volatile IPersistentMap realized;
+
+    /**
+     * The keys of a lazy map and how the value of each is read from the source.
+     */
+    public static final class Shape {
+        private final Object[] keys;
+        private final IFn[] presentFns;
+        private final IFn[] valueFns;
+        private final Map<Object, Integer> indexes = new HashMap<>();
+
+        /**
+         * @param keys       the keys of the map, in the order they are realized
+         * @param presentFns for each key, a function of the source returning whether the key is
+         *                   present, or null when the key is always present
+         * @param valueFns   for each key, a function of the source returning its value
+         */
+        public Shape(Object[] keys, IFn[] presentFns, IFn[] valueFns) {
+            if (keys.length != presentFns.length || keys.length != valueFns.length) {
+                throw new IllegalArgumentException(String.format(
+                        "Lazy map shape must have a present and value function for each of the %d keys",
+                        keys.length));
+            }
+            this.keys = keys.clone();
+            this.presentFns = presentFns.clone();
+            this.valueFns = valueFns.clone();
+            for (int i = 0; i < keys.length; i++) {
+                indexes.put(keys[i], i);
+            }
+        }
+
+        /**
+         * Create a map of this shape over the source.
+         */
+        public LazyMap create(Object source, IPersistentMap meta) {
+            Object[] values = new Object[keys.length];
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                IFn present = presentFns[i];
+                if (present == null || RT.booleanCast(present.invoke(source))) {
+                    values[i] = UNREALIZED;
+                    count++;
+                } else {
+                    values[i] = ABSENT;
+                }
+            }
+            return new LazyMap(this, source, values, count, meta);
+        }
+    }
+
+    private LazyMap(Shape shape, Object source, Object[] values, int count, IPersistentMap meta) {
+        this.shape = shape;
+        this.source = source;
+        this.values = values;
+        this.count = count;
+        this.meta = meta;
+    }
+
+    /**
+     * Whether the value of the key has been converted. Intended for testing.
+     */
+    public boolean isRealized(Object key) {
+        Integer index = shape.indexes.get(key);
+        return index != null && values[index] != UNREALIZED;
+    }
+
+    private Object value(int index) {
+        Object value = values[index];
+        if (value == UNREALIZED) {
+            value = shape.valueFns[index].invoke(source);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * The map with every value converted.
+     */
+    private IPersistentMap realized() {
+        IPersistentMap map = realized;
+        if (map == null) {
+            ITransientMap transientMap = PersistentArrayMap.EMPTY.asTransient();
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != ABSENT) {
+                    transientMap = transientMap.assoc(shape.keys[i], value(i));
+                }
+            }
+            map = (IPersistentMap) ((IObj) transientMap.persistent()).withMeta(meta);
+            realized = map;
+        }
+        return map;
+    }
+
+    /**
+     * Serialized as the realized map, as the shape and source are not serializable.
+     */
+    private Object writeReplace() {
+        return realized();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Integer index = shape.indexes.get(key);
+        return index != null && values[index] != ABSENT;
+    }
+
+    @Override
+    public IMapEntry entryAt(Object key) {
+        Integer index = shape.indexes.get(key);
+        if (index == null || values[index] == ABSENT) return null;
+        return MapEntry.create(shape.keys[index], value(index));
+    }
+
+    @Override
+    public Object valAt(Object key) {
+        return valAt(key, null);
+    }
+
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        Integer index = shape.indexes.get(key);
+        if (index == null || values[index] == ABSENT) return notFound;
+        return value(index);
+    }
+
+    @Override
+    public int count() {
+        return count;
+    }
+
+    @Override
+    public ISeq seq() {
+        return realized().seq();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Iterator iterator() {
+        return ((Iterable) realized()).iterator();
+    }
+
+    @Override
+    public IPersistentMap assoc(Object key, Object val) {
+        return realized().assoc(key, val);
+    }
+
+    @Override
+    public IPersistentMap assocEx(Object key, Object val) {
+        return realized().assocEx(key, val);
+    }
+
+    @Override
+    public IPersistentMap without(Object key) {
+        return realized().without(key);
+    }
+
+    @Override
+    public IPersistentCollection empty() {
+        return (IPersistentCollection) PersistentArrayMap.EMPTY.withMeta(meta);
+    }
+
+    @Override
+    public IPersistentMap meta() {
+        return meta;
+    }
+
+    @Override
+    public IObj withMeta(IPersistentMap meta) {
+        if (meta == this.meta) return this;
+        return new LazyMap(shape, source, values, count, meta);
+    }
+}
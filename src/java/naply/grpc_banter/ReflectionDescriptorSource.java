@@ -0,0 +1,123 @@
+package naply.grpc_banter;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.reflection.v1alpha.ErrorResponse;
+import io.grpc.reflection.v1alpha.ServerReflectionGrpc;
+import io.grpc.reflection.v1alpha.ServerReflectionRequest;
+import io.grpc.reflection.v1alpha.ServerReflectionResponse;
+import io.grpc.reflection.v1alpha.ServiceResponse;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches file descriptors from the server reflection service of a server.
+ */
+public class ReflectionDescriptorSource implements FileDescriptorRegistry.DescriptorSource {
+
+    private final Channel channel;
+    private final long deadlineMillis;
+
+    public ReflectionDescriptorSource(Channel channel, long deadlineMillis) {
+        this.channel = channel;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    @Override
+    public List<DescriptorProtos.FileDescriptorProto> fileContainingSymbol(String symbol) {
+        return fileDescriptorProtos(request(ServerReflectionRequest.newBuilder()
+                .setFileContainingSymbol(symbol)
+                .build()));
+    }
+
+    @Override
+    public List<DescriptorProtos.FileDescriptorProto> fileByName(String fileName) {
+        return fileDescriptorProtos(request(ServerReflectionRequest.newBuilder()
+                .setFileByFilename(fileName)
+                .build()));
+    }
+
+    @Override
+    public List<String> listServices() {
+        ServerReflectionResponse response = request(ServerReflectionRequest.newBuilder()
+                .setListServices("*")
+                .build());
+        checkError(response);
+        List<String> services = new ArrayList<>();
+        for (ServiceResponse service : response.getListServicesResponse().getServiceList()) {
+            services.add(service.getName());
+        }
+        return services;
+    }
+
+    private static List<DescriptorProtos.FileDescriptorProto> fileDescriptorProtos(ServerReflectionResponse response) {
+        if (response.hasErrorResponse()
+                && response.getErrorResponse().getErrorCode() == Status.Code.NOT_FOUND.value()) {
+            return Collections.emptyList();
+        }
+        checkError(response);
+        List<DescriptorProtos.FileDescriptorProto> protos = new ArrayList<>();
+        for (ByteString bytes : response.getFileDescriptorResponse().getFileDescriptorProtoList()) {
+            try {
+                protos.add(DescriptorProtos.FileDescriptorProto.parseFrom(bytes));
+            } catch (InvalidProtocolBufferException e) {
+                throw new RuntimeException("Server reflection returned an invalid file descriptor", e);
+            }
+        }
+        return protos;
+    }
+
+    private static void checkError(ServerReflectionResponse response) {
+        if (response.hasErrorResponse()) {
+            ErrorResponse error = response.getErrorResponse();
+            throw new RuntimeException(String.format("Server reflection failed with code=[%s] message=[%s]",
+                    Status.fromCodeValue(error.getErrorCode()).getCode(), error.getErrorMessage()));
+        }
+    }
+
+    /**
+     * Send one request on its own reflection stream and wait for its response. The deadline
+     * bounds the wait when the server never answers.
+     */
+    private ServerReflectionResponse request(ServerReflectionRequest request) {
+        CompletableFuture<ServerReflectionResponse> response = new CompletableFuture<>();
+        StreamObserver<ServerReflectionRequest> requests = ServerReflectionGrpc.newStub(channel)
+                .withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS)
+                .serverReflectionInfo(new StreamObserver<ServerReflectionResponse>() {
+                    @Override
+                    public void onNext(ServerReflectionResponse value) {
+                        response.complete(value);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        response.completeExceptionally(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        response.completeExceptionally(new RuntimeException(
+                                "Server reflection stream completed without a response"));
+                    }
+                });
+        requests.onNext(request);
+        requests.onCompleted();
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Server reflection request failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for server reflection", e);
+        }
+    }
+}
@@ -0,0 +1,946 @@
+package naply.grpc_banter;
+
+import clojure.lang.*;
+import com.google.protobuf.*;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts clojure maps directly to and from the protobuf wire format, using the message
+ * descriptor for field numbers and wire types. Unlike converting through a
+ * {@link DynamicMessage}, no intermediate message object graph is built.
+ * <p>
+ * Maps are accepted and produced in the same form as the clojure converter: fields are keyed by
+ * string name, keyword name or field index, repeated fields are sequences and enums are names,
+ * keywords or numbers. Repeated numeric and boolean fields are also accepted as primitive arrays,
+ * and can be produced as primitive arrays, which are read and written without boxing.
+ * <p>
+ * A codec caches what it learns of each message type it converts, by descriptor. The cache lives
+ * as long as the codec, so a codec is shared by the calls on one set of descriptors, as each
+ * {@link Client} does, rather than kept for the life of the process.
+ */
+public final class WireCodec {
+
+    private static final int MAX_DEPTH = 100;
+    private static final int MAX_DENSE_FIELD_NUMBER = 1024;
+    private final ConcurrentHashMap<Descriptors.Descriptor, MessageSchema> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * Prepare a clojure map for serialization as a message of the given type. The returned
+     * encoding knows its serialized size before any bytes are written.
+     */
+    public Encoding encode(Object messageMap, Descriptors.Descriptor type) {
+        Encoding encoding = new Encoding();
+        encoding.size = encoding.computeMessageSize(messageMap, schema(type), 0);
+        return encoding;
+    }
+
+    public byte[] toByteArray(Object messageMap, Descriptors.Descriptor type) {
+        Encoding encoding = encode(messageMap, type);
+        byte[] bytes = new byte[encoding.getSerializedSize()];
+        CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        try {
+            encoding.writeTo(output);
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to a byte array should not throw", e);
+        }
+        output.checkNoSpaceLeft();
+        return bytes;
+    }
+
+    public IPersistentMap decode(
+            ByteString bytes,
+            Descriptors.Descriptor type,
+            boolean enumsAsKeywords,
+            boolean fieldsAsKeywords,
+            boolean repeatedScalarsAsArrays) {
+        try {
+            return decode(bytes.newCodedInput(), type, enumsAsKeywords, fieldsAsKeywords, repeatedScalarsAsArrays);
+        } catch (IOException e) {
+            throw new RuntimeException(String.format("Could not parse message of type=[%s]", type.getFullName()), e);
+        }
+    }
+
+    /**
+     * Read a message of the type as a clojure map. With {@code repeatedScalarsAsArrays}, repeated
+     * numeric and boolean fields are read as primitive arrays rather than vectors.
+     */
+    public IPersistentMap decode(
+            CodedInputStream input,
+            Descriptors.Descriptor type,
+            boolean enumsAsKeywords,
+            boolean fieldsAsKeywords,
+            boolean repeatedScalarsAsArrays) throws IOException {
+        IPersistentMap message = new Decoder(enumsAsKeywords, fieldsAsKeywords, repeatedScalarsAsArrays)
+                .readMessage(input, schema(type), 0);
+        input.checkLastTagWas(0);
+        return message;
+    }
+
+    /**
+     * The primitive array class a repeated field can be represented as, or null if the field
+     * type has no primitive representation.
+     */
+    public static Class<?> primitiveArrayClass(Descriptors.FieldDescriptor field) {
+        switch (field.getJavaType()) {
+            case INT:
+                return int[].class;
+            case LONG:
+                return long[].class;
+            case FLOAT:
+                return float[].class;
+            case DOUBLE:
+                return double[].class;
+            case BOOLEAN:
+                return boolean[].class;
+            default:
+                return null;
+        }
+    }
+
+    private MessageSchema schema(Descriptors.Descriptor type) {
+        MessageSchema schema = schemas.get(type);
+        if (schema == null) {
+            schema = schemas.computeIfAbsent(type, messageType -> new MessageSchema(this, messageType));
+        }
+        return schema;
+    }
+
+    /**
+     * A message map prepared for writing. Computing the size walks the map once, recording the
+     * field values and the size of every nested message in the order they are visited, so that
+     * writing walks the same recorded values without looking up or sizing anything again.
+     */
+    public static final class Encoding {
+        private final ArrayList<Object[]> messageValues = new ArrayList<>();
+        private int[] sizes = new int[8];
+        private int sizeCount;
+        private int size;
+
+        private int valuesCursor;
+        private int sizeCursor;
+
+        private Encoding() {
+        }
+
+        public int getSerializedSize() {
+            return size;
+        }
+
+        /**
+         * Write the message to the output. May only be called once.
+         */
+        public void writeTo(CodedOutputStream output) throws IOException {
+            writeMessage(output);
+            output.flush();
+        }
+
+        private int reserveSize() {
+            if (sizeCount == sizes.length) {
+                sizes = Arrays.copyOf(sizes, sizes.length * 2);
+            }
+            return sizeCount++;
+        }
+
+        private int computeMessageSize(Object messageMap, MessageSchema schema, int depth) {
+            if (depth > MAX_DEPTH) {
+                throw new RuntimeException("Message nesting exceeds maximum depth=" + MAX_DEPTH);
+            }
+            Object[] values = schema.collectValues(messageMap);
+            messageValues.add(values);
+            int slot = reserveSize();
+            int messageSize = 0;
+            for (FieldSchema field : schema.fields) {
+                Object value = values[field.position];
+                if (value != null) {
+                    messageSize += field.repeated
+                            ? computeRepeatedSize(field, value, depth)
+                            : computeFieldSize(field, value, depth);
+                }
+            }
+            sizes[slot] = messageSize;
+            return messageSize;
+        }
+
+        private int computeRepeatedSize(FieldSchema field, Object values, int depth) {
+            if (field.isPrimitiveArray(values)) {
+                int payloadSize = computeArrayPayloadSize(field, values);
+                if (field.packed) {
+                    sizes[reserveSize()] = payloadSize;
+                    return payloadSize == 0 ? 0 : field.tagSize + CodedOutputStream.computeUInt32SizeNoTag(payloadSize) + payloadSize;
+                }
+                return payloadSize + arrayLength(values) * field.tagSize;
+            }
+            if (field.packed) {
+                int slot = reserveSize();
+                int payloadSize = 0;
+                for (Object value : iterable(values, field)) {
+                    payloadSize += computeValueSizeNoTag(field, value, depth);
+                }
+                sizes[slot] = payloadSize;
+                return payloadSize == 0 ? 0 : field.tagSize + CodedOutputStream.computeUInt32SizeNoTag(payloadSize) + payloadSize;
+            }
+            int repeatedSize = 0;
+            for (Object value : iterable(values, field)) {
+                repeatedSize += computeFieldSize(field, value, depth);
+            }
+            return repeatedSize;
+        }
+
+        private int computeArrayPayloadSize(FieldSchema field, Object array) {
+            int size = 0;
+            switch (field.type) {
+                case DOUBLE:
+                case FIXED64:
+                case SFIXED64:
+                    return arrayLength(array) * 8;
+                case FLOAT:
+                case FIXED32:
+                case SFIXED32:
+                    return arrayLength(array) * 4;
+                case BOOL:
+                    return arrayLength(array);
+                case INT32:
+                    for (int value : (int[]) array) size += CodedOutputStream.computeInt32SizeNoTag(value);
+                    return size;
+                case UINT32:
+                    for (int value : (int[]) array) size += CodedOutputStream.computeUInt32SizeNoTag(value);
+                    return size;
+                case SINT32:
+                    for (int value : (int[]) array) size += CodedOutputStream.computeSInt32SizeNoTag(value);
+                    return size;
+                case INT64:
+                    for (long value : (long[]) array) size += CodedOutputStream.computeInt64SizeNoTag(value);
+                    return size;
+                case UINT64:
+                    for (long value : (long[]) array) size += CodedOutputStream.computeUInt64SizeNoTag(value);
+                    return size;
+                case SINT64:
+                    for (long value : (long[]) array) size += CodedOutputStream.computeSInt64SizeNoTag(value);
+                    return size;
+                default:
+                    throw coercionError(array, field);
+            }
+        }
+
+        private int computeFieldSize(FieldSchema field, Object value, int depth) {
+            return field.tagSize + computeValueSizeNoTag(field, value, depth);
+        }
+
+        private int computeValueSizeNoTag(FieldSchema field, Object value, int depth) {
+            switch (field.type) {
+                case DOUBLE:
+                    return CodedOutputStream.computeDoubleSizeNoTag(toDouble(value, field));
+                case FLOAT:
+                    return CodedOutputStream.computeFloatSizeNoTag(toFloat(value, field));
+                case INT64:
+                    return CodedOutputStream.computeInt64SizeNoTag(toLong(value, field));
+                case UINT64:
+                    return CodedOutputStream.computeUInt64SizeNoTag(toLong(value, field));
+                case INT32:
+                    return CodedOutputStream.computeInt32SizeNoTag(toInt(value, field));
+                case FIXED64:
+                    return CodedOutputStream.computeFixed64SizeNoTag(toLong(value, field));
+                case FIXED32:
+                    return CodedOutputStream.computeFixed32SizeNoTag(toInt(value, field));
+                case BOOL:
+                    return CodedOutputStream.computeBoolSizeNoTag(toBoolean(value, field));
+                case STRING:
+                    return CodedOutputStream.computeStringSizeNoTag(toStringValue(value, field));
+                case BYTES:
+                    return value instanceof byte[]
+                            ? CodedOutputStream.computeByteArraySizeNoTag((byte[]) value)
+                            : CodedOutputStream.computeBytesSizeNoTag(toByteString(value, field));
+                case UINT32:
+                    return CodedOutputStream.computeUInt32SizeNoTag(toInt(value, field));
+                case ENUM:
+                    return CodedOutputStream.computeEnumSizeNoTag(toEnumNumber(value, field));
+                case SFIXED32:
+                    return CodedOutputStream.computeSFixed32SizeNoTag(toInt(value, field));
+                case SFIXED64:
+                    return CodedOutputStream.computeSFixed64SizeNoTag(toLong(value, field));
+                case SINT32:
+                    return CodedOutputStream.computeSInt32SizeNoTag(toInt(value, field));
+                case SINT64:
+                    return CodedOutputStream.computeSInt64SizeNoTag(toLong(value, field));
+                case MESSAGE:
+                    if (value instanceof MessageLite) {
+                        return CodedOutputStream.computeMessageSizeNoTag((MessageLite) value);
+                    } else if (value instanceof Map) {
+                        int nestedSize = computeMessageSize(value, field.messageSchema(), depth + 1);
+                        return CodedOutputStream.computeUInt32SizeNoTag(nestedSize) + nestedSize;
+                    }
+                    throw coercionError(value, field);
+                default:
+                    throw new RuntimeException(String.format("Unsupported field type [%s]", field.type));
+            }
+        }
+
+        private void writeMessage(CodedOutputStream output) throws IOException {
+            Object[] values = messageValues.get(valuesCursor++);
+            MessageSchema schema = (MessageSchema) values[values.length - 1];
+            sizeCursor++;
+            for (FieldSchema field : schema.fields) {
+                Object value = values[field.position];
+                if (value == null) continue;
+                if (!field.repeated) {
+                    writeField(output, field, value);
+                } else if (field.isPrimitiveArray(value)) {
+                    if (field.packed) {
+                        int payloadSize = sizes[sizeCursor++];
+                        if (payloadSize == 0) continue;
+                        output.writeUInt32NoTag(field.packedTag);
+                        output.writeUInt32NoTag(payloadSize);
+                    }
+                    writeArray(output, field, value, !field.packed);
+                } else if (field.packed) {
+                    int payloadSize = sizes[sizeCursor++];
+                    if (payloadSize == 0) continue;
+                    output.writeUInt32NoTag(field.packedTag);
+                    output.writeUInt32NoTag(payloadSize);
+                    for (Object element : iterable(value, field)) {
+                        writeValueNoTag(output, field, element);
+                    }
+                } else {
+                    for (Object element : iterable(value, field)) {
+                        writeField(output, field, element);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write the elements of a primitive array, each preceded by the field tag when unpacked.
+         */
+        private void writeArray(CodedOutputStream output, FieldSchema field, Object array, boolean tagged) throws IOException {
+            int length = arrayLength(array);
+            for (int i = 0; i < length; i++) {
+                if (tagged) output.writeUInt32NoTag(field.tag);
+                switch (field.type) {
+                    case DOUBLE:
+                        output.writeDoubleNoTag(((double[]) array)[i]);
+                        break;
+                    case FLOAT:
+                        output.writeFloatNoTag(((float[]) array)[i]);
+                        break;
+                    case BOOL:
+                        output.writeBoolNoTag(((boolean[]) array)[i]);
+                        break;
+                    case INT32:
+                        output.writeInt32NoTag(((int[]) array)[i]);
+                        break;
+                    case UINT32:
+                        output.writeUInt32NoTag(((int[]) array)[i]);
+                        break;
+                    case SINT32:
+                        output.writeSInt32NoTag(((int[]) array)[i]);
+                        break;
+                    case FIXED32:
+                        output.writeFixed32NoTag(((int[]) array)[i]);
+                        break;
+                    case SFIXED32:
+                        output.writeSFixed32NoTag(((int[]) array)[i]);
+                        break;
+                    case INT64:
+                        output.writeInt64NoTag(((long[]) array)[i]);
+                        break;
+                    case UINT64:
+                        output.writeUInt64NoTag(((long[]) array)[i]);
+                        break;
+                    case SINT64:
+                        output.writeSInt64NoTag(((long[]) array)[i]);
+                        break;
+                    case FIXED64:
+                        output.writeFixed64NoTag(((long[]) array)[i]);
+                        break;
+                    case SFIXED64:
+                        output.writeSFixed64NoTag(((long[]) array)[i]);
+                        break;
+                    default:
+                        throw coercionError(array, field);
+                }
+            }
+        }
+
+        private void writeField(CodedOutputStream output, FieldSchema field, Object value) throws IOException {
+            output.writeUInt32NoTag(field.tag);
+            writeValueNoTag(output, field, value);
+        }
+
+        private void writeValueNoTag(CodedOutputStream output, FieldSchema field, Object value) throws IOException {
+            switch (field.type) {
+                case DOUBLE:
+                    output.writeDoubleNoTag(toDouble(value, field));
+                    break;
+                case FLOAT:
+                    output.writeFloatNoTag(toFloat(value, field));
+                    break;
+                case INT64:
+                    output.writeInt64NoTag(toLong(value, field));
+                    break;
+                case UINT64:
+                    output.writeUInt64NoTag(toLong(value, field));
+                    break;
+                case INT32:
+                    output.writeInt32NoTag(toInt(value, field));
+                    break;
+                case FIXED64:
+                    output.writeFixed64NoTag(toLong(value, field));
+                    break;
+                case FIXED32:
+                    output.writeFixed32NoTag(toInt(value, field));
+                    break;
+                case BOOL:
+                    output.writeBoolNoTag(toBoolean(value, field));
+                    break;
+                case STRING:
+                    output.writeStringNoTag(toStringValue(value, field));
+                    break;
+                case BYTES:
+                    if (value instanceof byte[]) {
+                        output.writeByteArrayNoTag((byte[]) value);
+                    } else {
+                        output.writeBytesNoTag(toByteString(value, field));
+                    }
+                    break;
+                case UINT32:
+                    output.writeUInt32NoTag(toInt(value, field));
+                    break;
+                case ENUM:
+                    output.writeEnumNoTag(toEnumNumber(value, field));
+                    break;
+                case SFIXED32:
+                    output.writeSFixed32NoTag(toInt(value, field));
+                    break;
+                case SFIXED64:
+                    output.writeSFixed64NoTag(toLong(value, field));
+                    break;
+                case SINT32:
+                    output.writeSInt32NoTag(toInt(value, field));
+                    break;
+                case SINT64:
+                    output.writeSInt64NoTag(toLong(value, field));
+                    break;
+                case MESSAGE:
+                    if (value instanceof MessageLite) {
+                        output.writeMessageNoTag((MessageLite) value);
+                    } else {
+                        output.writeUInt32NoTag(sizes[sizeCursor]);
+                        writeMessage(output);
+                    }
+                    break;
+                default:
+                    throw new RuntimeException(String.format("Unsupported field type [%s]", field.type));
+            }
+        }
+    }
+
+    private static final class Decoder {
+        private final boolean enumsAsKeywords;
+        private final boolean fieldsAsKeywords;
+        private final boolean repeatedScalarsAsArrays;
+
+        private Decoder(boolean enumsAsKeywords, boolean fieldsAsKeywords, boolean repeatedScalarsAsArrays) {
+            this.enumsAsKeywords = enumsAsKeywords;
+            this.fieldsAsKeywords = fieldsAsKeywords;
+            this.repeatedScalarsAsArrays = repeatedScalarsAsArrays;
+        }
+
+        private IPersistentMap readMessage(CodedInputStream input, MessageSchema schema, int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new InvalidProtocolBufferException("Message nesting exceeds maximum depth=" + MAX_DEPTH);
+            }
+            Object[] values = new Object[schema.fields.length];
+            while (true) {
+                int tag = input.readTag();
+                if (tag == 0) break;
+                FieldSchema field = schema.fieldByNumber(WireFormat.getTagFieldNumber(tag));
+                int wireType = WireFormat.getTagWireType(tag);
+                if (field == null) {
+                    input.skipField(tag);
+                } else if (field.repeated && repeatedScalarsAsArrays && field.arrayClass != null) {
+                    ArrayBuilder elements = (ArrayBuilder) values[field.position];
+                    if (elements == null) {
+                        elements = new ArrayBuilder(field);
+                        values[field.position] = elements;
+                    }
+                    if (wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                        int limit = input.pushLimit(input.readRawVarint32());
+                        // Every element takes at least one byte, fixed width elements exactly their width
+                        elements.ensureCapacity(input.getBytesUntilLimit() / field.fixedWidth());
+                        while (input.getBytesUntilLimit() > 0) {
+                            elements.read(input);
+                        }
+                        input.popLimit(limit);
+                    } else if (wireType == field.wireType) {
+                        elements.read(input);
+                    } else {
+                        input.skipField(tag);
+                    }
+                } else if (field.repeated) {
+                    ITransientCollection elements = (ITransientCollection) values[field.position];
+                    if (elements == null) {
+                        elements = PersistentVector.EMPTY.asTransient();
+                    }
+                    if (wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED && field.packable) {
+                        int limit = input.pushLimit(input.readRawVarint32());
+                        while (input.getBytesUntilLimit() > 0) {
+                            elements = conjValue(elements, readValue(input, field, depth));
+                        }
+                        input.popLimit(limit);
+                    } else if (wireType == field.wireType) {
+                        elements = conjValue(elements, readValue(input, field, depth));
+                    } else {
+                        input.skipField(tag);
+                    }
+                    values[field.position] = elements;
+                } else if (wireType == field.wireType) {
+                    Object value = readValue(input, field, depth);
+                    if (value != null) {
+                        Object previous = values[field.position];
+                        // Repeated occurrences of a singular message field are merged
+                        values[field.position] = previous instanceof IPersistentMap && value instanceof IPersistentMap
+                                ? mergeMessages((IPersistentMap) previous, (IPersistentMap) value)
+                                : value;
+                    }
+                } else {
+                    input.skipField(tag);
+                }
+            }
+
+            ITransientMap message = PersistentArrayMap.EMPTY.asTransient();
+            for (FieldSchema field : schema.fields) {
+                Object value = values[field.position];
+                if (value instanceof ArrayBuilder) {
+                    value = ((ArrayBuilder) value).toArray();
+                } else if (field.repeated) {
+                    value = value == null
+                            ? (repeatedScalarsAsArrays && field.arrayClass != null
+                               ? Array.newInstance(field.arrayClass.getComponentType(), 0)
+                               : PersistentVector.EMPTY)
+                            : ((ITransientCollection) value).persistent();
+                } else if (value == null) {
+                    if (field.required) {
+                        throw new InvalidProtocolBufferException(String.format(
+                                "Message of type=[%s] is missing required field=[%s]",
+                                schema.type.getFullName(), field.name));
+                    }
+                    continue;
+                } else if (Boolean.FALSE.equals(value)) {
+                    // Left out as by the message converter, which omits fields set to false
+                    continue;
+                }
+                message = message.assoc(fieldsAsKeywords ? field.keyword : field.name, value);
+            }
+            return message.persistent();
+        }
+
+        private static ITransientCollection conjValue(ITransientCollection elements, Object value) {
+            return value == null ? elements : elements.conj(value);
+        }
+
+        private Object readValue(CodedInputStream input, FieldSchema field, int depth) throws IOException {
+            switch (field.type) {
+                case DOUBLE:
+                    return input.readDouble();
+                case FLOAT:
+                    return input.readFloat();
+                case INT64:
+                    return input.readInt64();
+                case UINT64:
+                    return input.readUInt64();
+                case INT32:
+                    return input.readInt32();
+                case FIXED64:
+                    return input.readFixed64();
+                case FIXED32:
+                    return input.readFixed32();
+                case BOOL:
+                    return input.readBool();
+                case STRING:
+                    return input.readString();
+                case BYTES:
+                    return input.readBytes();
+                case UINT32:
+                    return input.readUInt32();
+                case ENUM:
+                    return field.enumValue(input.readEnum(), enumsAsKeywords);
+                case SFIXED32:
+                    return input.readSFixed32();
+                case SFIXED64:
+                    return input.readSFixed64();
+                case SINT32:
+                    return input.readSInt32();
+                case SINT64:
+                    return input.readSInt64();
+                case MESSAGE:
+                    int limit = input.pushLimit(input.readRawVarint32());
+                    IPersistentMap message = readMessage(input, field.messageSchema(), depth + 1);
+                    input.checkLastTagWas(0);
+                    input.popLimit(limit);
+                    return message;
+                default:
+                    throw new RuntimeException(String.format("Unsupported field type [%s]", field.type));
+            }
+        }
+
+        private static IPersistentMap mergeMessages(IPersistentMap previous, IPersistentMap next) {
+            IPersistentMap merged = previous;
+            for (Object o : next) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+                Object previousValue = previous.valAt(entry.getKey());
+                Object value = entry.getValue();
+                if (previousValue instanceof IPersistentMap && value instanceof IPersistentMap) {
+                    value = mergeMessages((IPersistentMap) previousValue, (IPersistentMap) value);
+                } else if (previousValue != null && previousValue.getClass().isArray()
+                        && value != null && value.getClass() == previousValue.getClass()) {
+                    int previousLength = arrayLength(previousValue);
+                    int length = arrayLength(value);
+                    Object elements = Array.newInstance(
+                            value.getClass().getComponentType(), previousLength + length);
+                    System.arraycopy(previousValue, 0, elements, 0, previousLength);
+                    System.arraycopy(value, 0, elements, previousLength, length);
+                    value = elements;
+                } else if (previousValue instanceof IPersistentVector && value instanceof IPersistentVector) {
+                    ITransientCollection elements = ((IEditableCollection) previousValue).asTransient();
+                    for (Object element : (Iterable<?>) value) {
+                        elements = elements.conj(element);
+                    }
+                    value = elements.persistent();
+                }
+                merged = merged.assoc(entry.getKey(), value);
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * Accumulates the elements of a repeated scalar field into a primitive array.
+     */
+    private static final class ArrayBuilder {
+        private final FieldSchema field;
+        private Object array;
+        private int size;
+
+        private ArrayBuilder(FieldSchema field) {
+            this.field = field;
+            this.array = Array.newInstance(field.arrayClass.getComponentType(), 8);
+        }
+
+        private void ensureCapacity(int additional) {
+            int capacity = arrayLength(array);
+            if (size + additional > capacity) {
+                array = copyOf(array, Math.max(size + additional, capacity * 2));
+            }
+        }
+
+        private void read(CodedInputStream input) throws IOException {
+            ensureCapacity(1);
+            switch (field.type) {
+                case DOUBLE:
+                    ((double[]) array)[size++] = input.readDouble();
+                    break;
+                case FLOAT:
+                    ((float[]) array)[size++] = input.readFloat();
+                    break;
+                case BOOL:
+                    ((boolean[]) array)[size++] = input.readBool();
+                    break;
+                case INT32:
+                    ((int[]) array)[size++] = input.readInt32();
+                    break;
+                case UINT32:
+                    ((int[]) array)[size++] = input.readUInt32();
+                    break;
+                case SINT32:
+                    ((int[]) array)[size++] = input.readSInt32();
+                    break;
+                case FIXED32:
+                    ((int[]) array)[size++] = input.readFixed32();
+                    break;
+                case SFIXED32:
+                    ((int[]) array)[size++] = input.readSFixed32();
+                    break;
+                case INT64:
+                    ((long[]) array)[size++] = input.readInt64();
+                    break;
+                case UINT64:
+                    ((long[]) array)[size++] = input.readUInt64();
+                    break;
+                case SINT64:
+                    ((long[]) array)[size++] = input.readSInt64();
+                    break;
+                case FIXED64:
+                    ((long[]) array)[size++] = input.readFixed64();
+                    break;
+                case SFIXED64:
+                    ((long[]) array)[size++] = input.readSFixed64();
+                    break;
+                default:
+                    throw new RuntimeException(String.format("Unsupported array field type [%s]", field.type));
+            }
+        }
+
+        private Object toArray() {
+            return size == arrayLength(array) ? array : copyOf(array, size);
+        }
+
+        private static Object copyOf(Object array, int length) {
+            Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, Math.min(length, arrayLength(array)));
+            return copy;
+        }
+    }
+
+    private static final class MessageSchema {
+        private final Descriptors.Descriptor type;
+        private final FieldSchema[] fields;
+        private final Map<Object, FieldSchema> fieldsByKey = new HashMap<>();
+        private final FieldSchema[] fieldsByNumber;
+        private final Map<Integer, FieldSchema> sparseFieldsByNumber = new HashMap<>();
+        private final FieldSchema[] requiredFields;
+
+        private MessageSchema(WireCodec codec, Descriptors.Descriptor type) {
+            this.type = type;
+            List<Descriptors.FieldDescriptor> descriptors = type.getFields();
+            this.fields = new FieldSchema[descriptors.size()];
+            int maxNumber = 0;
+            List<FieldSchema> required = new ArrayList<>();
+            for (int i = 0; i < fields.length; i++) {
+                FieldSchema field = new FieldSchema(codec, descriptors.get(i), i);
+                fields[i] = field;
+                fieldsByKey.put(field.name, field);
+                fieldsByKey.put(field.keyword, field);
+                fieldsByKey.put((long) field.index, field);
+                fieldsByKey.put(field.index, field);
+                sparseFieldsByNumber.put(field.number, field);
+                maxNumber = Math.max(maxNumber, field.number);
+                if (field.required) required.add(field);
+            }
+            this.requiredFields = required.toArray(new FieldSchema[0]);
+            if (maxNumber <= MAX_DENSE_FIELD_NUMBER) {
+                this.fieldsByNumber = new FieldSchema[maxNumber + 1];
+                for (FieldSchema field : fields) {
+                    fieldsByNumber[field.number] = field;
+                }
+            } else {
+                this.fieldsByNumber = null;
+            }
+        }
+
+        private FieldSchema fieldByNumber(int number) {
+            if (fieldsByNumber != null) {
+                return number < fieldsByNumber.length ? fieldsByNumber[number] : null;
+            }
+            return sparseFieldsByNumber.get(number);
+        }
+
+        /**
+         * Return the map values by field position, followed by this schema. A field set to nil is
+         * the same as not being set, since protobuf does not have null values.
+         */
+        private Object[] collectValues(Object messageMap) {
+            Object[] values = new Object[fields.length + 1];
+            values[fields.length] = this;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) messageMap).entrySet()) {
+                FieldSchema field = fieldsByKey.get(entry.getKey());
+                if (field != null && entry.getValue() != null) {
+                    values[field.position] = entry.getValue();
+                }
+            }
+            for (FieldSchema field : requiredFields) {
+                if (values[field.position] == null) {
+                    throw new RuntimeException(String.format(
+                            "Field [%s] is required but no value was supplied", field.descriptor.getFullName()));
+                }
+            }
+            return values;
+        }
+    }
+
+    private static final class FieldSchema {
+        private final WireCodec codec;
+        private final Descriptors.FieldDescriptor descriptor;
+        private final int position;
+        private final int index;
+        private final int number;
+        private final String name;
+        private final Keyword keyword;
+        private final Descriptors.FieldDescriptor.Type type;
+        private final boolean repeated;
+        private final boolean required;
+        private final boolean packable;
+        private final boolean packed;
+        private final int wireType;
+        private final int tag;
+        private final int packedTag;
+        private final int tagSize;
+        private final Class<?> arrayClass;
+        private final Map<Integer, Keyword> enumKeywords;
+        private final Map<Integer, String> enumNames;
+        private volatile MessageSchema messageSchema;
+
+        private FieldSchema(WireCodec codec, Descriptors.FieldDescriptor descriptor, int position) {
+            this.codec = codec;
+            this.descriptor = descriptor;
+            this.position = position;
+            this.index = descriptor.getIndex();
+            this.number = descriptor.getNumber();
+            this.name = descriptor.getName();
+            this.keyword = Keyword.intern(name);
+            this.type = descriptor.getType();
+            this.repeated = descriptor.isRepeated();
+            this.required = descriptor.isRequired();
+            this.packable = descriptor.isPackable();
+            this.packed = descriptor.isPacked();
+            this.wireType = descriptor.getLiteType().getWireType();
+            this.tag = makeTag(number, wireType);
+            this.packedTag = makeTag(number, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            this.tagSize = CodedOutputStream.computeTagSize(number);
+            this.arrayClass = repeated ? primitiveArrayClass(descriptor) : null;
+            if (type == Descriptors.FieldDescriptor.Type.GROUP) {
+                throw new RuntimeException(String.format("Group field=[%s] is not supported", descriptor.getFullName()));
+            }
+            if (type == Descriptors.FieldDescriptor.Type.ENUM) {
+                this.enumKeywords = new HashMap<>();
+                this.enumNames = new HashMap<>();
+                for (Descriptors.EnumValueDescriptor value : descriptor.getEnumType().getValues()) {
+                    enumKeywords.putIfAbsent(value.getNumber(), Keyword.intern(value.getName()));
+                    enumNames.putIfAbsent(value.getNumber(), value.getName());
+                }
+            } else {
+                this.enumKeywords = null;
+                this.enumNames = null;
+            }
+        }
+
+        private boolean isPrimitiveArray(Object value) {
+            return arrayClass != null && arrayClass.isInstance(value);
+        }
+
+        /**
+         * The smallest number of bytes an element takes on the wire.
+         */
+        private int fixedWidth() {
+            switch (wireType) {
+                case WireFormat.WIRETYPE_FIXED64:
+                    return 8;
+                case WireFormat.WIRETYPE_FIXED32:
+                    return 4;
+                default:
+                    return 1;
+            }
+        }
+
+        private MessageSchema messageSchema() {
+            // Resolved on first use, message types may be recursive
+            MessageSchema schema = messageSchema;
+            if (schema == null) {
+                schema = codec.schema(descriptor.getMessageType());
+                messageSchema = schema;
+            }
+            return schema;
+        }
+
+        /**
+         * Return the clojure value of an enum number. Unknown values of closed (proto2) enums
+         * are dropped, matching how they are kept out of the fields of a parsed message.
+         */
+        private Object enumValue(int number, boolean asKeyword) {
+            Object value = asKeyword ? enumKeywords.get(number) : enumNames.get(number);
+            if (value == null && descriptor.getFile().getSyntax() == Descriptors.FileDescriptor.Syntax.PROTO3) {
+                String unknownName = descriptor.getEnumType().findValueByNumberCreatingIfUnknown(number).getName();
+                value = asKeyword ? Keyword.intern(unknownName) : unknownName;
+            }
+            return value;
+        }
+    }
+
+    private static int makeTag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    private static int arrayLength(Object array) {
+        return Array.getLength(array);
+    }
+
+    private static Iterable<?> iterable(Object values, FieldSchema field) {
+        if (values instanceof Iterable) {
+            return (Iterable<?>) values;
+        }
+        ISeq seq = RT.seq(values);
+        if (seq == null) {
+            return Collections.emptyList();
+        }
+        if (seq instanceof Iterable) {
+            return (Iterable<?>) seq;
+        }
+        throw coercionError(values, field);
+    }
+
+    private static int toInt(Object value, FieldSchema field) {
+        if (value instanceof Integer) return (Integer) value;
+        if (value instanceof Long) return ((Long) value).intValue();
+        throw coercionError(value, field);
+    }
+
+    private static long toLong(Object value, FieldSchema field) {
+        if (value instanceof Long) return (Long) value;
+        if (value instanceof Integer) return ((Integer) value).longValue();
+        throw coercionError(value, field);
+    }
+
+    private static float toFloat(Object value, FieldSchema field) {
+        if (value instanceof Number) return ((Number) value).floatValue();
+        throw coercionError(value, field);
+    }
+
+    private static double toDouble(Object value, FieldSchema field) {
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        throw coercionError(value, field);
+    }
+
+    private static boolean toBoolean(Object value, FieldSchema field) {
+        if (value instanceof Boolean) return (Boolean) value;
+        throw coercionError(value, field);
+    }
+
+    private static String toStringValue(Object value, FieldSchema field) {
+        if (value instanceof String) return (String) value;
+        throw coercionError(value, field);
+    }
+
+    private static ByteString toByteString(Object value, FieldSchema field) {
+        if (value instanceof ByteString) return (ByteString) value;
+        throw coercionError(value, field);
+    }
+
+    private static int toEnumNumber(Object value, FieldSchema field) {
+        Descriptors.EnumValueDescriptor enumValue = null;
+        if (value instanceof Integer || value instanceof Long) {
+            enumValue = field.descriptor.getEnumType().findValueByNumber(((Number) value).intValue());
+        } else if (value instanceof Keyword) {
+            enumValue = field.descriptor.getEnumType().findValueByName(((Keyword) value).getName());
+        } else if (value instanceof String) {
+            enumValue = field.descriptor.getEnumType().findValueByName((String) value);
+        } else if (value instanceof Internal.EnumLite) {
+            return ((Internal.EnumLite) value).getNumber();
+        }
+        if (enumValue == null) {
+            throw coercionError(value, field);
+        }
+        return enumValue.getNumber();
+    }
+
+    private static RuntimeException coercionError(Object value, FieldSchema field) {
+        return new RuntimeException(String.format(
+                "%s Cannot coerce field value of type [%s] to field type [%s] for field [%s]",
+                value,
+                value == null ? null : value.getClass(),
+                field.descriptor.getJavaType(),
+                field.descriptor.getFullName()));
+    }
+}
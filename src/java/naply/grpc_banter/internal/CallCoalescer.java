@@ -0,0 +1,206 @@
+package naply.grpc_banter.internal;
+
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Shares one call between concurrent identical unary calls. The first caller starts the call
+ * and later callers with the same {@link RequestKey} wait on it, each completing with the same
+ * response or error.
+ * <p>
+ * The shared call runs with the deadline of the caller that started it. A caller joins only a
+ * call that leaves it at least nine tenths of its own deadline, so that callers arriving
+ * moments apart with the same deadline share a call, and is failed with DEADLINE_EXCEEDED at
+ * its own deadline if the shared call has not completed by then. A caller that cancels, or whose
+ * deadline passes, stops waiting without affecting the others; the shared call is cancelled
+ * once no caller is waiting on it.
+ */
+public final class CallCoalescer {
+
+    private final ConcurrentHashMap<RequestKey, Flight> flights = new ConcurrentHashMap<>();
+    private ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Wait on the call in flight for the key, or start one with the supplier.
+     */
+    public CompletableFuture<RpcResponse> call(
+            RequestKey key,
+            long deadlineMillis,
+            Supplier<CompletableFuture<RpcResponse>> startCall) {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        long joinDeadlineNanos = deadlineNanos - TimeUnit.MILLISECONDS.toNanos(deadlineMillis) / 10;
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight != null && flight.deadlineNanos - joinDeadlineNanos >= 0) {
+                Waiter waiter = flight.join(deadlineNanos);
+                if (waiter != null) {
+                    return waiter;
+                }
+            }
+            // No call in flight, or one that could end before this caller's deadline
+            Flight started = new Flight(key, deadlineNanos);
+            boolean registered = flight == null
+                    ? flights.putIfAbsent(key, started) == null
+                    : flights.replace(key, flight, started);
+            if (registered) {
+                Waiter waiter = started.join(deadlineNanos);
+                started.start(startCall);
+                return waiter;
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    private synchronized ScheduledThreadPoolExecutor timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "grpc-banter-coalescer-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    private final class Flight {
+        private final RequestKey key;
+        private final long deadlineNanos;
+        private final List<Waiter> waiters = new ArrayList<>();
+        private CompletableFuture<RpcResponse> call;
+        private boolean done;
+
+        private Flight(RequestKey key, long deadlineNanos) {
+            this.key = key;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Add a waiter, or return null if the call has already completed. The waiter's timeout
+         * is scheduled before the waiter is added, under the lock, so completing the call
+         * always sees and cancels it.
+         */
+        private Waiter join(long waiterDeadlineNanos) {
+            Waiter waiter = new Waiter(this);
+            ScheduledThreadPoolExecutor timer = deadlineNanos - waiterDeadlineNanos > 0 ? timer() : null;
+            synchronized (this) {
+                if (done) {
+                    return null;
+                }
+                if (timer != null) {
+                    waiter.timeout = timer.schedule(
+                            () -> waiter.expire(),
+                            waiterDeadlineNanos - System.nanoTime(),
+                            TimeUnit.NANOSECONDS);
+                }
+                waiters.add(waiter);
+            }
+            return waiter;
+        }
+
+        private void start(Supplier<CompletableFuture<RpcResponse>> startCall) {
+            CompletableFuture<RpcResponse> started;
+            try {
+                started = startCall.get();
+            } catch (RuntimeException | Error e) {
+                complete(null, e);
+                throw e;
+            }
+            boolean cancelled;
+            synchronized (this) {
+                call = started;
+                cancelled = done && waiters.isEmpty();
+            }
+            if (cancelled) {
+                started.cancel(true);
+            }
+            started.whenComplete(this::complete);
+        }
+
+        private void complete(RpcResponse response, Throwable error) {
+            List<Waiter> completed;
+            synchronized (this) {
+                done = true;
+                completed = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+            flights.remove(key, this);
+            for (Waiter waiter : completed) {
+                waiter.completeFrom(response, error);
+            }
+        }
+
+        /**
+         * Remove a waiter that stopped waiting, cancelling the call if it was the last.
+         */
+        private void leave(Waiter waiter) {
+            CompletableFuture<RpcResponse> cancel = null;
+            synchronized (this) {
+                if (done || !waiters.remove(waiter) || !waiters.isEmpty()) {
+                    return;
+                }
+                done = true;
+                cancel = call;
+            }
+            flights.remove(key, this);
+            if (cancel != null) {
+                cancel.cancel(true);
+            }
+        }
+    }
+
+    private static final class Waiter extends CompletableFuture<RpcResponse> {
+        private final Flight flight;
+        private volatile ScheduledFuture<?> timeout;
+
+        private Waiter(Flight flight) {
+            this.flight = flight;
+        }
+
+        private void completeFrom(RpcResponse response, Throwable error) {
+            ScheduledFuture<?> scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            if (error != null) {
+                completeExceptionally(error);
+            } else {
+                complete(response);
+            }
+        }
+
+        private void expire() {
+            if (completeExceptionally(Status.DEADLINE_EXCEEDED
+                    .withDescription("Deadline exceeded waiting for a coalesced call")
+                    .asRuntimeException())) {
+                flight.leave(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                ScheduledFuture<?> scheduled = timeout;
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+                flight.leave(this);
+            }
+            return cancelled;
+        }
+    }
+}
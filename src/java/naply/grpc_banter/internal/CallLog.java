@@ -0,0 +1,353 @@
+package naply.grpc_banter.internal;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The binary log of recorded calls. The log starts with {@link #MAGIC}, followed by one
+ * length-delimited record per call. Each record is a varint length and the record's fields in
+ * the protobuf wire format, so that fields can be added without breaking older logs:
+ * <pre>
+ * 1: method name, 2: serialized request, 3: header (repeated, 1: name, 2: value),
+ * 4: serialized response, 5: status code, 6: status description,
+ * 7: start of the call in nanoseconds since the recording started, 8: latency in nanoseconds
+ * </pre>
+ */
+public final class CallLog {
+
+    static final byte[] MAGIC = "BANTERLOG1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int METHOD = 1;
+    private static final int REQUEST = 2;
+    private static final int HEADER = 3;
+    private static final int RESPONSE = 4;
+    private static final int STATUS_CODE = 5;
+    private static final int STATUS_DESCRIPTION = 6;
+    private static final int START_NANOS = 7;
+    private static final int LATENCY_NANOS = 8;
+    private static final int HEADER_NAME = 1;
+    private static final int HEADER_VALUE = 2;
+
+    // Records are read through mappings of at most this size, so logs may exceed 2GB
+    private static final long WINDOW_BYTES = 256L * 1024 * 1024;
+
+    private CallLog() {
+    }
+
+    /**
+     * Open a log of recorded calls for reading. The log is memory mapped and its records are
+     * read lazily, with their requests and responses referring to the mapped file rather
+     * than copied to the heap.
+     */
+    public static Reader read(Path file) throws IOException {
+        return new Reader(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    /**
+     * One recorded call.
+     */
+    public static final class Record {
+        private final String fullMethodName;
+        private final ByteString request;
+        private final Metadata headers;
+        private final ByteString response;
+        private final Status.Code statusCode;
+        private final String statusDescription;
+        private final long startNanos;
+        private final long latencyNanos;
+
+        Record(
+                String fullMethodName,
+                ByteString request,
+                Metadata headers,
+                ByteString response,
+                Status.Code statusCode,
+                String statusDescription,
+                long startNanos,
+                long latencyNanos) {
+            this.fullMethodName = fullMethodName;
+            this.request = request;
+            this.headers = headers;
+            this.response = response;
+            this.statusCode = statusCode;
+            this.statusDescription = statusDescription;
+            this.startNanos = startNanos;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public String getFullMethodName() {
+            return fullMethodName;
+        }
+
+        public ByteString getRequest() {
+            return request;
+        }
+
+        public Metadata getHeaders() {
+            return headers;
+        }
+
+        /**
+         * The serialized response, empty if the call failed.
+         */
+        public ByteString getResponse() {
+            return response;
+        }
+
+        public Status.Code getStatusCode() {
+            return statusCode;
+        }
+
+        public String getStatusDescription() {
+            return statusDescription;
+        }
+
+        /**
+         * Start of the call in nanoseconds since the recording started.
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * Write the record, length-delimited. The output is not flushed.
+         */
+        void writeTo(CodedOutputStream output) throws IOException {
+            List<byte[][]> headerValues = headerValues(headers);
+            int size = CodedOutputStream.computeStringSize(METHOD, fullMethodName)
+                    + CodedOutputStream.computeBytesSize(REQUEST, request)
+                    + CodedOutputStream.computeBytesSize(RESPONSE, response)
+                    + CodedOutputStream.computeEnumSize(STATUS_CODE, statusCode.value())
+                    + (statusDescription == null ? 0 : CodedOutputStream.computeStringSize(STATUS_DESCRIPTION, statusDescription))
+                    + CodedOutputStream.computeInt64Size(START_NANOS, startNanos)
+                    + CodedOutputStream.computeInt64Size(LATENCY_NANOS, latencyNanos);
+            for (byte[][] header : headerValues) {
+                int headerSize = headerSize(header);
+                size += CodedOutputStream.computeTagSize(HEADER)
+                        + CodedOutputStream.computeUInt32SizeNoTag(headerSize)
+                        + headerSize;
+            }
+            output.writeUInt32NoTag(size);
+            output.writeString(METHOD, fullMethodName);
+            output.writeBytes(REQUEST, request);
+            for (byte[][] header : headerValues) {
+                output.writeTag(HEADER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                output.writeUInt32NoTag(headerSize(header));
+                output.writeByteArray(HEADER_NAME, header[0]);
+                output.writeByteArray(HEADER_VALUE, header[1]);
+            }
+            output.writeBytes(RESPONSE, response);
+            output.writeEnum(STATUS_CODE, statusCode.value());
+            if (statusDescription != null) {
+                output.writeString(STATUS_DESCRIPTION, statusDescription);
+            }
+            output.writeInt64(START_NANOS, startNanos);
+            output.writeInt64(LATENCY_NANOS, latencyNanos);
+        }
+
+        private static int headerSize(byte[][] header) {
+            return CodedOutputStream.computeByteArraySize(HEADER_NAME, header[0])
+                    + CodedOutputStream.computeByteArraySize(HEADER_VALUE, header[1]);
+        }
+
+        /**
+         * The name and value bytes of every header value. Binary values are their raw bytes
+         * and ASCII values their characters.
+         */
+        private static List<byte[][]> headerValues(Metadata headers) {
+            List<byte[][]> values = new ArrayList<>();
+            for (String name : headers.keys()) {
+                byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+                Iterable<?> nameValues = headers.getAll(RequestKey.headerKey(name));
+                if (nameValues == null) {
+                    continue;
+                }
+                for (Object value : nameValues) {
+                    byte[] valueBytes = value instanceof byte[]
+                            ? (byte[]) value
+                            : ((String) value).getBytes(StandardCharsets.US_ASCII);
+                    values.add(new byte[][]{nameBytes, valueBytes});
+                }
+            }
+            return values;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void addHeader(Metadata headers, byte[] name, byte[] value) {
+            String headerName = new String(name, StandardCharsets.US_ASCII);
+            Metadata.Key<?> key = RequestKey.headerKey(headerName);
+            if (headerName.endsWith(Metadata.BINARY_HEADER_SUFFIX)) {
+                headers.put((Metadata.Key<byte[]>) key, value);
+            } else {
+                headers.put((Metadata.Key<String>) key, new String(value, StandardCharsets.US_ASCII));
+            }
+        }
+
+        static Record parse(ByteBuffer buffer) throws IOException {
+            CodedInputStream input = CodedInputStream.newInstance(buffer);
+            input.enableAliasing(true);
+            String method = null;
+            ByteString request = ByteString.EMPTY;
+            Metadata headers = new Metadata();
+            ByteString response = ByteString.EMPTY;
+            Status.Code statusCode = Status.Code.UNKNOWN;
+            String statusDescription = null;
+            long startNanos = 0;
+            long latencyNanos = 0;
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case METHOD:
+                        method = input.readStringRequireUtf8();
+                        break;
+                    case REQUEST:
+                        request = input.readBytes();
+                        break;
+                    case HEADER: {
+                        int limit = input.pushLimit(input.readRawVarint32());
+                        byte[] name = null;
+                        byte[] value = null;
+                        int headerTag;
+                        while ((headerTag = input.readTag()) != 0) {
+                            if (WireFormat.getTagFieldNumber(headerTag) == HEADER_NAME) {
+                                name = input.readByteArray();
+                            } else if (WireFormat.getTagFieldNumber(headerTag) == HEADER_VALUE) {
+                                value = input.readByteArray();
+                            } else {
+                                input.skipField(headerTag);
+                            }
+                        }
+                        input.popLimit(limit);
+                        if (name != null && value != null) {
+                            addHeader(headers, name, value);
+                        }
+                        break;
+                    }
+                    case RESPONSE:
+                        response = input.readBytes();
+                        break;
+                    case STATUS_CODE:
+                        statusCode = Status.fromCodeValue(input.readEnum()).getCode();
+                        break;
+                    case STATUS_DESCRIPTION:
+                        statusDescription = input.readStringRequireUtf8();
+                        break;
+                    case START_NANOS:
+                        startNanos = input.readInt64();
+                        break;
+                    case LATENCY_NANOS:
+                        latencyNanos = input.readInt64();
+                        break;
+                    default:
+                        input.skipField(tag);
+                }
+            }
+            if (method == null) {
+                throw new IOException("Recorded call without a method name");
+            }
+            return new Record(method, request, headers, response, statusCode, statusDescription, startNanos, latencyNanos);
+        }
+    }
+
+    /**
+     * Iterates the records of a log through a sliding memory mapping of the file.
+     */
+    public static final class Reader implements Iterator<Record>, Closeable {
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long position;
+
+        private Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.fileSize = channel.size();
+            try {
+                map(0, Math.min(fileSize, WINDOW_BYTES));
+                byte[] magic = new byte[MAGIC.length];
+                if (fileSize < MAGIC.length) {
+                    throw new IOException("Not a call log, the file is too short");
+                }
+                window.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IOException("Not a call log, unknown file header");
+                }
+                position = MAGIC.length;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void map(long start, long size) throws IOException {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            windowStart = start;
+        }
+
+        /**
+         * Return the buffer of the bytes at the position, mapping a new window if they are not
+         * all in the current one.
+         */
+        private ByteBuffer slice(long start, int length) throws IOException {
+            if (start + length > fileSize) {
+                throw new IOException("Truncated call log record at offset " + start);
+            }
+            if (start < windowStart || start + length > windowStart + window.limit()) {
+                map(start, Math.min(fileSize - start, Math.max(WINDOW_BYTES, length)));
+            }
+            ByteBuffer slice = window.duplicate();
+            slice.position((int) (start - windowStart));
+            slice.limit((int) (start - windowStart) + length);
+            return slice.slice();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < fileSize;
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                ByteBuffer lengthBytes = slice(position, (int) Math.min(5, fileSize - position));
+                int length = CodedInputStream.newInstance(lengthBytes).readRawVarint32();
+                int lengthSize = CodedOutputStream.computeUInt32SizeNoTag(length);
+                Record record = Record.parse(slice(position + lengthSize, length));
+                position += lengthSize + length;
+                return record;
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read call log", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package naply.grpc_banter.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link MethodMetrics} of every method called through a client, by full method name.
+ */
+public final class CallMetrics {
+
+    private final ConcurrentHashMap<String, MethodMetrics> byMethod = new ConcurrentHashMap<>();
+
+    public MethodMetrics forMethod(String fullMethodName) {
+        return byMethod.computeIfAbsent(fullMethodName, name -> new MethodMetrics());
+    }
+
+    public Map<String, MethodMetrics> getMethods() {
+        return Collections.unmodifiableMap(byMethod);
+    }
+}
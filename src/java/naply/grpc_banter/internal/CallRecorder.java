@@ -0,0 +1,194 @@
+package naply.grpc_banter.internal;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import naply.grpc_banter.WireCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records calls to a {@link CallLog}. Calls are queued as they complete and serialized and
+ * written by a background thread, so recording never blocks a call. Calls completing while the
+ * queue is full are dropped and counted rather than waited for. If a call can not be
+ * serialized or the log can not be written, recording stops and the failure is thrown on close.
+ */
+public final class CallRecorder implements Closeable {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final long END_OFFER_MILLIS = 100;
+    private static final PendingCall END = new PendingCall(null, null, null, null, 0, 0, null, null);
+
+    private final WireCodec codec;
+
+    private final long startNanos = System.nanoTime();
+    private final BlockingQueue<PendingCall> queue;
+    private final OutputStream out;
+    private final CodedOutputStream output;
+    private final Thread writer;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    /**
+     * Start recording to the file, replacing any existing file.
+     *
+     * @param codec serializes requests recorded as clojure maps
+     */
+    public CallRecorder(Path file, int queueSize, WireCodec codec) throws IOException {
+        this.codec = codec;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.out = Files.newOutputStream(file);
+        this.output = CodedOutputStream.newInstance(out, BUFFER_BYTES);
+        output.writeRawBytes(CallLog.MAGIC);
+        this.writer = new Thread(this::write, "grpc-banter-call-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a completed call for recording.
+     *
+     * @param callStartNanos {@link System#nanoTime()} when the call started
+     * @param response the response message, or null if the call failed
+     */
+    public void record(
+            String fullMethodName,
+            Descriptors.Descriptor inputType,
+            Object request,
+            Metadata headers,
+            long callStartNanos,
+            Object response,
+            Status status) {
+        PendingCall call = new PendingCall(
+                fullMethodName, inputType, request, headers,
+                callStartNanos - startNanos, System.nanoTime() - callStartNanos, response, status);
+        if (closed || failure != null || !queue.offer(call)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Calls written to the log.
+     */
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * Calls not recorded because the queue was full, or the log could not be written.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void write() {
+        List<PendingCall> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (PendingCall call : batch) {
+                    if (call == END) {
+                        output.flush();
+                        return;
+                    }
+                    call.toRecord(codec).writeTo(output);
+                    recorded.incrementAndGet();
+                }
+                batch.clear();
+                // Write out whenever the writer catches up, so the log is current when calls are few
+                if (queue.isEmpty()) {
+                    output.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            failure = e;
+            dropped.addAndGet(batch.size() + queue.size());
+            queue.clear();
+        }
+    }
+
+    /**
+     * Write the calls already queued and close the log.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // The writer may stop at any time on a failure, and then never take from the queue
+            while (writer.isAlive() && !queue.offer(END, END_OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            out.close();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw new IOException("Could not record a call", failure);
+        }
+    }
+
+    private static final class PendingCall {
+        private final String fullMethodName;
+        private final Descriptors.Descriptor inputType;
+        private final Object request;
+        private final Metadata headers;
+        private final long startNanos;
+        private final long latencyNanos;
+        private final Object response;
+        private final Status status;
+
+        private PendingCall(
+                String fullMethodName,
+                Descriptors.Descriptor inputType,
+                Object request,
+                Metadata headers,
+                long startNanos,
+                long latencyNanos,
+                Object response,
+                Status status) {
+            this.fullMethodName = fullMethodName;
+            this.inputType = inputType;
+            this.request = request;
+            this.headers = headers;
+            this.startNanos = startNanos;
+            this.latencyNanos = latencyNanos;
+            this.response = response;
+            this.status = status;
+        }
+
+        private CallLog.Record toRecord(WireCodec codec) {
+            return new CallLog.Record(
+                    fullMethodName,
+                    MarshallerStreams.serialize(request, inputType, codec),
+                    headers,
+                    response == null ? ByteString.EMPTY : MarshallerStreams.serialize(response, null, codec),
+                    status.getCode(),
+                    status.getDescription(),
+                    startNanos,
+                    latencyNanos);
+        }
+    }
+}
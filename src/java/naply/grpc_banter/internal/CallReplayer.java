@@ -0,0 +1,357 @@
+package naply.grpc_banter.internal;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import naply.grpc_banter.CallSettings;
+import naply.grpc_banter.Client;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Replays the calls of a {@link CallLog} through a client and compares their status and
+ * response with the recording. Records are read from the memory mapped log as they are
+ * replayed, and requests are sent as the recorded bytes.
+ * <p>
+ * Calls are started at their recorded times divided by the speed, or as fast as the limit of
+ * calls in flight allows with a speed of 0. Paced calls measure latency from the time they
+ * were due to start, as {@link LoadGenerator} does in an open loop.
+ */
+public final class CallReplayer {
+
+    private final int maxDifferences;
+    private final long startNanos = System.nanoTime();
+    private final Histogram latency = new Histogram();
+    private final Histogram recordedLatency = new Histogram();
+    private final AtomicLongArray callsByStatus = new AtomicLongArray(Status.Code.values().length);
+    private final AtomicLong statusDifferences = new AtomicLong();
+    private final AtomicLong responseDifferences = new AtomicLong();
+    // The first differences of the log, with the last of them at the head to be replaced
+    private final PriorityQueue<Difference> differences =
+            new PriorityQueue<>(Comparator.comparingLong(Difference::getIndex).reversed());
+    // The reader and calls in flight, the replay is finished when it reaches zero
+    private final AtomicLong outstanding = new AtomicLong(1);
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile long finishNanos;
+
+    private CallReplayer(int maxDifferences) {
+        this.maxDifferences = maxDifferences;
+    }
+
+    /**
+     * Replay the log.
+     *
+     * @param methods resolves the recorded full method names
+     * @param settings settings of every call, with headers added to the recorded headers
+     * @param speed multiple of the recorded pace, or 0 to replay without pacing
+     * @param maxInFlight limit of calls in flight
+     * @param maxDifferences number of differing calls kept in the report
+     */
+    public static Report replay(
+            Client client,
+            Path log,
+            Function<String, Descriptors.MethodDescriptor> methods,
+            CallSettings settings,
+            double speed,
+            int maxInFlight,
+            int maxDifferences) throws IOException, InterruptedException {
+        CallReplayer replayer = new CallReplayer(maxDifferences);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Map<String, Descriptors.MethodDescriptor> resolved = new HashMap<>();
+        try (CallLog.Reader records = CallLog.read(log)) {
+            for (long index = 0; records.hasNext(); index++) {
+                CallLog.Record record = records.next();
+                long callStartNanos;
+                if (speed > 0) {
+                    callStartNanos = replayer.startNanos + (long) (record.getStartNanos() / speed);
+                    long waitNanos;
+                    while ((waitNanos = callStartNanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(waitNanos);
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                    }
+                    inFlight.acquire();
+                } else {
+                    inFlight.acquire();
+                    callStartNanos = System.nanoTime();
+                }
+                replayer.outstanding.incrementAndGet();
+                Descriptors.MethodDescriptor method = null;
+                CompletableFuture<RpcResponse> call;
+                try {
+                    method = resolved.computeIfAbsent(record.getFullMethodName(), methods);
+                    call = client.callMethodAsync(method, record.getRequest(), replaySettings(settings, record));
+                } catch (RuntimeException e) {
+                    call = new CompletableFuture<>();
+                    call.completeExceptionally(e);
+                }
+                long callIndex = index;
+                Descriptors.MethodDescriptor callMethod = method;
+                call.whenComplete((response, error) -> {
+                    inFlight.release();
+                    replayer.record(callIndex, record, callMethod, callStartNanos, response, error);
+                    replayer.ended();
+                });
+            }
+        } finally {
+            replayer.ended();
+        }
+        return replayer.awaitReport();
+    }
+
+    /**
+     * Requests are sent as the recorded bytes and responses compared as bytes, with the
+     * wire codec. Replayed calls always reach the server.
+     */
+    private static CallSettings replaySettings(CallSettings settings, CallLog.Record record) {
+        Metadata headers = new Metadata();
+        headers.merge(record.getHeaders());
+        headers.merge(settings.getHeaders());
+        return settings.toBuilder()
+                .headers(headers)
+                .codec(CallSettings.Codec.WIRE)
+                .cacheResponse(false)
+                .coalesce(false)
+                .build();
+    }
+
+    private void record(
+            long index,
+            CallLog.Record record,
+            Descriptors.MethodDescriptor method,
+            long callStartNanos,
+            RpcResponse response,
+            Throwable error) {
+        latency.record(System.nanoTime() - callStartNanos);
+        recordedLatency.record(record.getLatencyNanos());
+        Status.Code code = error != null
+                ? Status.fromThrowable(error).getCode()
+                : response.getStatus() != null ? response.getStatus().getCode() : Status.Code.OK;
+        callsByStatus.getAndIncrement(code.ordinal());
+        ByteString replayed = response == null ? ByteString.EMPTY : (ByteString) response.getMessage();
+        if (code != record.getStatusCode()) {
+            statusDifferences.incrementAndGet();
+        } else if (code == Status.Code.OK && !sameResponse(method.getOutputType(), record.getResponse(), replayed)) {
+            responseDifferences.incrementAndGet();
+        } else {
+            return;
+        }
+        if (maxDifferences == 0) {
+            return;
+        }
+        synchronized (differences) {
+            if (differences.size() < maxDifferences || index < differences.peek().getIndex()) {
+                differences.add(new Difference(
+                        index, record.getFullMethodName(), method == null ? null : method.getOutputType(),
+                        record.getStatusCode(), code, record.getResponse(), replayed));
+                if (differences.size() > maxDifferences) {
+                    differences.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Responses are the same if their bytes are, or if they parse to equal messages, as
+     * serialization does not guarantee the same bytes for the same message.
+     */
+    private static boolean sameResponse(Descriptors.Descriptor type, ByteString recorded, ByteString replayed) {
+        if (recorded.equals(replayed)) {
+            return true;
+        }
+        try {
+            return DynamicMessage.parseFrom(type, recorded).equals(DynamicMessage.parseFrom(type, replayed));
+        } catch (InvalidProtocolBufferException e) {
+            return false;
+        }
+    }
+
+    private void ended() {
+        if (outstanding.decrementAndGet() == 0) {
+            finishNanos = System.nanoTime();
+            finished.countDown();
+        }
+    }
+
+    private Report awaitReport() throws InterruptedException {
+        finished.await();
+        long[] counts = new long[callsByStatus.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = callsByStatus.get(i);
+        }
+        List<Difference> keptDifferences;
+        synchronized (differences) {
+            keptDifferences = new ArrayList<>(differences);
+        }
+        keptDifferences.sort(Comparator.comparingLong(Difference::getIndex));
+        return new Report(
+                finishNanos - startNanos, counts, latency.snapshot(), recordedLatency.snapshot(),
+                statusDifferences.get(), responseDifferences.get(), Collections.unmodifiableList(keptDifferences));
+    }
+
+    /**
+     * A replayed call whose status or response differs from its recording.
+     */
+    public static final class Difference {
+        private final long index;
+        private final String fullMethodName;
+        private final Descriptors.Descriptor responseType;
+        private final Status.Code recordedStatus;
+        private final Status.Code replayedStatus;
+        private final ByteString recordedResponse;
+        private final ByteString replayedResponse;
+
+        private Difference(
+                long index,
+                String fullMethodName,
+                Descriptors.Descriptor responseType,
+                Status.Code recordedStatus,
+                Status.Code replayedStatus,
+                ByteString recordedResponse,
+                ByteString replayedResponse) {
+            this.index = index;
+            this.fullMethodName = fullMethodName;
+            this.responseType = responseType;
+            this.recordedStatus = recordedStatus;
+            this.replayedStatus = replayedStatus;
+            this.recordedResponse = recordedResponse;
+            this.replayedResponse = replayedResponse;
+        }
+
+        /**
+         * Position of the call in the log, from 0.
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        public String getFullMethodName() {
+            return fullMethodName;
+        }
+
+        /**
+         * The response message type, or null if the method could not be resolved.
+         */
+        public Descriptors.Descriptor getResponseType() {
+            return responseType;
+        }
+
+        public Status.Code getRecordedStatus() {
+            return recordedStatus;
+        }
+
+        public Status.Code getReplayedStatus() {
+            return replayedStatus;
+        }
+
+        /**
+         * The serialized responses, empty for a call that failed.
+         */
+        public ByteString getRecordedResponse() {
+            return recordedResponse;
+        }
+
+        public ByteString getReplayedResponse() {
+            return replayedResponse;
+        }
+    }
+
+    public static final class Report {
+        private final long elapsedNanos;
+        private final long[] callsByStatus;
+        private final Histogram.Snapshot latency;
+        private final Histogram.Snapshot recordedLatency;
+        private final long statusDifferences;
+        private final long responseDifferences;
+        private final List<Difference> differences;
+
+        private Report(
+                long elapsedNanos,
+                long[] callsByStatus,
+                Histogram.Snapshot latency,
+                Histogram.Snapshot recordedLatency,
+                long statusDifferences,
+                long responseDifferences,
+                List<Difference> differences) {
+            this.elapsedNanos = elapsedNanos;
+            this.callsByStatus = callsByStatus;
+            this.latency = latency;
+            this.recordedLatency = recordedLatency;
+            this.statusDifferences = statusDifferences;
+            this.responseDifferences = responseDifferences;
+            this.differences = differences;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getCalls() {
+            long calls = 0;
+            for (long count : callsByStatus) {
+                calls += count;
+            }
+            return calls;
+        }
+
+        public long getCalls(Status.Code code) {
+            return callsByStatus[code.ordinal()];
+        }
+
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : getCalls() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        public Histogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * Latency of the calls when they were recorded.
+         */
+        public Histogram.Snapshot getRecordedLatency() {
+            return recordedLatency;
+        }
+
+        /**
+         * Calls replayed with a different status than recorded.
+         */
+        public long getStatusDifferences() {
+            return statusDifferences;
+        }
+
+        /**
+         * Successful calls replayed with a different response than recorded.
+         */
+        public long getResponseDifferences() {
+            return responseDifferences;
+        }
+
+        /**
+         * The first differing calls of the log, up to the maximum kept, in the order of the log.
+         */
+        public List<Difference> getDifferences() {
+            return differences;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package naply.grpc_banter.internal;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A channel spreading calls over a pool of channels, each with its own connection, so that
+ * concurrent calls are not limited by the streams and flow control window of one connection.
+ */
+public final class ChannelPool extends Channel {
+
+    private final List<ManagedChannel> channels;
+    private final boolean leastInFlight;
+    private final AtomicInteger next = new AtomicInteger();
+    // Calls started and not yet closed on each channel, only tracked for least-in-flight
+    private final AtomicIntegerArray inFlight;
+
+    /**
+     * @param leastInFlight choose the channel with the fewest calls in flight, otherwise the
+     *                      channels are used in turn
+     */
+    public ChannelPool(List<ManagedChannel> channels, boolean leastInFlight) {
+        if (channels.isEmpty()) {
+            throw new IllegalArgumentException("Channel pool requires at least one channel");
+        }
+        this.channels = new ArrayList<>(channels);
+        this.leastInFlight = leastInFlight;
+        this.inFlight = new AtomicIntegerArray(channels.size());
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(
+            MethodDescriptor<ReqT, RespT> methodDescriptor, CallOptions callOptions) {
+        if (channels.size() == 1) {
+            return channels.get(0).newCall(methodDescriptor, callOptions);
+        }
+        if (!leastInFlight) {
+            int index = Math.floorMod(next.getAndIncrement(), channels.size());
+            return channels.get(index).newCall(methodDescriptor, callOptions);
+        }
+        int index = leastInFlightIndex();
+        return new InFlightCall<>(channels.get(index).newCall(methodDescriptor, callOptions), index);
+    }
+
+    /**
+     * The channel with the fewest calls in flight. The scan starts from a rotating offset so
+     * that ties are spread across the channels.
+     */
+    private int leastInFlightIndex() {
+        int size = channels.size();
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        int best = start;
+        int bestCount = inFlight.get(start);
+        for (int i = 1; i < size && bestCount > 0; i++) {
+            int index = (start + i) % size;
+            int count = inFlight.get(index);
+            if (count < bestCount) {
+                best = index;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public String authority() {
+        return channels.get(0).authority();
+    }
+
+    public void shutdownNow() {
+        for (ManagedChannel channel : channels) {
+            channel.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for the channels to terminate, returning false if the timeout elapsed first.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ManagedChannel channel : channels) {
+            if (!channel.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final class InFlightCall<ReqT, RespT> extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
+        private final int index;
+
+        private InFlightCall(ClientCall<ReqT, RespT> delegate, int index) {
+            super(delegate);
+            this.index = index;
+        }
+
+        @Override
+        public void start(Listener<RespT> responseListener, Metadata headers) {
+            inFlight.incrementAndGet(index);
+            try {
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        inFlight.decrementAndGet(index);
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            } catch (RuntimeException | Error e) {
+                inFlight.decrementAndGet(index);
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package naply.grpc_banter.internal;
+
+import io.grpc.Status;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Drives calls started by a supplier for a fixed duration and reports their throughput,
+ * latency, status codes and bytes transferred. The supplier starts a call without blocking
+ * and returns its future, or returns null once it has no more requests, which ends the run
+ * early. Calls still in flight at the end of the duration are waited for.
+ * <p>
+ * In a closed loop each worker starts its next call as soon as its previous call completes,
+ * so the rate adapts to the server. Workers run on their own threads, so calls that complete
+ * as they start, such as invalid requests or cached responses, keep a worker busy without
+ * holding up the others. In an open loop calls are started on a fixed schedule
+ * regardless of how many are outstanding. Latency is measured from the time each call was
+ * scheduled to start rather than when it actually started, so that a sender falling behind a
+ * slow server is reported as latency instead of hidden by fewer, later calls, the coordinated
+ * omission of closed loop measurements.
+ */
+public final class LoadGenerator {
+
+    private final Supplier<CompletableFuture<RpcResponse>> calls;
+    private final long endNanos;
+    private final long startNanos = System.nanoTime();
+    private final Histogram latency = new Histogram();
+    private final AtomicLongArray callsByStatus = new AtomicLongArray(Status.Code.values().length);
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    // Senders and calls in flight, the run is finished when it reaches zero
+    private final AtomicLong outstanding;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile long finishNanos;
+
+    private LoadGenerator(Supplier<CompletableFuture<RpcResponse>> calls, long durationMillis, int senders) {
+        this.calls = calls;
+        this.endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.outstanding = new AtomicLong(senders);
+    }
+
+    /**
+     * Run a closed loop of calls with a fixed number of calls in flight.
+     */
+    public static Report closedLoop(
+            int concurrency,
+            long durationMillis,
+            Supplier<CompletableFuture<RpcResponse>> calls) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator(calls, durationMillis, concurrency);
+        // Threads are only added while every thread is busy starting a call, at most one per worker
+        ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "grpc-banter-load-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(() -> generator.nextClosedLoopCall(workers));
+            }
+            return generator.awaitReport();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Run an open loop of calls started at a fixed rate, from the calling thread.
+     */
+    public static Report openLoop(
+            double callsPerSecond,
+            long durationMillis,
+            Supplier<CompletableFuture<RpcResponse>> calls) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator(calls, durationMillis, 1);
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / callsPerSecond;
+        try {
+            for (long i = 0; ; i++) {
+                long scheduledNanos = generator.startNanos + (long) (i * intervalNanos);
+                if (scheduledNanos - generator.endNanos >= 0) {
+                    break;
+                }
+                long waitNanos;
+                while ((waitNanos = scheduledNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+                CompletableFuture<RpcResponse> call = generator.start(scheduledNanos);
+                if (call == null) {
+                    break;
+                }
+            }
+        } finally {
+            generator.ended();
+        }
+        return generator.awaitReport();
+    }
+
+    /**
+     * Start calls of a closed loop worker until the duration has passed. Calls that complete
+     * before their callback is attached are recorded here, rather than recursing into the
+     * callback for every call. Calls completing later continue the worker on the executor,
+     * never on the thread completing the call.
+     */
+    private void nextClosedLoopCall(Executor workers) {
+        while (System.nanoTime() - endNanos < 0) {
+            long scheduledNanos = System.nanoTime();
+            CompletableFuture<RpcResponse> call = start(scheduledNanos);
+            if (call == null) {
+                break;
+            }
+            if (!call.isDone()) {
+                call.whenCompleteAsync((response, error) -> nextClosedLoopCall(workers), workers);
+                return;
+            }
+        }
+        ended();
+    }
+
+    /**
+     * Start a call, recording it when it completes. Returns null when there are no more calls.
+     */
+    private CompletableFuture<RpcResponse> start(long scheduledNanos) {
+        CompletableFuture<RpcResponse> call;
+        try {
+            call = calls.get();
+        } catch (RuntimeException e) {
+            call = new CompletableFuture<>();
+            call.completeExceptionally(e);
+        }
+        if (call == null) {
+            return null;
+        }
+        outstanding.incrementAndGet();
+        call.whenComplete((response, error) -> {
+            record(scheduledNanos, response, error);
+            ended();
+        });
+        return call;
+    }
+
+    private void record(long scheduledNanos, RpcResponse response, Throwable error) {
+        long now = System.nanoTime();
+        latency.record(now - scheduledNanos);
+        Status status = error != null
+                ? Status.fromThrowable(error)
+                : response.getStatus() != null ? response.getStatus() : Status.OK;
+        callsByStatus.getAndIncrement(status.getCode().ordinal());
+        if (response != null) {
+            requestBytes.add(response.getMessageSizes().getRequestWireBytes());
+            responseBytes.add(response.getMessageSizes().getResponseWireBytes());
+        }
+    }
+
+    private void ended() {
+        if (outstanding.decrementAndGet() == 0) {
+            finishNanos = System.nanoTime();
+            finished.countDown();
+        }
+    }
+
+    private Report awaitReport() throws InterruptedException {
+        finished.await();
+        long[] counts = new long[callsByStatus.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = callsByStatus.get(i);
+        }
+        return new Report(
+                finishNanos - startNanos, counts, latency.snapshot(), requestBytes.sum(), responseBytes.sum());
+    }
+
+    public static final class Report {
+        private final long elapsedNanos;
+        private final long[] callsByStatus;
+        private final Histogram.Snapshot latency;
+        private final long requestBytes;
+        private final long responseBytes;
+
+        private Report(
+                long elapsedNanos,
+                long[] callsByStatus,
+                Histogram.Snapshot latency,
+                long requestBytes,
+                long responseBytes) {
+            this.elapsedNanos = elapsedNanos;
+            this.callsByStatus = callsByStatus;
+            this.latency = latency;
+            this.requestBytes = requestBytes;
+            this.responseBytes = responseBytes;
+        }
+
+        /**
+         * Time from the start of the run until the last call completed.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getCalls() {
+            long calls = 0;
+            for (long count : callsByStatus) {
+                calls += count;
+            }
+            return calls;
+        }
+
+        /**
+         * Calls completed with the status code. Calls that failed before reaching the server,
+         * such as with an invalid request, are counted by the status of their exception.
+         */
+        public long getCalls(Status.Code code) {
+            return callsByStatus[code.ordinal()];
+        }
+
+        /**
+         * Completed calls per second over the elapsed time.
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : getCalls() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        /**
+         * Latency of every call in nanoseconds, from the time it was scheduled to start.
+         */
+        public Histogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * Bytes sent on the wire by calls that received a response, after compression.
+         */
+        public long getRequestBytes() {
+            return requestBytes;
+        }
+
+        /**
+         * Bytes received on the wire by calls that received a response, before decompression.
+         */
+        public long getResponseBytes() {
+            return responseBytes;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package naply.grpc_banter.internal;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Detachable;
+import io.grpc.Drainable;
+import io.grpc.HasByteBuffer;
+import io.grpc.KnownLength;
+import naply.grpc_banter.WireCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams used by the marshallers to avoid intermediate copies of messages.
+ * <p>
+ * Outgoing messages are serialized straight into the transport's buffers when gRPC drains the
+ * stream. Incoming messages are parsed in place from the transport's buffers when it exposes
+ * them, or read once into an array of the known size otherwise.
+ */
+public final class MarshallerStreams {
+
+    private MarshallerStreams() {
+    }
+
+    /**
+     * Serialize a message in any of the forms accepted by the request marshaller: a protobuf
+     * message, an already serialized ByteString, or a clojure map of the given type written by
+     * the codec.
+     */
+    public static ByteString serialize(Object message, Descriptors.Descriptor type, WireCodec codec) {
+        if (message instanceof MessageLite) {
+            return ((MessageLite) message).toByteString();
+        } else if (message instanceof ByteString) {
+            return (ByteString) message;
+        } else if (message instanceof SerializedRequest) {
+            return ((SerializedRequest) message).getBytes();
+        }
+        return UnsafeByteOperations.unsafeWrap(codec.toByteArray(message, type));
+    }
+
+    /**
+     * A request serialized before it is sent, as its size is needed up front, along with the
+     * time spent serializing it. The time is recorded as part of the request's serialization
+     * when the request marshaller writes the bytes.
+     */
+    public static final class SerializedRequest {
+        private final ByteString bytes;
+        private final long serializeNanos;
+
+        public SerializedRequest(ByteString bytes, long serializeNanos) {
+            this.bytes = bytes;
+            this.serializeNanos = serializeNanos;
+        }
+
+        public ByteString getBytes() {
+            return bytes;
+        }
+
+        public long getSerializeNanos() {
+            return serializeNanos;
+        }
+    }
+
+    /**
+     * Writes a serialized message to a {@link CodedOutputStream}.
+     */
+    @FunctionalInterface
+    public interface MessageWriter {
+        void writeTo(CodedOutputStream output) throws IOException;
+    }
+
+    /**
+     * A stream of a message of known serialized size, written by the writer when drained.
+     */
+    public static InputStream drainable(int serializedSize, MessageWriter writer) {
+        return new DrainableMessageStream(serializedSize, writer);
+    }
+
+    /**
+     * Parse the whole of the stream.
+     * <p>
+     * Transport buffers are released once parsing completes, so they are parsed without
+     * aliasing. An array read from a stream of known length belongs to the message, so bytes
+     * fields alias it rather than being copied again.
+     */
+    public static <T> T parse(Parser<T> parser, InputStream stream) throws IOException {
+        if (stream instanceof Detachable && stream instanceof HasByteBuffer
+                && ((HasByteBuffer) stream).byteBufferSupported()) {
+            try (InputStream detached = ((Detachable) stream).detach()) {
+                List<ByteBuffer> buffers = byteBuffers(detached);
+                if (buffers != null) {
+                    CodedInputStream input = buffers.size() == 1
+                            ? CodedInputStream.newInstance(buffers.get(0))
+                            : CodedInputStream.newInstance(buffers);
+                    return parseFully(parser, input);
+                }
+                return parseKnownLength(parser, detached);
+            }
+        }
+        if (stream instanceof KnownLength) {
+            return parseKnownLength(parser, stream);
+        }
+        CodedInputStream input = CodedInputStream.newInstance(stream);
+        // Message size is already limited by the channel
+        input.setSizeLimit(Integer.MAX_VALUE);
+        return parseFully(parser, input);
+    }
+
+    /**
+     * Read the whole of the stream, with a single copy when its length is known.
+     */
+    public static ByteString readBytes(InputStream stream) throws IOException {
+        if (stream instanceof KnownLength) {
+            return UnsafeByteOperations.unsafeWrap(readKnownLength(stream));
+        }
+        return ByteString.readFrom(stream);
+    }
+
+    private static <T> T parseKnownLength(Parser<T> parser, InputStream stream) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(readKnownLength(stream));
+        input.enableAliasing(true);
+        return parseFully(parser, input);
+    }
+
+    private static <T> T parseFully(Parser<T> parser, CodedInputStream input)
+            throws InvalidProtocolBufferException {
+        T message = parser.parseFrom(input);
+        input.checkLastTagWas(0);
+        return message;
+    }
+
+    /**
+     * All remaining buffers of the stream, or null when some of the stream is not backed by a
+     * buffer. The stream is not advanced, so it can still be read when null is returned.
+     */
+    private static List<ByteBuffer> byteBuffers(InputStream stream) throws IOException {
+        if (!stream.markSupported()) return null;
+        stream.mark(Integer.MAX_VALUE);
+        List<ByteBuffer> buffers = new ArrayList<>();
+        while (stream.available() > 0) {
+            ByteBuffer buffer = ((HasByteBuffer) stream).getByteBuffer();
+            if (buffer == null) {
+                stream.reset();
+                return null;
+            }
+            buffers.add(buffer);
+            stream.skip(buffer.remaining());
+        }
+        return buffers;
+    }
+
+    private static byte[] readKnownLength(InputStream stream) throws IOException {
+        byte[] bytes = new byte[stream.available()];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = stream.read(bytes, offset, bytes.length - offset);
+            if (read == -1) {
+                throw new EOFException(String.format(
+                        "Expected %d bytes but stream ended after %d", bytes.length, offset));
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    /**
+     * Serializes the message directly into the target when drained by gRPC. Reading the stream
+     * instead serializes it to an array first.
+     */
+    private static final class DrainableMessageStream extends InputStream implements KnownLength, Drainable {
+        private final int serializedSize;
+        private MessageWriter writer;
+        private ByteArrayInputStream serialized;
+
+        private DrainableMessageStream(int serializedSize, MessageWriter writer) {
+            this.serializedSize = serializedSize;
+            this.writer = writer;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            if (writer != null) {
+                CodedOutputStream output = CodedOutputStream.newInstance(
+                        target, Math.min(serializedSize, CodedOutputStream.DEFAULT_BUFFER_SIZE));
+                writer.writeTo(output);
+                output.flush();
+                writer = null;
+                return serializedSize;
+            }
+            if (serialized != null) {
+                byte[] remaining = new byte[serialized.available()];
+                int length = serialized.read(remaining, 0, remaining.length);
+                target.write(remaining, 0, Math.max(length, 0));
+                return Math.max(length, 0);
+            }
+            return 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return serialized().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return serialized().read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            if (writer != null) return serializedSize;
+            return serialized == null ? 0 : serialized.available();
+        }
+
+        private ByteArrayInputStream serialized() throws IOException {
+            if (writer != null) {
+                byte[] bytes = new byte[serializedSize];
+                CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+                writer.writeTo(output);
+                output.checkNoSpaceLeft();
+                serialized = new ByteArrayInputStream(bytes);
+                writer = null;
+            }
+            return serialized == null ? new ByteArrayInputStream(new byte[0]) : serialized;
+        }
+    }
+}
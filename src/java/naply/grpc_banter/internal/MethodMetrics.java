@@ -0,0 +1,117 @@
+package naply.grpc_banter.internal;
+
+import io.grpc.ClientStreamTracer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counts, latency, message sizes and time spent in each phase of calls to one method.
+ * Recorded by the {@link ServerMetadataInterceptor}, the marshallers, and the callers of the
+ * client for the phases outside of the gRPC call.
+ */
+public final class MethodMetrics {
+
+    public enum Phase {
+        /** Validating the request message against its schema. */
+        VALIDATION,
+        /** Converting the request message to the form sent by the client. */
+        REQUEST_CONVERSION,
+        /** Writing the request message to the transport. */
+        SERIALIZATION,
+        /** Parsing the response message from the transport. */
+        DESERIALIZATION,
+        /** Converting the response message to the form returned to the caller. */
+        RESPONSE_CONVERSION
+    }
+
+    private static final Status.Code[] CODES = Status.Code.values();
+
+    private final AtomicLongArray callsByStatus = new AtomicLongArray(CODES.length);
+    private final Histogram latency = new Histogram();
+    private final Histogram requestBytes = new Histogram();
+    private final Histogram responseBytes = new Histogram();
+    private final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+    private final ClientStreamTracer.Factory tracerFactory = new SizeTracerFactory();
+
+    public MethodMetrics() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new Histogram());
+        }
+    }
+
+    /**
+     * Record a closed call, with its latency from start to close.
+     */
+    public void recordCall(Status.Code code, long latencyNanos) {
+        callsByStatus.getAndIncrement(code.ordinal());
+        latency.record(latencyNanos);
+    }
+
+    public void recordPhase(Phase phase, long nanos) {
+        phases.get(phase).record(nanos);
+    }
+
+    /**
+     * Calls closed with the status code.
+     */
+    public long getCalls(Status.Code code) {
+        return callsByStatus.get(code.ordinal());
+    }
+
+    /**
+     * Time from the start to the close of each call in nanoseconds, including the time spent
+     * serializing and parsing messages on the transport.
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Uncompressed size in bytes of each request message.
+     */
+    public Histogram getRequestBytes() {
+        return requestBytes;
+    }
+
+    /**
+     * Uncompressed size in bytes of each response message.
+     */
+    public Histogram getResponseBytes() {
+        return responseBytes;
+    }
+
+    /**
+     * Time in nanoseconds spent in the phase, for each message.
+     */
+    public Histogram getPhase(Phase phase) {
+        return phases.get(phase);
+    }
+
+    /**
+     * Records the size of every message of calls it traces.
+     */
+    ClientStreamTracer.Factory tracerFactory() {
+        return tracerFactory;
+    }
+
+    private final class SizeTracerFactory extends ClientStreamTracer.Factory {
+        @Override
+        public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+            return new ClientStreamTracer() {
+                @Override
+                public void outboundUncompressedSize(long bytes) {
+                    requestBytes.record(bytes);
+                }
+
+                @Override
+                public void inboundUncompressedSize(long bytes) {
+                    responseBytes.record(bytes);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package naply.grpc_banter.internal;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Metadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * Identifies identical unary calls: the same method and codec, the same serialized request and
+ * the same values of the request headers that are part of the key.
+ */
+public final class RequestKey {
+
+    private final String fullMethodName;
+    private final Object codec;
+    private final ByteString request;
+    private final List<Object> headerValues;
+    private final int hash;
+
+    private RequestKey(String fullMethodName, Object codec, ByteString request, List<Object> headerValues) {
+        this.fullMethodName = fullMethodName;
+        this.codec = codec;
+        this.request = request;
+        this.headerValues = headerValues;
+        this.hash = Objects.hash(fullMethodName, codec, request, headerValues);
+    }
+
+    /**
+     * A key including the values of the given request headers.
+     */
+    public static RequestKey of(
+            String fullMethodName,
+            Object codec,
+            ByteString request,
+            Metadata headers,
+            Collection<Metadata.Key<?>> keyHeaders) {
+        List<Object> headerValues = new ArrayList<>(keyHeaders.size());
+        for (Metadata.Key<?> key : keyHeaders) {
+            headerValues.add(values(headers, key));
+        }
+        return new RequestKey(fullMethodName, codec, request, headerValues);
+    }
+
+    /**
+     * A key including the names and values of all request headers.
+     */
+    public static RequestKey ofAllHeaders(String fullMethodName, Object codec, ByteString request, Metadata headers) {
+        List<Object> headerValues = new ArrayList<>();
+        for (String name : new TreeSet<>(headers.keys())) {
+            headerValues.add(name);
+            headerValues.add(values(headers, headerKey(name)));
+        }
+        return new RequestKey(fullMethodName, codec, request, headerValues);
+    }
+
+    public static Metadata.Key<?> headerKey(String name) {
+        return name.endsWith(Metadata.BINARY_HEADER_SUFFIX)
+                ? Metadata.Key.of(name, Metadata.BINARY_BYTE_MARSHALLER)
+                : Metadata.Key.of(name, Metadata.ASCII_STRING_MARSHALLER);
+    }
+
+    private static List<Object> values(Metadata headers, Metadata.Key<?> key) {
+        Iterable<?> values = headers.getAll(key);
+        if (values == null) {
+            return null;
+        }
+        List<Object> valueList = new ArrayList<>();
+        for (Object value : values) {
+            // Binary values are arrays, compared by content as byte strings
+            valueList.add(value instanceof byte[] ? ByteString.copyFrom((byte[]) value) : value);
+        }
+        return valueList;
+    }
+
+    public String getFullMethodName() {
+        return fullMethodName;
+    }
+
+    public ByteString getRequest() {
+        return request;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RequestKey)) return false;
+        RequestKey key = (RequestKey) o;
+        return hash == key.hash
+                && fullMethodName.equals(key.fullMethodName)
+                && codec.equals(key.codec)
+                && request.equals(key.request)
+                && Objects.equals(headerValues, key.headerValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
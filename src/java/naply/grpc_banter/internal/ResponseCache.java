@@ -0,0 +1,169 @@
+package naply.grpc_banter.internal;
+
+import com.google.protobuf.ByteString;
+import io.grpc.Metadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least recently used cache of successful unary responses, keyed on the method, codec,
+ * serialized request and selected request headers. Entries expire after a fixed time, and the
+ * least recently used entries are evicted once the cache holds more than its maximum number of
+ * entries or bytes. The cached {@link RpcResponse} is returned as is, so each hit is converted
+ * afresh by the caller.
+ */
+public final class ResponseCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final List<Metadata.Key<?>> keyHeaders;
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<RequestKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param maxBytes   maximum total size of the cached requests and responses, or
+     *                   {@link Long#MAX_VALUE} for no limit
+     * @param keyHeaders names of the request headers that are part of the key
+     */
+    public ResponseCache(int maxEntries, long maxBytes, long ttlMillis, Collection<String> keyHeaders) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        List<Metadata.Key<?>> keys = new ArrayList<>(keyHeaders.size());
+        for (String name : keyHeaders) {
+            keys.add(RequestKey.headerKey(name));
+        }
+        this.keyHeaders = Collections.unmodifiableList(keys);
+    }
+
+    public RequestKey key(String fullMethodName, Object codec, ByteString request, Metadata headers) {
+        return RequestKey.of(fullMethodName, codec, request, headers, keyHeaders);
+    }
+
+    /**
+     * The cached response, or null if there is none or it has expired.
+     */
+    public synchronized RpcResponse get(RequestKey key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAtNanos > 0) {
+            remove(key, entry);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Cache the response, with its serialized size, evicting least recently used entries as
+     * needed. Responses larger than the cache are not cached.
+     */
+    public synchronized void put(RequestKey key, RpcResponse response, long responseBytes) {
+        long size = key.getRequest().size() + responseBytes;
+        if (size > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(response, size, System.nanoTime() + ttlNanos));
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += size;
+        Iterator<Map.Entry<RequestKey, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().size;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(RequestKey key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.size;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, expirations, entries.size(), bytes);
+    }
+
+    private static final class Entry {
+        private final RpcResponse response;
+        private final long size;
+        private final long expiresAtNanos;
+
+        private Entry(RpcResponse response, long size, long expiresAtNanos) {
+            this.response = response;
+            this.size = size;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+        private final int entries;
+        private final long bytes;
+
+        private Stats(long hits, long misses, long evictions, long expirations, int entries, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Entries removed to make room for newer entries.
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Entries removed when found expired, also counted as misses.
+         */
+        public long getExpirations() {
+            return expirations;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
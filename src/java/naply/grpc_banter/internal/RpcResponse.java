@@ -1,27 +1,46 @@
 package naply.grpc_banter.internal;
 
-import com.google.protobuf.Message;
+import io.grpc.ClientStreamTracer;
 import io.grpc.Metadata;
 import io.grpc.Status;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class RpcResponse {
-    private final Message message;
+    private final Object message;
     private final Metadata headers;
     private final Metadata trailers;
     private final Status status;
+    private final MessageSizes messageSizes;
+    private final Attempts attempts;
 
     public static Builder builder() {
         return new Builder();
     }
 
-    private RpcResponse(Message message, Metadata headers, Metadata trailers, Status status) {
+    private RpcResponse(
+            Object message,
+            Metadata headers,
+            Metadata trailers,
+            Status status,
+            MessageSizes messageSizes,
+            Attempts attempts) {
         this.message = message;
         this.headers = headers;
         this.trailers = trailers;
         this.status = status;
+        this.messageSizes = messageSizes;
+        this.attempts = attempts;
     }
 
-    public Message getMessage() {
+    /**
+     * The response message, a {@link com.google.protobuf.DynamicMessage} or the serialized
+     * {@link com.google.protobuf.ByteString} depending on the codec the call was made with.
+     */
+    public Object getMessage() {
         return message;
     }
 
@@ -37,13 +56,139 @@ public class RpcResponse {
         return status;
     }
 
+    /**
+     * Sizes of the messages sent and received by the call, before and after compression.
+     */
+    public MessageSizes getMessageSizes() {
+        return messageSizes;
+    }
+
+    /**
+     * The attempts made by the call, more than one when it was retried or hedged.
+     */
+    public Attempts getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Counts the attempts of a call through the stream tracer created for each attempt, and
+     * which of them the call's response came from. The call commits to the first attempt to
+     * receive response headers, or else completes with the last attempt to close with the
+     * call's status. Hedges cancelled once the call completed close after the attempt it
+     * completed with, so the last attempt to close is not necessarily the winning one.
+     */
+    public static final class Attempts extends ClientStreamTracer.Factory {
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicInteger committedAttempt = new AtomicInteger();
+        private final Map<Status.Code, Integer> lastClosedAttemptByCode = new ConcurrentHashMap<>();
+        private volatile int lastClosedAttempt;
+        private volatile Status.Code callCode;
+
+        /**
+         * Number of attempts started, including transparent retries of attempts that never
+         * reached the server.
+         */
+        public int getCount() {
+            return count.get();
+        }
+
+        /**
+         * The 1-based number of the attempt the response came from.
+         */
+        public int getWinningAttempt() {
+            int committed = committedAttempt.get();
+            if (committed != 0) {
+                return committed;
+            }
+            Status.Code code = callCode;
+            Integer closedWithCallStatus = code == null ? null : lastClosedAttemptByCode.get(code);
+            return closedWithCallStatus != null ? closedWithCallStatus : lastClosedAttempt;
+        }
+
+        private void callClosed(Status status) {
+            callCode = status == null ? null : status.getCode();
+        }
+
+        @Override
+        public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+            int attempt = count.incrementAndGet();
+            return new ClientStreamTracer() {
+                @Override
+                public void inboundHeaders() {
+                    committedAttempt.compareAndSet(0, attempt);
+                }
+
+                @Override
+                public void streamClosed(Status status) {
+                    lastClosedAttemptByCode.put(status.getCode(), attempt);
+                    lastClosedAttempt = attempt;
+                }
+            };
+        }
+    }
+
+    /**
+     * Total bytes of all the messages of a call, as serialized and as sent on the wire after
+     * compression. Both sizes are equal for messages that were not compressed. Recorded by the
+     * transport as the messages are framed, through the stream tracer this class is a factory of.
+     */
+    public static final class MessageSizes extends ClientStreamTracer.Factory {
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong requestWireBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+        private final AtomicLong responseWireBytes = new AtomicLong();
+
+        public long getRequestBytes() {
+            return requestBytes.get();
+        }
+
+        public long getRequestWireBytes() {
+            return requestWireBytes.get();
+        }
+
+        public long getResponseBytes() {
+            return responseBytes.get();
+        }
+
+        public long getResponseWireBytes() {
+            return responseWireBytes.get();
+        }
+
+        @Override
+        public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+            return new ClientStreamTracer() {
+                @Override
+                public void outboundUncompressedSize(long bytes) {
+                    requestBytes.addAndGet(bytes);
+                }
+
+                @Override
+                public void outboundWireSize(long bytes) {
+                    requestWireBytes.addAndGet(bytes);
+                }
+
+                @Override
+                public void inboundUncompressedSize(long bytes) {
+                    responseBytes.addAndGet(bytes);
+                }
+
+                @Override
+                public void inboundWireSize(long bytes) {
+                    responseWireBytes.addAndGet(bytes);
+                }
+            };
+        }
+    }
+
     public static class Builder {
-        private Message message;
+        private Object message;
         private Metadata headers;
         private Metadata trailers;
         private Status status;
+        private final MessageSizes messageSizes = new MessageSizes();
+        private final Attempts attempts = new Attempts();
 
-        public Builder message(Message message) {
+        public Builder message(Object message) {
             this.message = message;
             return this;
         }
@@ -60,11 +205,20 @@ public class RpcResponse {
 
         public Builder status(Status status) {
             this.status = status;
+            attempts.callClosed(status);
             return this;
         }
 
+        public MessageSizes messageSizes() {
+            return messageSizes;
+        }
+
+        public Attempts attempts() {
+            return attempts;
+        }
+
         public RpcResponse build() {
-            return new RpcResponse(message, headers, trailers, status);
+            return new RpcResponse(message, headers, trailers, status, messageSizes, attempts);
         }
     }
 }
@@ -1,33 +1,105 @@
 package naply.grpc_banter.internal;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
 import io.grpc.*;
 
+/**
+ * Stateless interceptor shared by every call on a client. Per-call state is read from the
+ * {@link CallOptions}: request headers to send, the {@link RpcResponse.Builder} that
+ * captures the server headers, status, trailers, message sizes and attempts, the {@link MethodMetrics}
+ * that the call's status, latency and message sizes are recorded to, and the size below which
+ * messages of a compressed call are sent uncompressed.
+ */
 public final class ServerMetadataInterceptor implements ClientInterceptor {
 
-    private final RpcResponse.Builder rpcResponseBuilder;
-    private final Metadata requestHeaders;
-
-    public ServerMetadataInterceptor(RpcResponse.Builder rpcResponseBuilder, Metadata requestHeaders) {
-        this.rpcResponseBuilder = rpcResponseBuilder;
-        this.requestHeaders = requestHeaders;
-    }
+    public static final CallOptions.Key<RpcResponse.Builder> RESPONSE_BUILDER =
+            CallOptions.Key.create("naply.grpc_banter.responseBuilder");
+    public static final CallOptions.Key<Metadata> REQUEST_HEADERS =
+            CallOptions.Key.create("naply.grpc_banter.requestHeaders");
+    public static final CallOptions.Key<MethodMetrics> METHOD_METRICS =
+            CallOptions.Key.create("naply.grpc_banter.methodMetrics");
+    public static final CallOptions.Key<Integer> COMPRESSION_MIN_BYTES =
+            CallOptions.Key.create("naply.grpc_banter.compressionMinBytes");
 
     @Override
     public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
-        return new MetadataCapturingClientCall<>(next.newCall(method, callOptions));
+        RpcResponse.Builder rpcResponseBuilder = callOptions.getOption(RESPONSE_BUILDER);
+        Metadata requestHeaders = callOptions.getOption(REQUEST_HEADERS);
+        MethodMetrics metrics = callOptions.getOption(METHOD_METRICS);
+        Integer compressionMinBytes = callOptions.getCompressor() == null
+                ? null
+                : callOptions.getOption(COMPRESSION_MIN_BYTES);
+        if (metrics != null) {
+            callOptions = callOptions.withStreamTracerFactory(metrics.tracerFactory());
+        }
+        if (rpcResponseBuilder != null) {
+            callOptions = callOptions
+                    .withStreamTracerFactory(rpcResponseBuilder.messageSizes())
+                    .withStreamTracerFactory(rpcResponseBuilder.attempts());
+        }
+        ClientCall<ReqT, RespT> call = next.newCall(method, callOptions);
+        if (rpcResponseBuilder == null && requestHeaders == null && metrics == null && compressionMinBytes == null) {
+            return call;
+        }
+        return new MetadataCapturingClientCall<>(call, rpcResponseBuilder, requestHeaders, metrics, compressionMinBytes);
     }
 
-    private final class MetadataCapturingClientCall<ReqT, RespT>
+    /**
+     * Serialized size of a request, or -1 if it is not known without serializing it.
+     */
+    private static long serializedSize(Object message) {
+        if (message instanceof MessageLite) {
+            return ((MessageLite) message).getSerializedSize();
+        } else if (message instanceof ByteString) {
+            return ((ByteString) message).size();
+        } else if (message instanceof MarshallerStreams.SerializedRequest) {
+            return ((MarshallerStreams.SerializedRequest) message).getBytes().size();
+        }
+        return -1;
+    }
+
+    private static final class MetadataCapturingClientCall<ReqT, RespT>
             extends ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT> {
 
-        private MetadataCapturingClientCall(ClientCall<ReqT, RespT> delegate) {
+        private final RpcResponse.Builder rpcResponseBuilder;
+        private final Metadata requestHeaders;
+        private final MethodMetrics metrics;
+        private final Integer compressionMinBytes;
+        private long startNanos;
+
+        private MetadataCapturingClientCall(
+                ClientCall<ReqT, RespT> delegate,
+                RpcResponse.Builder rpcResponseBuilder,
+                Metadata requestHeaders,
+                MethodMetrics metrics,
+                Integer compressionMinBytes) {
             super(delegate);
+            this.rpcResponseBuilder = rpcResponseBuilder;
+            this.requestHeaders = requestHeaders;
+            this.metrics = metrics;
+            this.compressionMinBytes = compressionMinBytes;
         }
 
         @Override
         public void start(Listener<RespT> responseListener, Metadata headers) {
-            headers.merge(requestHeaders);
-            super.start(new MetadataCapturingClientCallListener(responseListener), headers);
+            if (requestHeaders != null) {
+                headers.merge(requestHeaders);
+            }
+            if (rpcResponseBuilder != null || metrics != null) {
+                responseListener = new MetadataCapturingClientCallListener(responseListener);
+            }
+            startNanos = System.nanoTime();
+            super.start(responseListener, headers);
+        }
+
+        @Override
+        public void sendMessage(ReqT message) {
+            if (compressionMinBytes != null) {
+                long size = serializedSize(message);
+                setMessageCompression(size < 0 || size >= compressionMinBytes);
+            }
+            super.sendMessage(message);
         }
 
         private final class MetadataCapturingClientCallListener
@@ -38,20 +110,22 @@ public final class ServerMetadataInterceptor implements ClientInterceptor {
 
             @Override
             public void onHeaders(Metadata headers) {
+                if (rpcResponseBuilder != null) {
+                    rpcResponseBuilder.headers(headers);
+                }
                 super.onHeaders(headers);
-                rpcResponseBuilder.headers(headers);
-            }
-
-            @Override
-            public void onMessage(RespT message) {
-                super.onMessage(message);
             }
 
             @Override
             public void onClose(Status status, Metadata trailers) {
+                if (metrics != null) {
+                    metrics.recordCall(status.getCode(), System.nanoTime() - startNanos);
+                }
+                if (rpcResponseBuilder != null) {
+                    rpcResponseBuilder.status(status);
+                    rpcResponseBuilder.trailers(trailers);
+                }
                 super.onClose(status, trailers);
-                rpcResponseBuilder.status(status);
-                rpcResponseBuilder.trailers(trailers);
             }
         }
     }
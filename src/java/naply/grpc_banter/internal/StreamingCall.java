@@ -0,0 +1,242 @@
+package naply.grpc_banter.internal;
+
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A streaming call with flow control in both directions.
+ * <p>
+ * Requests are pulled from the request iterator only while the transport is ready to send, so a
+ * large or lazy request source is not buffered in memory. Responses are requested from the server
+ * only as they are consumed, so at most {@code bufferSize} responses are held by the client.
+ * <p>
+ * Requests are only pulled on the thread starting the call and on the thread consuming responses,
+ * never on a gRPC thread, as pulling a request may run arbitrary code such as realizing a lazy
+ * sequence. When the transport becomes ready, the consumer is woken to send more requests.
+ * <p>
+ * The call is consumed as a blocking iterator of responses. {@link #hasNext()} throws a
+ * {@link io.grpc.StatusRuntimeException} if the call closes with an error.
+ */
+public final class StreamingCall<ReqT, RespT> implements Iterator<RespT>, Closeable {
+
+    // Queued with the responses to wake the consumer to send requests
+    private static final Object READY = new Object();
+
+    private final ClientCall<ReqT, RespT> call;
+    private final Iterator<? extends ReqT> requests;
+    private final RpcResponse.Builder responseBuilder;
+    private final int bufferSize;
+    // gRPC signals onReady for every call, but a single request is sent without waiting for it,
+    // as the transport buffers the one message until the stream is established
+    private final boolean awaitReady;
+    // Holds at most bufferSize messages, as that's all that is ever requested, plus one pending
+    // ready signal and the close event
+    private final BlockingQueue<Object> responses;
+    private final AtomicBoolean readyPending = new AtomicBoolean();
+    private final Object sendLock = new Object();
+    private volatile boolean halfClosed;
+    private volatile Abandonment abandonment;
+
+    private Object next;
+    private Closed closed;
+
+    public StreamingCall(
+            ClientCall<ReqT, RespT> call,
+            Iterator<? extends ReqT> requests,
+            RpcResponse.Builder responseBuilder,
+            int bufferSize,
+            boolean clientStreaming) {
+        this.call = call;
+        this.requests = requests;
+        this.responseBuilder = responseBuilder;
+        this.bufferSize = bufferSize;
+        this.awaitReady = clientStreaming;
+        this.responses = new ArrayBlockingQueue<>(bufferSize + 2);
+    }
+
+    public StreamingCall<ReqT, RespT> start() {
+        try {
+            call.start(new Listener(), new Metadata());
+            call.request(bufferSize);
+        } catch (RuntimeException | Error e) {
+            call.cancel("Failed to start call", e);
+            throw e;
+        }
+        sendRequests();
+        return this;
+    }
+
+    /**
+     * Send requests while the transport is ready, half-closing once the requests are exhausted.
+     */
+    private void sendRequests() {
+        synchronized (sendLock) {
+            if (halfClosed) return;
+            try {
+                while ((!awaitReady || call.isReady()) && requests.hasNext()) {
+                    call.sendMessage(requests.next());
+                }
+                if (!requests.hasNext()) {
+                    halfClosed = true;
+                    call.halfClose();
+                }
+            } catch (RuntimeException | Error e) {
+                halfClosed = true;
+                call.cancel("Failed to send request", e);
+            }
+        }
+    }
+
+    /**
+     * Return a token that cancels the call once the token is no longer reachable, unless the call
+     * has closed. A consumer that reads the call lazily, such as a lazy sequence, holds the token
+     * for as long as it may read, so that abandoning it frees the call and its buffered responses
+     * rather than leaving them until the deadline.
+     */
+    public Object cancelWhenUnreachable() {
+        Object token = new Object();
+        abandonment = new Abandonment(token, call);
+        return token;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && closed == null) {
+            Object response;
+            try {
+                response = responses.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                call.cancel("Interrupted while waiting for response", e);
+                throw Status.CANCELLED.withDescription("Interrupted").withCause(e).asRuntimeException();
+            }
+            if (response == READY) {
+                readyPending.set(false);
+                sendRequests();
+            } else if (response instanceof Closed) {
+                closed = (Closed) response;
+            } else {
+                next = response;
+            }
+        }
+        if (closed != null && !closed.status.isOk()) {
+            throw closed.status.asRuntimeException(closed.trailers);
+        }
+        return next != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public RespT next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        RespT message = (RespT) next;
+        next = null;
+        call.request(1);
+        return message;
+    }
+
+    /**
+     * Headers, status and trailers of the call. Status and trailers are only set once all
+     * responses have been consumed.
+     */
+    public RpcResponse getResponse() {
+        return responseBuilder.build();
+    }
+
+    /**
+     * Cancel the call if it has not completed.
+     */
+    @Override
+    public void close() {
+        if (closed == null) {
+            call.cancel("Call cancelled by client", null);
+        }
+    }
+
+    private static final class Closed {
+        private final Status status;
+        private final Metadata trailers;
+
+        private Closed(Status status, Metadata trailers) {
+            this.status = status;
+            this.trailers = trailers;
+        }
+    }
+
+    private final class Listener extends ClientCall.Listener<RespT> {
+        @Override
+        public void onMessage(RespT message) {
+            responses.add(message);
+        }
+
+        @Override
+        public void onReady() {
+            if (!halfClosed && readyPending.compareAndSet(false, true)) {
+                responses.add(READY);
+            }
+        }
+
+        @Override
+        public void onClose(Status status, Metadata trailers) {
+            Abandonment pending = abandonment;
+            if (pending != null) {
+                pending.release();
+            }
+            responses.add(new Closed(status, trailers));
+        }
+    }
+
+    /**
+     * Cancels a call once its token has been collected. The references are kept reachable until
+     * then, or until the call closes.
+     */
+    private static final class Abandonment extends PhantomReference<Object> {
+        private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+        private static final Set<Abandonment> PENDING = ConcurrentHashMap.newKeySet();
+
+        static {
+            Thread canceller = new Thread(Abandonment::cancelAbandoned, "grpc-banter-abandoned-calls");
+            canceller.setDaemon(true);
+            canceller.start();
+        }
+
+        private final ClientCall<?, ?> call;
+
+        private Abandonment(Object token, ClientCall<?, ?> call) {
+            super(token, QUEUE);
+            this.call = call;
+            PENDING.add(this);
+        }
+
+        private void release() {
+            PENDING.remove(this);
+            clear();
+        }
+
+        private static void cancelAbandoned() {
+            while (true) {
+                Abandonment abandoned;
+                try {
+                    abandoned = (Abandonment) QUEUE.remove();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (PENDING.remove(abandoned)) {
+                    abandoned.call.cancel("Call abandoned by client", null);
+                }
+            }
+        }
+    }
+}
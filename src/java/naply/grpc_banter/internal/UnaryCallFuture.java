@@ -0,0 +1,76 @@
+package naply.grpc_banter.internal;
+
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Future of a single unary call. Completes with the {@link RpcResponse} when the call closes with
+ * an OK status, or exceptionally with a {@link io.grpc.StatusRuntimeException} otherwise.
+ * Cancelling the future cancels the underlying call.
+ */
+public final class UnaryCallFuture<ReqT, RespT> extends CompletableFuture<RpcResponse> {
+
+    private final ClientCall<ReqT, RespT> call;
+    private final RpcResponse.Builder responseBuilder;
+
+    public UnaryCallFuture(ClientCall<ReqT, RespT> call, RpcResponse.Builder responseBuilder) {
+        this.call = call;
+        this.responseBuilder = responseBuilder;
+    }
+
+    /**
+     * Start the call, send the request and half-close.
+     */
+    public UnaryCallFuture<ReqT, RespT> start(ReqT request) {
+        try {
+            call.start(new Listener(), new Metadata());
+            // Request two messages to detect servers that incorrectly respond with more than one
+            call.request(2);
+            call.sendMessage(request);
+            call.halfClose();
+        } catch (RuntimeException | Error e) {
+            call.cancel("Failed to start call", e);
+            throw e;
+        }
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            call.cancel("Call cancelled by client", null);
+        }
+        return cancelled;
+    }
+
+    private final class Listener extends ClientCall.Listener<RespT> {
+        private RespT message;
+
+        @Override
+        public void onMessage(RespT message) {
+            if (this.message != null) {
+                throw Status.INTERNAL
+                        .withDescription("More than one response received for unary call")
+                        .asRuntimeException();
+            }
+            this.message = message;
+        }
+
+        @Override
+        public void onClose(Status status, Metadata trailers) {
+            if (!status.isOk()) {
+                completeExceptionally(status.asRuntimeException(trailers));
+            } else if (message == null) {
+                completeExceptionally(Status.INTERNAL
+                        .withDescription("No response received for unary call")
+                        .asRuntimeException(trailers));
+            } else {
+                complete(responseBuilder.message(message).build());
+            }
+        }
+    }
+}
@@ -1,11 +1,18 @@
 (ns naply.grpc-banter-test
-  (:refer-clojure :exclude [methods])
+  (:refer-clojure :exclude [methods load])
   (:require [clojure.test :refer :all]
             [naply.grpc-banter :as banter])
-  (:import (naply.grpc_banter TestGrpcServer)
+  (:import (naply.grpc_banter Client FileDescriptorRegistry FileDescriptorRegistry$DescriptorSource
+                               FileDescriptorRegistry$ServiceResolutionError
+                               TestGrpcServer LazyMap WireCodec)
+           (naply.grpc_banter.internal CallRecorder)
            (clojure.lang ExceptionInfo)
+           (io.grpc Metadata Status)
+           (java.io File IOException)
+           (io.grpc.netty.shaded.io.netty.channel.epoll Epoll)
+           (java.util.concurrent ExecutionException)
            (java.util.regex Pattern)
-           (com.google.protobuf ByteString)))
+           (com.google.protobuf ByteString DynamicMessage DynamicMessage$Builder)))
 
 ;; Utils
 (declare thrown-with-msg?)
@@ -65,9 +72,46 @@
     (is (= #{"naply.grpc_banter.EchoService/Echo"
              "naply.grpc_banter.EchoService/Error"
              "naply.grpc_banter.EchoService/AllFieldTypesTest"
-             "naply.grpc_banter.EchoService/NestedMessageTest"}
+             "naply.grpc_banter.EchoService/NestedMessageTest"
+             "naply.grpc_banter.EchoService/EchoServerStream"
+             "naply.grpc_banter.EchoService/EchoClientStream"
+             "naply.grpc_banter.EchoService/EchoBidiStream"}
            (banter/methods @test-client)))))
 
+(deftest registry
+  (let [registry (FileDescriptorRegistry/fromFileDescriptorSet "target/test-file-descriptor-set.dsc")]
+    (testing "Resolves services, nested message types and enums"
+      (is (= "naply.grpc_banter.EchoService"
+             (.getFullName (.findServiceByName registry "naply.grpc_banter.EchoService"))))
+      (is (= "naply.grpc_banter.NestedMessage.InnerMessage.DoubleInnerMessage"
+             (.getFullName (.findMessageTypeByFullName registry "naply.grpc_banter.NestedMessage.InnerMessage.DoubleInnerMessage"))))
+      (is (= "naply.grpc_banter.TestEnum"
+             (.getFullName (.findEnumTypeByFullName registry "naply.grpc_banter.TestEnum")))))
+
+    (testing "Dependencies are built with the file that needs them"
+      (is (= "naply.grpc_banter.AllFieldTypesMessage"
+             (-> (.findServiceByName registry "naply.grpc_banter.EchoService")
+                 (.findMethodByName "AllFieldTypesTest")
+                 .getInputType
+                 .getFullName)))
+      (is (identical? (.findMessageTypeByFullName registry "naply.grpc_banter.AllFieldTypesMessage")
+                      (-> (.findServiceByName registry "naply.grpc_banter.EchoService")
+                          (.findMethodByName "AllFieldTypesTest")
+                          .getInputType))))
+
+    (testing "Unknown names"
+      (is (nil? (.findMessageTypeByFullName registry "naply.grpc_banter.DoesNotExist")))
+      (is (thrown? FileDescriptorRegistry$ServiceResolutionError
+                   (.findServiceByName registry "naply.grpc_banter.DoesNotExist"))))
+
+    (testing "Created from built descriptors"
+      (let [service (.findServiceByName registry "naply.grpc_banter.EchoService")
+            from-descriptors (FileDescriptorRegistry. {(.getFullName service) service} {} {})]
+        (is (identical? service (.findServiceByName from-descriptors "naply.grpc_banter.EchoService")))
+        (is (identical? (.findMessageTypeByFullName registry "naply.grpc_banter.AllFieldTypesMessage")
+                        (.findMessageTypeByFullName from-descriptors "naply.grpc_banter.AllFieldTypesMessage")))
+        (is (contains? (.getAllServiceMethods from-descriptors) "naply.grpc_banter.EchoService/Echo"))))))
+
 (deftest validate
   (testing "Validation passing"
     (are [method message]
@@ -82,6 +126,13 @@
 
       "naply.grpc_banter.EchoService/NestedMessageTest"
       valid-NestedMessage))
+  (testing "Validation passing [primitive arrays]"
+    (is (nil? (banter/validate @test-client
+                               {:method                     "naply.grpc_banter.EchoService/AllFieldTypesTest"
+                                :repeated-scalars-as-arrays true}
+                               (assoc valid-AllFieldTypesMessage
+                                 :repeatedDouble (double-array [1.0 2.0])
+                                 :repeatedInteger (int-array [1 2]))))))
   (testing "Validation errors"
     (are [method message error]
       (= error (banter/validate @test-client method message))
@@ -282,7 +333,22 @@
     (is (= valid-NestedMessage
            (banter/call @test-client
                         "naply.grpc_banter.EchoService/NestedMessageTest"
-                        valid-NestedMessage))))
+                        valid-NestedMessage)))
+    (let [message (assoc valid-AllFieldTypesMessage :boolean false :optionalBoolean false)]
+      (doseq [request [{:method "naply.grpc_banter.EchoService/AllFieldTypesTest"}
+                       {:method "naply.grpc_banter.EchoService/AllFieldTypesTest" :lazy-responses true}
+                       {:method "naply.grpc_banter.EchoService/AllFieldTypesTest" :codec :wire}]]
+        (is (= (dissoc message :boolean :optionalBoolean)
+               (banter/call @test-client request message))
+            "Fields set to false are left out of responses"))))
+
+  (testing "Successful response [message spanning many transport buffers]"
+    (let [message {:say (apply str (repeat (* 1024 1024) "x"))}]
+      (doseq [codec [:dynamic-message :wire]]
+        (is (= {:echo (:say message)}
+               (banter/call @test-client
+                            {:method "naply.grpc_banter.EchoService/Echo" :codec codec}
+                            message))))))
 
   (testing "Error response [server exception]"
     (try
@@ -313,7 +379,795 @@
                         :badfield "does not exist"}
                        {:say "test message"})))))
 
+(deftest call-wire-codec
+  (testing "Successful response [serialization / deserialization matches]"
+    (are [method message]
+      (= message (banter/call @test-client {:method method :codec :wire} message))
+
+      "naply.grpc_banter.EchoService/AllFieldTypesTest"
+      valid-AllFieldTypesMessage
+
+      "naply.grpc_banter.EchoService/AllFieldTypesTest"
+      (assoc valid-AllFieldTypesMessage :repeatedDouble [])
+
+      "naply.grpc_banter.EchoService/NestedMessageTest"
+      valid-NestedMessage))
+
+  (testing "Response matches the dynamic message codec"
+    (are [config]
+      (= (banter/call @test-client
+                      (merge {:method "naply.grpc_banter.EchoService/AllFieldTypesTest"} config)
+                      valid-AllFieldTypesMessage)
+         (banter/call @test-client
+                      (merge {:method "naply.grpc_banter.EchoService/AllFieldTypesTest" :codec :wire} config)
+                      valid-AllFieldTypesMessage))
+      {}
+      {:enums-as-keywords false}
+      {:response-fields-as-keywords false}))
+
+  (testing "Raw message is parsed when requested"
+    (is (instance? DynamicMessage
+                   (-> (banter/call @test-client
+                                    {:method            "naply.grpc_banter.EchoService/Echo"
+                                     :codec             :wire
+                                     :include-raw-types true}
+                                    {:say "HelloWorld"})
+                       meta
+                       :raw-message))))
+
+  (testing "Streaming"
+    (is (= [{:echo "hi 0"} {:echo "hi 1"}]
+           (banter/call-stream @test-client
+                               {:method "naply.grpc_banter.EchoService/EchoServerStream"
+                                :codec  :wire}
+                               {:say "hi" :count 2})))))
+
+(deftest call-repeated-scalars-as-arrays
+  (let [arrays {:repeatedInteger (int-array [Integer/MIN_VALUE 0 Integer/MAX_VALUE])
+                :repeatedLong    (long-array [Long/MIN_VALUE 0 Long/MAX_VALUE])
+                :repeatedDouble  (double-array (range 0 1000 0.5))
+                :repeatedFloat   (float-array [Float/MIN_VALUE Float/MAX_VALUE])
+                :repeatedBoolean (boolean-array [true false true])}
+        message (merge valid-AllFieldTypesMessage arrays)
+        as-vectors #(reduce (fn [m k] (update m k vec)) % (keys arrays))]
+    (testing "Arrays are sent and received"
+      (doseq [codec [:dynamic-message :wire]
+              lazy-responses [false true]]
+        (let [response (banter/call @test-client
+                                    {:method                     "naply.grpc_banter.EchoService/AllFieldTypesTest"
+                                     :codec                      codec
+                                     :lazy-responses             lazy-responses
+                                     :repeated-scalars-as-arrays true}
+                                    message)]
+          (is (instance? (Class/forName "[D") (:repeatedDouble response)))
+          (is (instance? (Class/forName "[I") (:repeatedInteger response)))
+          (is (instance? (Class/forName "[Z") (:repeatedBoolean response)))
+          (is (= (as-vectors message) (as-vectors response))))))
+
+    (testing "Empty repeated fields are empty arrays"
+      (let [response (banter/call @test-client
+                                  {:method                     "naply.grpc_banter.EchoService/AllFieldTypesTest"
+                                   :codec                      :wire
+                                   :repeated-scalars-as-arrays true}
+                                  (assoc message :repeatedLong []))]
+        (is (= 0 (alength ^longs (:repeatedLong response))))))
+
+    (testing "Arrays are vectors unless enabled"
+      (is (= (as-vectors message)
+             (banter/call @test-client "naply.grpc_banter.EchoService/AllFieldTypesTest" (as-vectors message)))))))
+
+(deftest call-lazy-responses
+  (testing "Successful response [serialization / deserialization matches]"
+    (are [method message]
+      (= message (banter/call @test-client {:method method :lazy-responses true} message))
+
+      "naply.grpc_banter.EchoService/AllFieldTypesTest"
+      valid-AllFieldTypesMessage
+
+      "naply.grpc_banter.EchoService/AllFieldTypesTest"
+      (dissoc valid-AllFieldTypesMessage :optionalString :optionalMessage)
+
+      "naply.grpc_banter.EchoService/NestedMessageTest"
+      valid-NestedMessage))
+
+  (testing "Serialized as the realized map"
+    (let [response (banter/call @test-client
+                                {:method "naply.grpc_banter.EchoService/NestedMessageTest" :lazy-responses true}
+                                valid-NestedMessage)
+          bytes (java.io.ByteArrayOutputStream.)]
+      (with-open [output (java.io.ObjectOutputStream. bytes)]
+        (.writeObject output response))
+      (with-open [input (java.io.ObjectInputStream. (java.io.ByteArrayInputStream. (.toByteArray bytes)))]
+        (is (= valid-NestedMessage (.readObject input))))))
+
+  (testing "Fields are converted on access"
+    (let [response (banter/call @test-client
+                                {:method "naply.grpc_banter.EchoService/AllFieldTypesTest" :lazy-responses true}
+                                valid-AllFieldTypesMessage)]
+      (is (instance? LazyMap response))
+      (is (= (count valid-AllFieldTypesMessage) (count response)))
+      (is (not (.isRealized ^LazyMap response :repeatedMessage)))
+      (is (= [{:string "foo"} {:string "bar"}] (:repeatedMessage response)))
+      (is (.isRealized ^LazyMap response :repeatedMessage))
+      (is (not (.isRealized ^LazyMap response :string)))
+      (is (not (contains? (dissoc response :string) :string)))))
+
+  (testing "Metadata is converted on access"
+    (let [response-meta (meta (banter/call @test-client
+                                           {:method "naply.grpc_banter.EchoService/Echo"
+                                            :lazy-responses true
+                                            :include-raw-types true}
+                                           {:say "HelloWorld"}))]
+      (is (not (.isRealized ^LazyMap response-meta :headers)))
+      (is (= {:code "OK" :description nil} (:status response-meta)))
+      (is (= ["application/grpc"] (get-in response-meta [:headers "content-type"])))
+      (is (instance? DynamicMessage (:raw-message response-meta))))))
+
+(deftest call-async
+  (testing "Successful response [deref]"
+    (let [response @(banter/call-async @test-client
+                                       "naply.grpc_banter.EchoService/Echo"
+                                       {:say "HelloWorld"})]
+      (is (= {:echo "HelloWorld"} response))
+      (is (= {:code "OK" :description nil} (:status (meta response))))))
+
+  (testing "Successful response [callbacks]"
+    (let [result (promise)]
+      (banter/call-async @test-client
+                         "naply.grpc_banter.EchoService/NestedMessageTest"
+                         valid-NestedMessage
+                         #(deliver result %)
+                         #(deliver result %))
+      (is (= valid-NestedMessage (deref result 5000 ::timeout)))))
+
+  (testing "Error response [server exception]"
+    (let [result (promise)]
+      (banter/call-async @test-client
+                         "naply.grpc_banter.EchoService/Error"
+                         {:unused "Gonna fail"}
+                         #(deliver result %)
+                         #(deliver result %))
+      (is (= {:code "INTERNAL" :description "All requests will fail."}
+             (-> (deref result 5000 ::timeout) ex-data :status)))))
+
+  (testing "Error response [deref and await-response]"
+    (let [result (banter/call-async @test-client
+                                    "naply.grpc_banter.EchoService/Error"
+                                    {:unused "Gonna fail"})]
+      (is (= {:code "INTERNAL" :description "All requests will fail."}
+             (try
+               @result
+               (catch ExecutionException e
+                 (-> e ex-cause ex-data :status)))))
+      (is (thrown-with-msg?
+            ExceptionInfo
+            (as-pattern "gRPC server responded with error status=[INTERNAL]")
+            (banter/await-response result)))
+      (is (thrown? ExceptionInfo (banter/await-response result 5000 ::timeout)))))
+
+  (testing "Successful response [await-response]"
+    (is (= {:echo "HelloWorld"}
+           (banter/await-response (banter/call-async @test-client
+                                                     "naply.grpc_banter.EchoService/Echo"
+                                                     {:say "HelloWorld"})
+                                  5000
+                                  ::timeout))))
+
+  (testing "Error response [message validation]"
+    (is (thrown-with-msg?
+          ExceptionInfo
+          (as-pattern "Request message failed validation")
+          (banter/call-async @test-client
+                             "naply.grpc_banter.EchoService/Error"
+                             {:badfield "Gonna fail"})))))
+
+(deftest call-many
+  (testing "Successful responses in order"
+    (let [messages (map #(hash-map :say (str "message " %)) (range 50))]
+      (is (= (map #(hash-map :echo (:say %)) messages)
+             (banter/call-many @test-client
+                               {:method "naply.grpc_banter.EchoService/Echo" :max-in-flight 4}
+                               messages)))))
+
+  (testing "Failures are returned per message"
+    (let [[ok error] (banter/call-many @test-client
+                                       "naply.grpc_banter.EchoService/Echo"
+                                       [{:say "HelloWorld"} {:say 123}])]
+      (is (= {:echo "HelloWorld"} ok))
+      (is (instance? Exception error))))
+
+  (testing "Error response [server exception]"
+    (let [[error] (banter/call-many @test-client
+                                    "naply.grpc_banter.EchoService/Error"
+                                    [{:unused "Gonna fail"}])]
+      (is (instance? ExceptionInfo error))
+      (is (= {:code "INTERNAL" :description "All requests will fail."}
+             (-> error ex-data :status))))))
+
+(deftest call-stream
+  (testing "Server streaming"
+    (is (= [{:echo "hi 0"} {:echo "hi 1"} {:echo "hi 2"}]
+           (banter/call-stream @test-client
+                               "naply.grpc_banter.EchoService/EchoServerStream"
+                               {:say "hi" :count 3}))))
+
+  (testing "Server streaming [more responses than the buffer size]"
+    (is (= 100
+           (count (banter/call-stream @test-client
+                                      {:method "naply.grpc_banter.EchoService/EchoServerStream"
+                                       :stream-buffer-size 2}
+                                      {:say "hi" :count 100})))))
+
+  (testing "Client streaming"
+    (is (= [{:echo "one two three"}]
+           (banter/call-stream @test-client
+                               "naply.grpc_banter.EchoService/EchoClientStream"
+                               [{:say "one"} {:say "two"} {:say "three"}]))))
+
+  (testing "Bidirectional streaming"
+    (is (= (map #(hash-map :echo (str %)) (range 50))
+           (banter/call-stream @test-client
+                               "naply.grpc_banter.EchoService/EchoBidiStream"
+                               (map #(hash-map :say (str %)) (range 50))))))
+
+  (testing "Unary"
+    (is (= [{:echo "HelloWorld"}]
+           (banter/call-stream @test-client
+                               "naply.grpc_banter.EchoService/Echo"
+                               {:say "HelloWorld"}))))
+
+  (testing "Error response [server exception]"
+    (is (thrown-with-msg?
+          ExceptionInfo
+          (as-pattern "gRPC server responded with error status=[INTERNAL] description=[All requests will fail.]")
+          (doall (banter/call-stream @test-client
+                                     "naply.grpc_banter.EchoService/Error"
+                                     {:unused "Gonna fail"})))))
+
+  (testing "Error response [streamed message validation]"
+    (is (thrown-with-msg?
+          ExceptionInfo
+          (as-pattern "Request message failed validation")
+          (doall (banter/call-stream @test-client
+                                     "naply.grpc_banter.EchoService/EchoClientStream"
+                                     [{:say "valid"} {:badfield "Gonna fail"}])))))
+
+  (testing "Requests realized on the consuming thread"
+    (let [thread-name (.getName (Thread/currentThread))]
+      (is (= (repeat 3 {:echo thread-name})
+             (banter/call-stream @test-client
+                                 "naply.grpc_banter.EchoService/EchoBidiStream"
+                                 (map (fn [_] {:say (.getName (Thread/currentThread))}) (range 3)))))))
+
+  (testing "Deref returns the status, headers and trailers"
+    (let [stream (banter/call-stream @test-client
+                                     "naply.grpc_banter.EchoService/EchoServerStream"
+                                     {:say "hi" :count 3})
+          response @stream]
+      (is (= "OK" (get-in response [:status :code])))
+      (is (map? (:headers response)))
+      (is (map? (:trailers response)))
+      (is (= 3 (count stream)))))
+
+  (let [metrics-client (banter/client {:target              (-> @test-client :config :target)
+                                       :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                       :metrics             true})
+        ;; Collects garbage while waiting, so abandoned calls are cancelled
+        await-cancelled (fn [expected]
+                          (let [deadline (+ (System/currentTimeMillis) 5000)]
+                            (loop []
+                              (let [cancelled (-> (banter/metrics metrics-client)
+                                                  (get-in ["naply.grpc_banter.EchoService/EchoServerStream"
+                                                           :calls :CANCELLED]))]
+                                (if (or (= expected cancelled) (> (System/currentTimeMillis) deadline))
+                                  cancelled
+                                  (do (System/gc)
+                                      (Thread/sleep 50)
+                                      (recur)))))))]
+    (try
+      (testing "Closing the stream cancels the call"
+        (with-open [stream (banter/call-stream metrics-client
+                                               {:method             "naply.grpc_banter.EchoService/EchoServerStream"
+                                                :stream-buffer-size 2}
+                                               {:say "hi" :count 1000})]
+          (is (= {:echo "hi 0"} (first stream))))
+        (is (= 1 (await-cancelled 1))))
+
+      (testing "Abandoning the stream cancels the call"
+        (is (= {:echo "hi 0"}
+               (first (banter/call-stream metrics-client
+                                          {:method             "naply.grpc_banter.EchoService/EchoServerStream"
+                                           :stream-buffer-size 2}
+                                          {:say "hi" :count 1000}))))
+        (is (= 2 (await-cancelled 2))))
+      (finally
+        (.close ^Client (:java-client metrics-client))))))
+
+(deftest metrics
+  (testing "No metrics unless enabled"
+    (is (nil? (banter/metrics @test-client))))
+
+  (testing "Call counts, latency, sizes and phases per method"
+    (let [metrics-client (banter/client {:target              (-> @test-client :config :target)
+                                         :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                         :metrics             true})]
+      (try
+        (dotimes [_ 3]
+          (banter/call metrics-client "naply.grpc_banter.EchoService/Echo" {:say "HelloWorld"}))
+        (banter/call metrics-client
+                     {:method "naply.grpc_banter.EchoService/Echo" :codec :wire}
+                     {:say "HelloWorld"})
+        (is (thrown? ExceptionInfo
+                     (banter/call metrics-client "naply.grpc_banter.EchoService/Error" {:unused "Gonna fail"})))
+        (let [metrics (banter/metrics metrics-client)
+              echo (get metrics "naply.grpc_banter.EchoService/Echo")]
+          (is (= {:OK 4} (:calls echo)))
+          (is (= {:INTERNAL 1} (:calls (get metrics "naply.grpc_banter.EchoService/Error"))))
+          (is (= 4 (-> echo :latency-nanos :count)))
+          (is (<= (-> echo :latency-nanos :min)
+                  (-> echo :latency-nanos :p50)
+                  (-> echo :latency-nanos :p99)
+                  (-> echo :latency-nanos :max)))
+          (is (= 4 (-> echo :request-bytes :count)))
+          (is (= 12 (-> echo :request-bytes :max)) "Serialized size of {:say \"HelloWorld\"}")
+          (is (= 4 (-> echo :response-bytes :count)))
+          (is (= {:validation          4
+                  :request-conversion  3
+                  :serialization       4
+                  :deserialization     4
+                  :response-conversion 4}
+                 (update-vals (:phase-nanos echo) :count))))
+        (finally
+          (.close ^Client (:java-client metrics-client))))))
+
+  (testing "Requests serialized to be sized are timed as one serialization"
+    (let [metrics-client (banter/client {:target              (-> @test-client :config :target)
+                                         :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                         :metrics             true})]
+      (try
+        (banter/call metrics-client
+                     {:method "naply.grpc_banter.EchoService/Echo" :codec :wire :compression :gzip}
+                     {:say "small"})
+        (is (= 1 (-> (banter/metrics metrics-client)
+                     (get-in ["naply.grpc_banter.EchoService/Echo" :phase-nanos :serialization :count]))))
+        (finally
+          (.close ^Client (:java-client metrics-client))))))
+
+  (testing "Requests serialized for the response cache key are timed as one serialization"
+    (let [metrics-client (banter/client {:target              (-> @test-client :config :target)
+                                         :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                         :metrics             true
+                                         :response-cache      {:max-entries 2
+                                                               :methods     ["naply.grpc_banter.EchoService/Echo"]}})]
+      (try
+        (doseq [codec [:dynamic-message :wire]]
+          (banter/call metrics-client
+                       {:method "naply.grpc_banter.EchoService/Echo" :codec codec}
+                       {:say (name codec)}))
+        (is (= 2 (-> (banter/metrics metrics-client)
+                     (get-in ["naply.grpc_banter.EchoService/Echo" :phase-nanos :serialization :count]))))
+        (finally
+          (.close ^Client (:java-client metrics-client)))))))
+
+(deftest response-cache
+  (let [cache-client (banter/client {:target              (-> @test-client :config :target)
+                                     :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                     :response-cache      {:max-entries 2
+                                                           :ttl-millis  60000
+                                                           :key-headers ["x-tenant"]
+                                                           :methods     ["naply.grpc_banter.EchoService/Echo"]}})
+        echo (fn [tenant say & {:as request}]
+               (banter/call cache-client
+                            (merge {:method  "naply.grpc_banter.EchoService/Echo"
+                                    :headers {"x-tenant" tenant}}
+                                   request)
+                            {:say say}))]
+    (try
+      (testing "Hits return a fresh map of the cached response"
+        (let [first-response (echo "a" "one")
+              second-response (echo "a" "one")]
+          (is (= {:echo "one"} first-response second-response))
+          (is (not (identical? first-response second-response)))
+          (is (= {:code "OK" :description nil} (:status (meta second-response))))
+          (is (= {:hits 1 :misses 1} (select-keys (banter/response-cache-stats cache-client) [:hits :misses])))))
+
+      (testing "Key headers are part of the key"
+        (is (= ["b"] (get-in (meta (echo "b" "one")) [:headers "x-tenant"])))
+        (is (= ["a"] (get-in (meta (echo "a" "one")) [:headers "x-tenant"])))
+        (is (= {:hits 2 :misses 2} (select-keys (banter/response-cache-stats cache-client) [:hits :misses]))))
+
+      (testing "Codecs are cached separately"
+        (is (= {:echo "one"} (echo "a" "one" :codec :wire)))
+        (is (= {:echo "one"} (echo "a" "one" :codec :wire)))
+        (is (= 3 (:misses (banter/response-cache-stats cache-client)))))
+
+      (testing "Least recently used entries are evicted"
+        (is (= 2 (:entries (banter/response-cache-stats cache-client))))
+        (is (pos? (:evictions (banter/response-cache-stats cache-client)))))
+
+      (testing "Caching per request"
+        (banter/clear-response-cache cache-client)
+        (echo "a" "one" :cache false)
+        (is (zero? (:entries (banter/response-cache-stats cache-client))))
+        (let [hits (:hits (banter/response-cache-stats cache-client))]
+          (dotimes [_ 2]
+            (banter/call cache-client
+                         {:method "naply.grpc_banter.EchoService/AllFieldTypesTest" :cache true}
+                         valid-AllFieldTypesMessage))
+          (is (= 1 (:entries (banter/response-cache-stats cache-client))))
+          (is (= valid-AllFieldTypesMessage
+                 @(banter/call-async cache-client
+                                     {:method "naply.grpc_banter.EchoService/AllFieldTypesTest" :cache true}
+                                     valid-AllFieldTypesMessage)))
+          (is (= (+ hits 2) (:hits (banter/response-cache-stats cache-client))))))
+      (finally
+        (.close ^Client (:java-client cache-client)))))
+
+  (testing "Expired entries are not returned"
+    (let [cache-client (banter/client {:target              (-> @test-client :config :target)
+                                       :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                       :cache               true
+                                       :response-cache      {:ttl-millis 1}})]
+      (try
+        (banter/call cache-client "naply.grpc_banter.EchoService/Echo" {:say "one"})
+        (Thread/sleep 5)
+        (banter/call cache-client "naply.grpc_banter.EchoService/Echo" {:say "one"})
+        (is (= {:hits 0 :misses 2 :expirations 1}
+               (select-keys (banter/response-cache-stats cache-client) [:hits :misses :expirations])))
+        (finally
+          (.close ^Client (:java-client cache-client)))))))
+
+(deftest coalesce
+  (let [coalesce-client (banter/client {:target              (-> @test-client :config :target)
+                                        :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                        :metrics             true
+                                        :coalesce            true})
+        slow-echo (fn [say & {:as request}]
+                    (banter/call-async coalesce-client
+                                       (merge {:method  "naply.grpc_banter.EchoService/Echo"
+                                               :headers {"x-delay-millis" "200"}}
+                                              request)
+                                       {:say say}))
+        server-calls #(-> (banter/metrics coalesce-client)
+                          (get-in ["naply.grpc_banter.EchoService/Echo" :calls :OK] 0))]
+    (try
+      (testing "Identical calls in flight share one call"
+        (let [responses (doall (repeatedly 10 #(slow-echo "one")))]
+          (is (= (repeat 10 {:echo "one"}) (map deref responses)))
+          (is (= 1 (server-calls)))))
+
+      (testing "Different requests and headers are not shared"
+        (let [responses [(slow-echo "one") (slow-echo "two") (slow-echo "one" :headers {"x-delay-millis" "201"})]]
+          (is (= [{:echo "one"} {:echo "two"} {:echo "one"}] (map deref responses)))
+          (is (= 4 (server-calls)))))
+
+      (testing "Cancelling one caller does not cancel the shared call"
+        (let [[cancelled & others] (doall (repeatedly 3 #(slow-echo "one")))]
+          (future-cancel cancelled)
+          (is (= (repeat 2 {:echo "one"}) (map deref others)))
+          (is (= 5 (server-calls)))))
+
+      (testing "Calls with shorter deadlines fail on their own deadline"
+        (let [shared (slow-echo "one")
+              short (slow-echo "one" :deadline-millis 50)]
+          (is (= "DEADLINE_EXCEEDED"
+                 (try @short (catch ExecutionException e (-> e .getCause ex-data :status :code)))))
+          (is (= {:echo "one"} @shared))
+          (is (= 6 (server-calls)))))
+
+      (testing "Blocking calls coalesce"
+        (is (= {:echo "one"} (banter/call coalesce-client "naply.grpc_banter.EchoService/Echo" {:say "one"}))))
+      (finally
+        (.close ^Client (:java-client coalesce-client))))))
+
+(deftest compression
+  (let [long-say (apply str (repeat 2000 "a"))
+        echo (fn [say & {:as request}]
+               (meta (banter/call @test-client
+                                  (merge {:method "naply.grpc_banter.EchoService/Echo"} request)
+                                  {:say say})))]
+    (testing "Uncompressed by default"
+      (let [{:keys [request request-wire response response-wire]} (:message-bytes (echo long-say))]
+        (is (= 2003 request request-wire))
+        (is (= 2003 response response-wire))))
+
+    (testing "Requests are compressed from the minimum size"
+      (doseq [codec [:dynamic-message :wire]]
+        (let [{:keys [request request-wire]} (:message-bytes (echo long-say :compression :gzip :codec codec))]
+          (is (= 2003 request))
+          (is (< request-wire 100)))
+        (let [{:keys [request request-wire]} (:message-bytes (echo "small" :compression :gzip :codec codec))]
+          (is (= 7 request request-wire)))
+        (let [{:keys [request request-wire]} (:message-bytes (echo "small" :compression :gzip :codec codec
+                                                                   :compression-min-bytes 0))]
+          (is (= 7 request))
+          (is (not= request request-wire)))))
+
+    (testing "Compressed responses are decompressed"
+      (let [{:keys [response response-wire]} (:message-bytes (echo long-say :headers {"x-response-compression" "gzip"}))]
+        (is (= 2003 response))
+        (is (< response-wire 100))))
+
+    (testing "Lazy metadata"
+      (is (= 2003 (-> (echo long-say :lazy-responses true) :message-bytes :request))))))
+
+(deftest load
+  (testing "Closed loop"
+    (let [report (banter/load @test-client "naply.grpc_banter.EchoService/Echo" (constantly {:say "HelloWorld"})
+                              {:mode :closed-loop :concurrency 4 :duration-millis 300})]
+      (is (pos? (:calls report)))
+      (is (= {:OK (:calls report)} (:status report)))
+      (is (= (:calls report) (-> report :latency-nanos :count)))
+      (is (pos? (:throughput report)))
+      (is (= (* 12 (:calls report)) (:request-bytes report) (:response-bytes report)))))
+
+  (testing "Closed loop [calls completing as they start]"
+    (let [threads (atom #{})
+          report (banter/load @test-client "naply.grpc_banter.EchoService/Echo"
+                              (fn []
+                                (swap! threads conj (Thread/currentThread))
+                                (throw (IllegalStateException. "No message")))
+                              {:mode :closed-loop :concurrency 4 :duration-millis 300})]
+      (is (pos? (:calls report)))
+      (is (= {:UNKNOWN (:calls report)} (:status report)))
+      (is (= 4 (count @threads)) "Every worker starts calls on its own thread")))
+
+  (testing "Open loop at a fixed rate"
+    (let [report (banter/load @test-client "naply.grpc_banter.EchoService/Echo" (constantly {:say "HelloWorld"})
+                              {:mode :open-loop :rate 200 :duration-millis 500})]
+      (is (<= 95 (:calls report) 100))
+      (is (< 400 (:elapsed-millis report) 5000))))
+
+  (testing "A sequence of messages ends the run when exhausted"
+    (let [report (banter/load @test-client "naply.grpc_banter.EchoService/Echo"
+                              (map #(hash-map :say (str %)) (range 5))
+                              {:mode :closed-loop :duration-millis 10000})]
+      (is (= 5 (:calls report)))
+      (is (< (:elapsed-millis report) 10000))))
+
+  (testing "Errors by status code"
+    (is (= {:INTERNAL 3 :INVALID_ARGUMENT 2}
+           (:status (banter/load @test-client "naply.grpc_banter.EchoService/Error"
+                                 [{:unused "a"} {:badfield "b"} {:unused "c"} {:badfield "d"} {:unused "e"}]
+                                 {:mode :open-loop :rate 1000 :duration-millis 1000}))))))
+
+(deftest retry-and-hedging
+  (testing "The winning attempt closed with the call's status, not a hedge cancelled after it"
+    (let [builder (naply.grpc_banter.internal.RpcResponse/builder)
+          attempts (.attempts builder)
+          first-attempt (.newClientStreamTracer attempts nil (Metadata.))
+          hedge (.newClientStreamTracer attempts nil (Metadata.))]
+      (.streamClosed first-attempt Status/OK)
+      (.streamClosed hedge Status/CANCELLED)
+      (.status builder Status/OK)
+      (is (= 1 (.getWinningAttempt attempts)))))
+
+  (let [policy-client (fn [policy]
+                        (banter/client {:target              (-> @test-client :config :target)
+                                        :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                        :method-config       [(merge {:methods ["naply.grpc_banter.EchoService/Echo"]}
+                                                                     policy)]}))
+        echo (fn [client headers & {:as request}]
+               (banter/call client
+                            (merge {:method "naply.grpc_banter.EchoService/Echo" :headers headers} request)
+                            {:say "HelloWorld"}))
+        status-code (fn [f]
+                      (try (f) nil (catch ExceptionInfo e (-> e ex-data :status :code))))]
+    (testing "Retries"
+      (let [retry-client (policy-client {:retry {:max-attempts           3
+                                                 :initial-backoff-millis 10
+                                                 :max-backoff-millis     50
+                                                 :backoff-multiplier     2
+                                                 :retryable-status-codes [:UNAVAILABLE]}})]
+        (try
+          (is (= {:count 1 :winning 1} (:attempts (meta (echo retry-client {})))))
+          (let [response (echo retry-client {"x-fail-attempts" "2"})]
+            (is (= {:echo "HelloWorld"} response))
+            (is (= {:count 3 :winning 3} (:attempts (meta response)))))
+          (is (= "UNAVAILABLE" (status-code #(echo retry-client {"x-fail-attempts" "3"}))))
+          (is (= "INTERNAL" (status-code #(banter/call retry-client "naply.grpc_banter.EchoService/Error" {}))))
+          (finally
+            (.close ^Client (:java-client retry-client))))))
+
+    (testing "Retries respect the deadline"
+      (let [retry-client (policy-client {:retry {:max-attempts           5
+                                                 :initial-backoff-millis 2000
+                                                 :max-backoff-millis     2000
+                                                 :backoff-multiplier     1
+                                                 :retryable-status-codes [:UNAVAILABLE]}})
+            start (System/nanoTime)]
+        (try
+          (is (some? (status-code #(echo retry-client {"x-fail-attempts" "5"} :deadline-millis 200))))
+          (is (< (/ (- (System/nanoTime) start) 1e6) 1500))
+          (finally
+            (.close ^Client (:java-client retry-client))))))
+
+    (testing "Hedging"
+      (let [hedge-client (policy-client {:hedging {:max-attempts           2
+                                                   :hedging-delay-millis   50
+                                                   :non-fatal-status-codes []}})]
+        (try
+          (let [start (System/nanoTime)
+                response (echo hedge-client {"x-delay-millis" "2000" "x-delay-attempts" "1"})]
+            (is (= {:echo "HelloWorld"} response))
+            (is (= {:count 2 :winning 2} (:attempts (meta response))))
+            (is (< (/ (- (System/nanoTime) start) 1e6) 1500)))
+          (is (= "DEADLINE_EXCEEDED"
+                 (status-code #(echo hedge-client {"x-delay-millis" "500"} :deadline-millis 200))))
+          (finally
+            (.close ^Client (:java-client hedge-client))))))))
+
+(deftest record-and-replay
+  (let [file (doto (File/createTempFile "banter-calls" ".log") (.deleteOnExit))
+        record-client (banter/client {:target              (-> @test-client :config :target)
+                                      :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                      :record-file         (.getPath file)})
+        replay (fn [options] (banter/replay @test-client (.getPath file) options))]
+    (try
+      (banter/call record-client "naply.grpc_banter.EchoService/Echo" {:say "one"})
+      @(banter/call-async record-client
+                          {:method "naply.grpc_banter.EchoService/Echo" :codec :wire :headers {"x-tenant" "a"}}
+                          {:say "two"})
+      (is (thrown? ExceptionInfo (banter/call record-client "naply.grpc_banter.EchoService/Error" {:unused "x"})))
+      (is (thrown? ExceptionInfo (banter/call record-client
+                                              {:method  "naply.grpc_banter.EchoService/Echo"
+                                               :headers {"x-fail-attempts" "1"}}
+                                              {:say "unavailable"})))
+      (Thread/sleep 300)
+      (banter/call record-client "naply.grpc_banter.EchoService/AllFieldTypesTest" valid-AllFieldTypesMessage)
+      (finally
+        (.close ^Client (:java-client record-client))))
+    (is (= {:recorded 5 :dropped 0} (banter/recording-stats record-client)))
+
+    (testing "Replay with the recorded requests and headers"
+      (let [report (replay {:speed 0})]
+        (is (= 5 (:calls report)))
+        (is (= {:OK 3 :INTERNAL 1 :UNAVAILABLE 1} (:status report)))
+        (is (= [0 0 []] [(:status-differences report) (:response-differences report) (:differences report)]))
+        (is (= 5 (-> report :latency-nanos :count) (-> report :recorded-latency-nanos :count)))))
+
+    (testing "Differences from the recording"
+      (let [report (replay {:speed 0 :headers {"x-fail-attempts" "1"} :max-differences 1})]
+        (is (= {:UNAVAILABLE 5} (:status report)))
+        (is (= 4 (:status-differences report)))
+        (is (= [{:index             0
+                 :method            "naply.grpc_banter.EchoService/Echo"
+                 :recorded-status   "OK"
+                 :replayed-status   "UNAVAILABLE"
+                 :recorded-response {:echo "one"}
+                 :replayed-response nil}]
+               (:differences report)))))
+
+    (testing "Paced replay"
+      (is (<= 300 (:elapsed-millis (replay {:speed 1}))))
+      (is (> 300 (:elapsed-millis (replay {:speed 10}))))))
+
+  (testing "A call that can not be serialized stops recording, and closing does not block"
+    (let [file (doto (File/createTempFile "banter-calls" ".log") (.deleteOnExit))
+          recorder (CallRecorder. (.toPath file) 1 (WireCodec.))]
+      (dotimes [_ 10]
+        (.record recorder "naply.grpc_banter.EchoService/Echo" nil "not a message"
+                 (Metadata.) (System/nanoTime) nil Status/OK))
+      (is (instance? IOException
+                     (deref (future (try (.close recorder) (catch IOException e e))) 5000 :timed-out)))
+      (is (= 0 (.getRecorded recorder)))
+      (is (pos? (.getDropped recorder))))))
+
+(deftest deprecated-java-overloads
+  (let [^Client java-client (:java-client @test-client)
+        method-descriptor #(banter/get-method-descriptor @test-client {:method (str "naply.grpc_banter.EchoService/" %)})
+        request (fn [method & fields]
+                  (let [input-type (.getInputType method)]
+                    (.build ^DynamicMessage$Builder
+                            (reduce (fn [^DynamicMessage$Builder builder [field value]]
+                                      (.setField builder (.findFieldByName input-type field) value))
+                                    (DynamicMessage/newBuilder input-type)
+                                    (partition 2 fields)))))
+        echo (fn [^DynamicMessage response]
+               (.getField response (.findFieldByName (.getDescriptorForType response) "echo")))
+        echo-method (method-descriptor "Echo")
+        stream-method (method-descriptor "EchoServerStream")]
+    (testing "Calls with headers and a deadline return dynamic messages"
+      (is (= "Hello"
+             (echo (.getMessage (.callMethod java-client echo-method (request echo-method "say" "Hello") (Metadata.) 1000)))))
+      (is (= "Hello"
+             (echo (.getMessage @(.callMethodAsync java-client echo-method (request echo-method "say" "Hello") (Metadata.) 1000)))))
+      (is (= ["Hello 0" "Hello 1"]
+             (map echo (iterator-seq (.callStreamingMethod java-client
+                                                           stream-method
+                                                           (.iterator [(request stream-method "say" "Hello" "count" (int 2))])
+                                                           (Metadata.) 1000 16))))))))
+
 (deftest client
+  (testing "Pooled channels with transport settings"
+    (doseq [channel-selection [:round-robin :least-in-flight]]
+      (let [pooled-client (banter/client {:target                   (-> @test-client :config :target)
+                                          :file-descriptor-set      "target/test-file-descriptor-set.dsc"
+                                          :channel-count            3
+                                          :channel-selection        channel-selection
+                                          :executor-threads         2
+                                          :event-loop-threads       1
+                                          :keep-alive-time-millis   60000
+                                          :flow-control-window      (* 4 1024 1024)
+                                          :max-inbound-message-size (* 8 1024 1024)})]
+        (try
+          (is (= (repeat 20 {:echo "HelloWorld"})
+                 (banter/call-many pooled-client
+                                   "naply.grpc_banter.EchoService/Echo"
+                                   (repeat 20 {:say "HelloWorld"}))))
+          (finally
+            (.close ^Client (:java-client pooled-client)))))))
+
+  (testing "Local transports selected by the target"
+    (let [socket-file (doto (File/createTempFile "banter-echo" ".sock") (.delete))
+          transports (cond-> [["inprocess:banter-echo" #(TestGrpcServer/createInProcess "banter-echo")]]
+                       (Epoll/isAvailable)
+                       (conj [(str "unix://" (.getPath socket-file))
+                              #(TestGrpcServer/createDomainSocket (.getPath socket-file))]))]
+      (doseq [[target create-server] transports]
+        (with-open [_server ^TestGrpcServer (create-server)]
+          (let [local-client (banter/client {:target              target
+                                             :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                             :channel-count       2})]
+            (try
+              (is (= {:echo "HelloWorld"}
+                     (banter/call local-client "naply.grpc_banter.EchoService/Echo" {:say "HelloWorld"})))
+              (is (= {:echo "Hello"}
+                     @(banter/call-async local-client "naply.grpc_banter.EchoService/Echo" {:say "Hello"})))
+              (is (= [{:echo "Hello 0"} {:echo "Hello 1"}]
+                     (banter/call-stream local-client
+                                         "naply.grpc_banter.EchoService/EchoServerStream"
+                                         {:say "Hello" :count 2})))
+              (finally
+                (.close ^Client (:java-client local-client)))))))
+      (.delete socket-file)))
+
+  (testing "TLS is not supported with in-process targets"
+    (is (thrown-with-msg? IllegalArgumentException #"TLS is not supported"
+                          (banter/client {:target              "inprocess:banter-echo"
+                                          :file-descriptor-set "target/test-file-descriptor-set.dsc"
+                                          :tls                 true}))))
+
+  (testing "Descriptors from server reflection, saved to a descriptor cache"
+    (let [cache-file (File/createTempFile "descriptor-cache" ".dsc")
+          _ (.delete cache-file)
+          reflection-client #(banter/client {:target           (-> @test-client :config :target)
+                                             :reflection       true
+                                             :descriptor-cache (.getPath cache-file)})]
+      (try
+        (let [client (reflection-client)]
+          (try
+            (is (contains? (banter/methods client) "naply.grpc_banter.EchoService/Echo"))
+            (is (= {:echo "HelloWorld"}
+                   (banter/call client "naply.grpc_banter.EchoService/Echo" {:say "HelloWorld"})))
+            (is (.exists cache-file))
+            (finally
+              (.close ^Client (:java-client client)))))
+        (let [listed (atom 0)
+              unreachable (reify FileDescriptorRegistry$DescriptorSource
+                            (fileContainingSymbol [_ symbol]
+                              (throw (IllegalStateException. (str "Fetched symbol " symbol))))
+                            (fileByName [_ file-name]
+                              (throw (IllegalStateException. (str "Fetched file " file-name))))
+                            (listServices [_]
+                              (swap! listed inc)
+                              ["naply.grpc_banter.EchoService"]))
+              registry (FileDescriptorRegistry/fromDescriptorSource unreachable (.getPath cache-file))]
+          (is (some? (.findMessageTypeByFullName registry "naply.grpc_banter.EchoRequest"))
+              "Loaded from the cache without fetching")
+          (is (some? (.findServiceByName registry "naply.grpc_banter.EchoService")))
+          (is (contains? (.getAllServiceMethods registry) "naply.grpc_banter.EchoService/Echo"))
+          (is (contains? (.getAllServiceMethods registry) "naply.grpc_banter.EchoService/Echo"))
+          (is (= 1 @listed) "Services listed once"))
+        (let [client (reflection-client)]
+          (try
+            (is (= {:echo "HelloWorld"}
+                   (banter/call client "naply.grpc_banter.EchoService/Echo" {:say "HelloWorld"})))
+            (finally
+              (.close ^Client (:java-client client)))))
+        (finally
+          (.delete cache-file)))))
+
   (testing "Client configuration error [required field]"
     (is (thrown-with-msg?
           IllegalArgumentException
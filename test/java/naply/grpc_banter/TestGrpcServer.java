@@ -1,28 +1,69 @@
 package naply.grpc_banter;
 
 import io.grpc.*;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.unix.DomainSocketAddress;
+import io.grpc.protobuf.services.ProtoReflectionService;
 import io.grpc.stub.StreamObserver;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
 
 public class TestGrpcServer implements Closeable {
 
     private final Server server;
+    private final EventLoopGroup eventLoopGroup;
 
     public static TestGrpcServer create(int port) throws IOException {
-        return new TestGrpcServer(port);
+        return new TestGrpcServer(ServerBuilder.forPort(port), null);
     }
 
-    private TestGrpcServer(int port) throws IOException {
-        this.server = ServerBuilder.forPort(port)
+    /** A server for {@code inprocess:<name>} targets. */
+    public static TestGrpcServer createInProcess(String name) throws IOException {
+        return new TestGrpcServer(InProcessServerBuilder.forName(name), null);
+    }
+
+    /** A server listening on a Unix domain socket, for {@code unix:<path>} targets. Requires epoll. */
+    public static TestGrpcServer createDomainSocket(String path) throws IOException {
+        EventLoopGroup eventLoopGroup = new EpollEventLoopGroup(1);
+        return new TestGrpcServer(
+                NettyServerBuilder.forAddress(new DomainSocketAddress(path))
+                        .channelType(EpollServerDomainSocketChannel.class)
+                        .bossEventLoopGroup(eventLoopGroup)
+                        .workerEventLoopGroup(eventLoopGroup),
+                eventLoopGroup);
+    }
+
+    private TestGrpcServer(ServerBuilder<?> serverBuilder, EventLoopGroup eventLoopGroup) throws IOException {
+        this.eventLoopGroup = eventLoopGroup;
+        this.server = serverBuilder
                 .addService(new EchoService())
+                .addService(ProtoReflectionService.newInstance())
                 .intercept(new ServerInterceptor() {
                     @Override
                     public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
                             ServerCall<ReqT, RespT> call,
                             Metadata headers,
                             ServerCallHandler<ReqT, RespT> next) {
+                        int attempt = previousAttempts(headers) + 1;
+                        if (attempt <= attempts(headers, FAIL_ATTEMPTS_HEADER, 0)) {
+                            call.close(Status.UNAVAILABLE.withDescription("Failed attempt " + attempt), new Metadata());
+                            return new ServerCall.Listener<ReqT>() {
+                            };
+                        }
+                        if (attempt <= attempts(headers, DELAY_ATTEMPTS_HEADER, Integer.MAX_VALUE)) {
+                            delay(headers);
+                        }
+                        String responseCompression = headers.get(RESPONSE_COMPRESSION_HEADER);
+                        if (responseCompression != null) {
+                            call.setCompression(responseCompression);
+                        }
                         // Set response headers to match request headers on EchoService/Echo
                         if (call.getMethodDescriptor().getFullMethodName()
                                 .equals(EchoServiceGrpc.getEchoMethod().getFullMethodName())) {
@@ -35,9 +76,46 @@ public class TestGrpcServer implements Closeable {
         this.server.start();
     }
 
+    private static final Metadata.Key<String> RESPONSE_COMPRESSION_HEADER =
+            Metadata.Key.of("x-response-compression", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> DELAY_MILLIS_HEADER =
+            Metadata.Key.of("x-delay-millis", Metadata.ASCII_STRING_MARSHALLER);
+    // Only the first attempts of a retried or hedged call are failed or delayed
+    private static final Metadata.Key<String> FAIL_ATTEMPTS_HEADER =
+            Metadata.Key.of("x-fail-attempts", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> DELAY_ATTEMPTS_HEADER =
+            Metadata.Key.of("x-delay-attempts", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> PREVIOUS_ATTEMPTS_HEADER =
+            Metadata.Key.of("grpc-previous-rpc-attempts", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static int previousAttempts(Metadata headers) {
+        String previousAttempts = headers.get(PREVIOUS_ATTEMPTS_HEADER);
+        return previousAttempts == null ? 0 : Integer.parseInt(previousAttempts);
+    }
+
+    private static int attempts(Metadata headers, Metadata.Key<String> key, int defaultAttempts) {
+        String attempts = headers.get(key);
+        return attempts == null ? defaultAttempts : Integer.parseInt(attempts);
+    }
+
+    /** Delay the call by the milliseconds in the x-delay-millis header, to keep calls in flight. */
+    private static void delay(Metadata headers) {
+        String delayMillis = headers.get(DELAY_MILLIS_HEADER);
+        if (delayMillis != null) {
+            try {
+                Thread.sleep(Long.parseLong(delayMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Override
     public void close() {
         server.shutdownNow();
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
     }
 
     public int getPort() {
@@ -86,6 +164,68 @@ public class TestGrpcServer implements Closeable {
             responseObserver.onNext(request);
             responseObserver.onCompleted();
         }
+
+        @Override
+        public void echoServerStream(
+                EchoServiceProtos.EchoStreamRequest request,
+                StreamObserver<EchoServiceProtos.EchoResponse> responseObserver) {
+            for (int i = 0; i < request.getCount(); i++) {
+                responseObserver.onNext(
+                        EchoServiceProtos.EchoResponse.newBuilder()
+                                .setEcho(request.getSay() + " " + i)
+                                .build());
+            }
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<EchoServiceProtos.EchoRequest> echoClientStream(
+                StreamObserver<EchoServiceProtos.EchoResponse> responseObserver) {
+            return new StreamObserver<EchoServiceProtos.EchoRequest>() {
+                private final StringJoiner echo = new StringJoiner(" ");
+
+                @Override
+                public void onNext(EchoServiceProtos.EchoRequest request) {
+                    echo.add(request.getSay());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onNext(
+                            EchoServiceProtos.EchoResponse.newBuilder()
+                                    .setEcho(echo.toString())
+                                    .build());
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
+        @Override
+        public StreamObserver<EchoServiceProtos.EchoRequest> echoBidiStream(
+                StreamObserver<EchoServiceProtos.EchoResponse> responseObserver) {
+            return new StreamObserver<EchoServiceProtos.EchoRequest>() {
+                @Override
+                public void onNext(EchoServiceProtos.EchoRequest request) {
+                    responseObserver.onNext(
+                            EchoServiceProtos.EchoResponse.newBuilder()
+                                    .setEcho(request.getSay())
+                                    .build());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
     }
 
     public static void main(String[] args) throws InterruptedException, IOException {